@@ -43,6 +43,66 @@ public class Application implements WebSocketConfigurer
     return KurentoClient.create();
   }
 
+  @Bean
+  public FlightRecorder flightRecorder()
+  {
+    return new FlightRecorder();
+  }
+
+  @Bean
+  public KmsCircuitBreaker kmsCircuitBreaker()
+  {
+    return new KmsCircuitBreaker();
+  }
+
+  @Bean
+  public PipelinePool pipelinePool()
+  {
+    return new PipelinePool();
+  }
+
+  @Bean
+  public EndpointPool endpointPool()
+  {
+    return new EndpointPool();
+  }
+
+  @Bean
+  public EndpointEvents endpointEvents()
+  {
+    return new EndpointEvents();
+  }
+
+  @Bean
+  public SdpMunger sdpMunger()
+  {
+    return new SdpMunger();
+  }
+
+  @Bean
+  public StartupWarmup startupWarmup()
+  {
+    return new StartupWarmup();
+  }
+
+  @Bean
+  public TraceExporter traceExporter()
+  {
+    return new TraceExporter();
+  }
+
+  @Bean
+  public StaticAssets staticAssets()
+  {
+    return new StaticAssets();
+  }
+
+  @Bean
+  public StatsController statsController()
+  {
+    return new StatsController();
+  }
+
   @Override
   public void registerWebSocketHandlers(WebSocketHandlerRegistry registry)
   {
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.util.StreamUtils;
+
+/**
+ * Kurento Java Tutorial - Asset precompressor.
+ *
+ * Build step that writes a gzip copy next to every compressible static asset, for
+ * {@link StaticAssets} to send to clients that accept it: the files of the application under
+ * {@code static/}, and the files that dependencies such as webjars serve from
+ * {@code META-INF/resources/}, which are written to the same path under the output directory so
+ * that the class path finds them next to the originals. Run by the pom in the
+ * {@code prepare-package} phase, with the output directory as argument.
+ *
+ * <p>
+ * HTML pages are left alone, since {@link StaticAssets} rewrites their links when serving them, as
+ * are files too small to gain from compression. Brotli is not produced: neither the JDK nor this
+ * version of Spring has an encoder or a resolver for it.
+ * </p>
+ */
+public class AssetPrecompressor
+{
+
+  private static final Set<String> COMPRESSIBLE = new HashSet<>(Arrays.asList("js", "css", "svg",
+      "json", "map", "txt", "eot", "ttf"));
+
+  private static final String DEPENDENCY_RESOURCES = "META-INF/resources/";
+
+  private final File outputDirectory;
+  private int written;
+  private long originalBytes;
+  private long compressedBytes;
+
+  AssetPrecompressor(File outputDirectory)
+  {
+    this.outputDirectory = outputDirectory;
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 1) {
+      System.err.println("Usage: AssetPrecompressor <output directory>");
+      System.exit(2);
+    }
+    final AssetPrecompressor compressor = new AssetPrecompressor(new File(args[0]));
+    compressor.compressTree(new File(args[0], "static"));
+    compressor.compressDependencies();
+    System.out.println(String.format(Locale.ROOT,
+        "Precompressed %d assets, %d KiB down to %d KiB", compressor.written,
+        compressor.originalBytes / 1024, compressor.compressedBytes / 1024));
+  }
+
+  private void compressTree(File dir) throws IOException
+  {
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (final File file : files) {
+      if (file.isDirectory()) {
+        compressTree(file);
+      } else if (isCompressible(file.getName())) {
+        try (InputStream in = new FileInputStream(file)) {
+          compress(StreamUtils.copyToByteArray(in), new File(file.getPath() + ".gz"));
+        }
+      }
+    }
+  }
+
+  private void compressDependencies() throws IOException
+  {
+    final Enumeration<URL> roots = Thread.currentThread().getContextClassLoader()
+        .getResources(DEPENDENCY_RESOURCES);
+    while (roots.hasMoreElements()) {
+      final URLConnection connection = roots.nextElement().openConnection();
+      if (!(connection instanceof JarURLConnection)) {
+        continue;
+      }
+      connection.setUseCaches(false);
+      try (JarFile jar = ((JarURLConnection) connection).getJarFile()) {
+        final Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+          final JarEntry entry = entries.nextElement();
+          if (entry.isDirectory() || !entry.getName().startsWith(DEPENDENCY_RESOURCES)
+              || !isCompressible(entry.getName())) {
+            continue;
+          }
+          try (InputStream in = jar.getInputStream(entry)) {
+            compress(StreamUtils.copyToByteArray(in),
+                new File(outputDirectory, entry.getName() + ".gz"));
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isCompressible(String name)
+  {
+    final int dot = name.lastIndexOf('.');
+    return dot >= 0 && COMPRESSIBLE.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  private void compress(byte[] content, File target) throws IOException
+  {
+    if (content.length < SignalingCodec.COMPRESS_THRESHOLD) {
+      return;
+    }
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 3);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(buffer) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      gzip.write(content);
+    }
+    // Not worth a second file, nor the decompression on the client
+    if (buffer.size() > content.length * 9 / 10) {
+      return;
+    }
+    target.getParentFile().mkdirs();
+    try (OutputStream out = new FileOutputStream(target)) {
+      buffer.writeTo(out);
+    }
+    written++;
+    originalBytes += content.length;
+    compressedBytes += buffer.size();
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// Kurento client
+import org.kurento.client.Continuation;
+import org.kurento.client.Event;
+import org.kurento.client.EventListener;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.jsonrpc.JsonUtils;
+
+// Kurento events
+import org.kurento.client.ConnectionStateChangedEvent;
+import org.kurento.client.ErrorEvent;
+import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.IceComponentStateChangedEvent;
+import org.kurento.client.IceGatheringDoneEvent;
+import org.kurento.client.MediaFlowInStateChangeEvent;
+import org.kurento.client.MediaFlowOutStateChangeEvent;
+import org.kurento.client.MediaStateChangedEvent;
+import org.kurento.client.MediaTranscodingStateChangeEvent;
+import org.kurento.client.NewCandidatePairSelectedEvent;
+
+/**
+ * Kurento Java Tutorial - Registry of endpoint event subscriptions.
+ *
+ * Each subscription is a "subscribe" RPC to KMS plus a listener kept on the
+ * client, so an endpoint only subscribes to the events the application acts
+ * on (Error, IceCandidateFound) and to those listed in "helloworld.events.log",
+ * which are just logged. All the events of one endpoint are delivered to a
+ * single Dispatcher, which routes them by type to a shared Callback.
+ */
+public class EndpointEvents
+{
+  private static final Logger log = LoggerFactory.getLogger(EndpointEvents.class);
+
+  /**
+   * Event types an endpoint can subscribe to, by their Kurento name.
+   */
+  public enum Type
+  {
+    Error(true),
+    IceCandidateFound(true),
+    MediaFlowInStateChange(false),
+    MediaFlowOutStateChange(false),
+    ConnectionStateChanged(false),
+    MediaStateChanged(false),
+    MediaTranscodingStateChange(false),
+    IceComponentStateChanged(false),
+    IceGatheringDone(false),
+    NewCandidatePairSelected(false);
+
+    private final boolean required;
+
+    Type(boolean required)
+    {
+      this.required = required;
+    }
+  }
+
+  /**
+   * Receives the events the application acts on, for every endpoint.
+   */
+  public interface Callback
+  {
+    void onError(Dispatcher dispatcher, ErrorEvent ev);
+
+    void onIceCandidateFound(Dispatcher dispatcher, IceCandidateFoundEvent ev);
+  }
+
+  /**
+   * Single listener of all the subscribed events of one endpoint.
+   */
+  public class Dispatcher implements EventListener<Event>
+  {
+    private final WebRtcEndpoint endpoint;
+    private final Callback callback;
+    private final Object attachment;
+    private final Map<Type, ListenerSubscription> subscriptions =
+        new EnumMap<>(Type.class);
+    private volatile boolean closed;
+
+    Dispatcher(WebRtcEndpoint endpoint, Callback callback, Object attachment)
+    {
+      this.endpoint = endpoint;
+      this.callback = callback;
+      this.attachment = attachment;
+    }
+
+    /**
+     * @return The object given on subscription, to find the endpoint owner
+     */
+    public Object getAttachment()
+    { return attachment; }
+
+    @Override
+    public void onEvent(Event event)
+    {
+      if (closed) {
+        dropped.incrementAndGet();
+        return;
+      }
+      dispatched.incrementAndGet();
+
+      if (event instanceof ErrorEvent) {
+        final ErrorEvent ev = (ErrorEvent) event;
+        log.error("[WebRtcEndpoint::ErrorEvent] Error code {}: '{}', source: {}, timestamp: {}, tags: {}, description: {}",
+            ev.getErrorCode(), ev.getType(), ev.getSource().getName(),
+            ev.getTimestamp(), ev.getTags(), ev.getDescription());
+        callback.onError(this, ev);
+      } else if (event instanceof IceCandidateFoundEvent) {
+        final IceCandidateFoundEvent ev = (IceCandidateFoundEvent) event;
+        log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, candidate: {}",
+            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getTags(), JsonUtils.toJson(ev.getCandidate()));
+        callback.onIceCandidateFound(this, ev);
+      } else {
+        logEvent(event);
+      }
+    }
+  }
+
+  @Value("${helloworld.events.log:}")
+  private String logEvents;
+
+  private final Set<Type> types = EnumSet.noneOf(Type.class);
+
+  private final AtomicLong subscribed = new AtomicLong();
+  private final AtomicLong unsubscribed = new AtomicLong();
+  private final AtomicLong dispatched = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  @PostConstruct
+  private void init()
+  {
+    for (Type type : Type.values()) {
+      if (type.required) {
+        types.add(type);
+      }
+    }
+    for (String name : logEvents.split(",")) {
+      name = name.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      try {
+        types.add(Type.valueOf(name));
+      } catch (IllegalArgumentException ex) {
+        log.warn("[EndpointEvents::init] Unknown event type: {}, expected one of {}",
+            name, EnumSet.allOf(Type.class));
+      }
+    }
+    log.info("[EndpointEvents::init] Endpoints subscribe to: {}", types);
+  }
+
+  /**
+   * Subscribes an endpoint to the configured event types.
+   *
+   * @param attachment Handed back to the Callback through the Dispatcher
+   */
+  public Dispatcher subscribe(WebRtcEndpoint endpoint, Callback callback,
+      Object attachment)
+  {
+    final Dispatcher dispatcher = new Dispatcher(endpoint, callback, attachment);
+    for (Type type : types) {
+      dispatcher.subscriptions.put(type, addListener(endpoint, type, dispatcher));
+      subscribed.incrementAndGet();
+    }
+    return dispatcher;
+  }
+
+  /**
+   * Removes all the subscriptions of an endpoint, before it gets released.
+   * Events already on their way are dropped.
+   */
+  public void unsubscribe(final Dispatcher dispatcher)
+  {
+    dispatcher.closed = true;
+    for (Map.Entry<Type, ListenerSubscription> entry :
+        dispatcher.subscriptions.entrySet()) {
+      removeListener(dispatcher.endpoint, entry.getKey(), entry.getValue());
+      unsubscribed.incrementAndGet();
+    }
+    dispatcher.subscriptions.clear();
+  }
+
+  public Map<String, Object> getStats()
+  {
+    final List<String> names = new ArrayList<>();
+    for (Type type : types) {
+      names.add(type.name());
+    }
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("types", Collections.unmodifiableList(names));
+    stats.put("subscribed", subscribed.get());
+    stats.put("unsubscribed", unsubscribed.get());
+    stats.put("dispatched", dispatched.get());
+    stats.put("dropped", dropped.get());
+    return stats;
+  }
+
+  // The Dispatcher takes every event type; the typed add/remove methods of the
+  // endpoint only differ in the event class they declare
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private ListenerSubscription addListener(WebRtcEndpoint ep, Type type,
+      EventListener listener)
+  {
+    switch (type) {
+      case Error:
+        return ep.addErrorListener(listener);
+      case IceCandidateFound:
+        return ep.addIceCandidateFoundListener(listener);
+      case MediaFlowInStateChange:
+        return ep.addMediaFlowInStateChangeListener(listener);
+      case MediaFlowOutStateChange:
+        return ep.addMediaFlowOutStateChangeListener(listener);
+      case ConnectionStateChanged:
+        return ep.addConnectionStateChangedListener(listener);
+      case MediaStateChanged:
+        return ep.addMediaStateChangedListener(listener);
+      case MediaTranscodingStateChange:
+        return ep.addMediaTranscodingStateChangeListener(listener);
+      case IceComponentStateChanged:
+        return ep.addIceComponentStateChangedListener(listener);
+      case IceGatheringDone:
+        return ep.addIceGatheringDoneListener(listener);
+      case NewCandidatePairSelected:
+        return ep.addNewCandidatePairSelectedListener(listener);
+      default:
+        throw new IllegalArgumentException("Unknown event type: " + type);
+    }
+  }
+
+  private void removeListener(WebRtcEndpoint ep, final Type type,
+      ListenerSubscription sub)
+  {
+    final Continuation<Void> cont = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("[EndpointEvents::unsubscribe] Removed {} listener", type);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.debug("[EndpointEvents::unsubscribe] Could not remove {} listener: {}",
+            type, cause.getMessage());
+      }
+    };
+
+    switch (type) {
+      case Error:
+        ep.removeErrorListener(sub, cont);
+        break;
+      case IceCandidateFound:
+        ep.removeIceCandidateFoundListener(sub, cont);
+        break;
+      case MediaFlowInStateChange:
+        ep.removeMediaFlowInStateChangeListener(sub, cont);
+        break;
+      case MediaFlowOutStateChange:
+        ep.removeMediaFlowOutStateChangeListener(sub, cont);
+        break;
+      case ConnectionStateChanged:
+        ep.removeConnectionStateChangedListener(sub, cont);
+        break;
+      case MediaStateChanged:
+        ep.removeMediaStateChangedListener(sub, cont);
+        break;
+      case MediaTranscodingStateChange:
+        ep.removeMediaTranscodingStateChangeListener(sub, cont);
+        break;
+      case IceComponentStateChanged:
+        ep.removeIceComponentStateChangedListener(sub, cont);
+        break;
+      case IceGatheringDone:
+        ep.removeIceGatheringDoneListener(sub, cont);
+        break;
+      case NewCandidatePairSelected:
+        ep.removeNewCandidatePairSelectedListener(sub, cont);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void logEvent(Event event)
+  {
+    if (event instanceof MediaFlowInStateChangeEvent) {
+      final MediaFlowInStateChangeEvent ev = (MediaFlowInStateChangeEvent) event;
+      log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
+    } else if (event instanceof MediaFlowOutStateChangeEvent) {
+      final MediaFlowOutStateChangeEvent ev = (MediaFlowOutStateChangeEvent) event;
+      log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
+    } else if (event instanceof ConnectionStateChangedEvent) {
+      final ConnectionStateChangedEvent ev = (ConnectionStateChangedEvent) event;
+      log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getOldState(), ev.getNewState());
+    } else if (event instanceof MediaStateChangedEvent) {
+      final MediaStateChangedEvent ev = (MediaStateChangedEvent) event;
+      log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getOldState(), ev.getNewState());
+    } else if (event instanceof MediaTranscodingStateChangeEvent) {
+      final MediaTranscodingStateChangeEvent ev =
+          (MediaTranscodingStateChangeEvent) event;
+      log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, state: {}, binName: {}, mediaType: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getState(), ev.getBinName(), ev.getMediaType());
+    } else if (event instanceof IceComponentStateChangedEvent) {
+      final IceComponentStateChangedEvent ev = (IceComponentStateChangedEvent) event;
+      log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, streamId: {}, componentId: {}, state: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getStreamId(), ev.getComponentId(), ev.getState());
+    } else if (event instanceof IceGatheringDoneEvent) {
+      final IceGatheringDoneEvent ev = (IceGatheringDoneEvent) event;
+      log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags());
+    } else if (event instanceof NewCandidatePairSelectedEvent) {
+      final NewCandidatePairSelectedEvent ev = (NewCandidatePairSelectedEvent) event;
+      log.info("[WebRtcEndpoint::{}] name: {}, timestamp: {}, tags: {}, streamId: {}, local: {}, remote: {}",
+          ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+          ev.getTags(), ev.getCandidatePair().getStreamID(),
+          ev.getCandidatePair().getLocalCandidate(),
+          ev.getCandidatePair().getRemoteCandidate());
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.socket.WebSocketSession;
+
+// Kurento client
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * Kurento Java Tutorial - Pool of ready to use loopback endpoints.
+ *
+ * Keeps "helloworld.endpoint-pool.size" spare WebRtcEndpoints, already placed
+ * in a pipeline, connected to themselves and with all their event listeners
+ * installed, so that a new user only has to negotiate SDP. Listeners send
+ * their events to whichever WebSocket session currently owns the endpoint.
+ *
+ * A WebRtcEndpoint cannot be renegotiated once it has processed an SDP Offer,
+ * so used endpoints are released rather than put back; the spares are
+ * refilled in the background as they are taken. With a size of 0, endpoints
+ * are built on demand, as before.
+ */
+public class EndpointPool
+{
+  private static final Logger log = LoggerFactory.getLogger(EndpointPool.class);
+
+  /**
+   * Subscribes a new endpoint to its events.
+   */
+  public interface Initializer
+  {
+    void init(PooledEndpoint pooled);
+  }
+
+  /**
+   * A loopback endpoint, its pipeline, and the session it is assigned to.
+   */
+  public static class PooledEndpoint
+  {
+    private final MediaPipeline pipeline;
+    private final WebRtcEndpoint endpoint;
+    private final AtomicReference<WebSocketSession> owner =
+        new AtomicReference<>();
+    private volatile EndpointEvents.Dispatcher events;
+
+    PooledEndpoint(MediaPipeline pipeline, WebRtcEndpoint endpoint)
+    {
+      this.pipeline = pipeline;
+      this.endpoint = endpoint;
+    }
+
+    public MediaPipeline getPipeline()
+    { return pipeline; }
+
+    public EndpointEvents.Dispatcher getEvents()
+    { return events; }
+
+    public void setEvents(EndpointEvents.Dispatcher events)
+    { this.events = events; }
+
+    public WebRtcEndpoint getEndpoint()
+    { return endpoint; }
+
+    /**
+     * @return The session using this endpoint, or null while it is spare
+     */
+    public WebSocketSession getOwner()
+    { return owner.get(); }
+  }
+
+  @Autowired
+  private PipelinePool pipelinePool;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Autowired
+  private EndpointEvents endpointEvents;
+
+  @Value("${helloworld.endpoint-pool.size:0}")
+  private int size;
+
+  @Value("${helloworld.endpoint-pool.warmup:true}")
+  private boolean warmup;
+
+  private final BlockingQueue<PooledEndpoint> spares =
+      new LinkedBlockingQueue<>();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private final ExecutorService refiller =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "endpoint-pool-refill");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private volatile Initializer initializer;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong built = new AtomicLong();
+  private final AtomicLong buildNanos = new AtomicLong();
+  private final AtomicLong released = new AtomicLong();
+
+  /**
+   * Sets the listener initializer, and fills the pool if warmup is enabled;
+   * otherwise it gets filled after the first user arrives.
+   */
+  public void start(Initializer initializer)
+  {
+    this.initializer = initializer;
+    if (size > 0 && warmup) {
+      log.info("[EndpointPool::start] Warming up {} endpoints", size);
+      scheduleRefill();
+    }
+  }
+
+  /**
+   * Assigns an endpoint to a user, building one if no spare is left.
+   */
+  public PooledEndpoint take(WebSocketSession session)
+  {
+    PooledEndpoint pooled = spares.poll();
+    if (pooled != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      pooled = build();
+    }
+    pooled.owner.set(session);
+
+    if (size > 0) {
+      scheduleRefill();
+    }
+    return pooled;
+  }
+
+  /**
+   * Releases the endpoint of a user that left, and its pipeline slot.
+   */
+  public void release(final PooledEndpoint pooled)
+  {
+    pooled.owner.set(null);
+    released.incrementAndGet();
+
+    if (pooled.events != null) {
+      endpointEvents.unsubscribe(pooled.events);
+    }
+
+    kmsBreaker.release(pooled.endpoint, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.debug("[EndpointPool::release] Released WebRtcEndpoint");
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("[EndpointPool::release] Could not release WebRtcEndpoint",
+            cause);
+      }
+    });
+    pipelinePool.release(pooled.pipeline);
+  }
+
+  public Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final long builtCount = built.get();
+    stats.put("size", size);
+    stats.put("spares", spares.size());
+    stats.put("hits", hits.get());
+    stats.put("misses", misses.get());
+    stats.put("built", builtCount);
+    stats.put("released", released.get());
+    stats.put("avgBuildMicros",
+        builtCount > 0 ? buildNanos.get() / 1000 / builtCount : 0);
+    return stats;
+  }
+
+  @PreDestroy
+  private void shutdown()
+  {
+    refiller.shutdownNow();
+    PooledEndpoint pooled;
+    while ((pooled = spares.poll()) != null) {
+      release(pooled);
+    }
+  }
+
+  private PooledEndpoint build()
+  {
+    final long start = System.nanoTime();
+    final MediaPipeline pipeline = pipelinePool.acquire();
+
+    final WebRtcEndpoint webRtcEp;
+    try {
+      webRtcEp = kmsBreaker.call("createWebRtcEndpoint",
+          new Callable<WebRtcEndpoint>() {
+        @Override
+        public WebRtcEndpoint call() throws Exception {
+          WebRtcEndpoint ep = new WebRtcEndpoint.Builder(pipeline).build();
+          ep.connect(ep);
+          return ep;
+        }
+      });
+    } catch (RuntimeException ex) {
+      pipelinePool.release(pipeline);
+      throw ex;
+    }
+
+    final PooledEndpoint pooled = new PooledEndpoint(pipeline, webRtcEp);
+    initializer.init(pooled);
+
+    buildNanos.addAndGet(System.nanoTime() - start);
+    built.incrementAndGet();
+    return pooled;
+  }
+
+  private void scheduleRefill()
+  {
+    if (!refilling.compareAndSet(false, true)) {
+      return;
+    }
+    refiller.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (spares.size() < size) {
+            spares.add(build());
+          }
+        } catch (RuntimeException ex) {
+          log.warn("[EndpointPool::refill] Could not build a spare endpoint: {}",
+              ex.getMessage());
+          refilling.set(false);
+          return;
+        }
+        refilling.set(false);
+
+        // Spares taken after the last check would not trigger another refill
+        if (spares.size() < size) {
+          scheduleRefill();
+        }
+      }
+    });
+  }
+}
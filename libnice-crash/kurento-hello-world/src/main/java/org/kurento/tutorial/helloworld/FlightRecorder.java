@@ -0,0 +1,453 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Kurento Java Tutorial - Signaling flight recorder.
+ *
+ * Always-on recorder of the signaling messages and media server calls of this application, kept
+ * in a fixed-size memory-mapped ring file so that the last minutes before a failure can be
+ * inspected, even if the process was killed. The format is that of the group call tutorial, so its
+ * FlightReplay tool can replay these files too, against {@code /helloworld}.
+ *
+ * <p>
+ * Writers do not take any lock: each one reserves the space of its record with a single
+ * compare-and-set on a position that only grows, and copies the record into it while other
+ * threads fill theirs. Positions are mapped onto the ring modulo its size, and a record that would
+ * not fit before the end of the ring is written at its start instead, leaving a gap. The file
+ * starts with a {@value #HEADER_SIZE} byte header, followed by records aligned to 8 bytes:
+ * </p>
+ *
+ * <pre>
+ * i64 position | i32 run | u16 length | u8 type | u8 flags | i64 time (epoch micros) | i32 aux |
+ * u8 key length | key | value
+ * </pre>
+ *
+ * <p>
+ * The position of a record is written last, and a reader only takes a record whose position and
+ * run id match where it was found, so records still being written, gaps and leftovers of earlier
+ * laps or of earlier runs are skipped. For signaling records the key is the WebSocket session id
+ * and the value the JSON message; for media server calls the key is the operation and aux its
+ * duration in milliseconds. Values that do not fit a record are truncated, and flagged as such.
+ * Once the ring is full, the oldest records are overwritten.
+ * </p>
+ */
+public class FlightRecorder
+{
+
+  private static final Logger log = LoggerFactory.getLogger(FlightRecorder.class);
+
+  public enum Type
+  {
+    OPEN, CLOSE, IN, OUT, KMS;
+
+    static Type of(int code)
+    {
+      return values()[code - 1];
+    }
+
+    int code()
+    {
+      return ordinal() + 1;
+    }
+  }
+
+  public static final int FLAG_TRUNCATED = 1;
+  public static final int FLAG_FAILED = 2;
+
+  static final int HEADER_SIZE = 64;
+  private static final int MAGIC = 0x47434652; // "GCFR"
+  private static final int VERSION = 2;
+  private static final int ALIGNMENT = 8;
+  private static final int RECORD_HEADER_SIZE = 29;
+  private static final int MAX_RECORD_SIZE = 0xFFFF;
+  private static final int MAX_KEY_SIZE = 0xFF;
+
+  private static final int POS_CAPACITY = 8;
+  private static final int POS_RUN = 12;
+  private static final int POS_LAP = 16;
+
+  private static final String SESSION_ATTRIBUTE = FlightRecorder.class.getName();
+
+  /**
+   * A record read back from a ring file.
+   */
+  public static class Record
+  {
+    private final Type type;
+    private final int flags;
+    private final long timeMicros;
+    private final int aux;
+    private final String key;
+    private final String value;
+
+    Record(Type type, int flags, long timeMicros, int aux, String key, String value)
+    {
+      this.type = type;
+      this.flags = flags;
+      this.timeMicros = timeMicros;
+      this.aux = aux;
+      this.key = key;
+      this.value = value;
+    }
+
+    public Type getType()
+    {
+      return type;
+    }
+
+    public boolean isTruncated()
+    {
+      return (flags & FLAG_TRUNCATED) != 0;
+    }
+
+    public boolean isFailed()
+    {
+      return (flags & FLAG_FAILED) != 0;
+    }
+
+    public long getTimeMicros()
+    {
+      return timeMicros;
+    }
+
+    public int getAux()
+    {
+      return aux;
+    }
+
+    public String getKey()
+    {
+      return key;
+    }
+
+    public String getValue()
+    {
+      return value;
+    }
+  }
+
+  @Value("${helloworld.flight-recorder.enabled:true}")
+  private volatile boolean enabled;
+
+  @Value("${helloworld.flight-recorder.file:flight-recorder.bin}")
+  private String fileName;
+
+  @Value("${helloworld.flight-recorder.size-mb:64}")
+  private int sizeMb;
+
+  private MappedByteBuffer ring;
+  // Bytes of the ring available to records, after the header
+  private int dataSize;
+  // Tells the records of this run apart from those left in the file by earlier ones
+  private int run;
+
+  // Bytes reserved since the recorder started; a record at position p lives at
+  // HEADER_SIZE + p % dataSize
+  private final AtomicLong position = new AtomicLong();
+  private final LongAdder records = new LongAdder();
+
+  // Writes that threw; the first one disables the recorder
+  private final AtomicLong failures = new AtomicLong();
+
+  // Epoch time of nanoTime() == originNanos, so timestamps are monotonic
+  private long originMicros;
+  private long originNanos;
+
+  @PostConstruct
+  private void init()
+  {
+    if (!enabled) {
+      return;
+    }
+    final File file = new File(fileName);
+    final int capacity = Math.max(sizeMb, 1) * 1024 * 1024;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(capacity);
+      ring = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      log.warn("[FlightRecorder::init] Disabled, could not map {}: {}", file,
+          e.getMessage());
+      enabled = false;
+      return;
+    }
+    dataSize = capacity - HEADER_SIZE;
+    run = new Random().nextInt();
+    originMicros = System.currentTimeMillis() * 1000;
+    originNanos = System.nanoTime();
+
+    ring.putInt(0, MAGIC);
+    ring.putInt(4, VERSION);
+    ring.putInt(POS_CAPACITY, capacity);
+    ring.putInt(POS_RUN, run);
+    ring.putLong(POS_LAP, 0);
+    log.info("[FlightRecorder::init] Writing to {} ({} MiB)", file.getAbsolutePath(), sizeMb);
+  }
+
+  @PreDestroy
+  private void shutdown()
+  {
+    if (ring != null) {
+      ring.force();
+    }
+  }
+
+  /**
+   * Makes the messages sent through a session be recorded by {@link SignalingCodec}.
+   */
+  public void attach(WebSocketSession session)
+  {
+    if (enabled) {
+      session.getAttributes().put(SESSION_ATTRIBUTE, this);
+    }
+  }
+
+  /**
+   * Records a message sent through a session, if the session was attached to a recorder.
+   */
+  public static void recordOutbound(WebSocketSession session, String json)
+  {
+    final Object recorder = session.getAttributes().get(SESSION_ATTRIBUTE);
+    if (recorder != null) {
+      ((FlightRecorder) recorder).record(Type.OUT, 0, session.getId(), 0, json);
+    }
+  }
+
+  public void recordInbound(WebSocketSession session, String json)
+  {
+    record(Type.IN, 0, session.getId(), 0, json);
+  }
+
+  public void recordOpen(WebSocketSession session)
+  {
+    record(Type.OPEN, 0, session.getId(), 0, "");
+  }
+
+  public void recordClose(WebSocketSession session, int closeCode)
+  {
+    record(Type.CLOSE, 0, session.getId(), closeCode, "");
+  }
+
+  public void recordKmsCall(String operation, boolean success, long elapsedMs)
+  {
+    record(Type.KMS, success ? 0 : FLAG_FAILED, operation, (int) Math.min(elapsedMs,
+        Integer.MAX_VALUE), "");
+  }
+
+  public Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", enabled);
+    stats.put("records", records.sum());
+    stats.put("bytes", position.get());
+    stats.put("laps", dataSize > 0 ? position.get() / dataSize : 0);
+    stats.put("failures", failures.get());
+    stats.put("file", enabled ? new File(fileName).getAbsolutePath() : null);
+    return stats;
+  }
+
+  /**
+   * Records an event, unless the recorder is disabled. Never throws: the recorder is on the path of
+   * every signaling message and media server call, so a failed write only disables it.
+   */
+  private void record(Type type, int flags, String key, int aux, String value)
+  {
+    if (!enabled) {
+      return;
+    }
+    try {
+      append(type, flags, key, aux, value);
+    } catch (RuntimeException | InternalError e) {
+      enabled = false;
+      if (failures.getAndIncrement() == 0) {
+        log.error("[FlightRecorder::record] Disabled after a failed write", e);
+      }
+    }
+  }
+
+  private void append(Type type, int flags, String key, int aux, String value)
+  {
+    final long time = originMicros + (System.nanoTime() - originNanos) / 1000;
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > MAX_KEY_SIZE) {
+      keyBytes = Arrays.copyOf(keyBytes, MAX_KEY_SIZE);
+    }
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    final int maxValue = MAX_RECORD_SIZE - RECORD_HEADER_SIZE - keyBytes.length;
+    if (valueBytes.length > maxValue) {
+      valueBytes = Arrays.copyOf(valueBytes, maxValue);
+      flags |= FLAG_TRUNCATED;
+    }
+    final int length = RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length;
+
+    final long start = reserve(align(length));
+    final int offset = HEADER_SIZE + (int) (start % dataSize);
+    final ByteBuffer out = ring.duplicate();
+    out.position(offset + 8);
+    out.putInt(run);
+    out.putShort((short) length);
+    out.put((byte) type.code());
+    out.put((byte) flags);
+    out.putLong(time);
+    out.putInt(aux);
+    out.put((byte) keyBytes.length);
+    out.put(keyBytes);
+    out.put(valueBytes);
+    // The position goes last: until it is written, readers take the record for a leftover
+    ring.putLong(offset, start);
+    records.increment();
+  }
+
+  /**
+   * Reserves the space of a record.
+   *
+   * @return the position of the record, which never crosses the end of the ring
+   */
+  private long reserve(int size)
+  {
+    while (true) {
+      final long current = position.get();
+      final long lap = current / dataSize;
+      long start = current;
+      if (start % dataSize + size > dataSize) {
+        // Skip what is left of this lap; readers resynchronize at the start of the next one
+        start = (lap + 1) * dataSize;
+      }
+      if (position.compareAndSet(current, start + size)) {
+        if (start / dataSize != lap) {
+          ring.putLong(POS_LAP, start / dataSize);
+        }
+        return start;
+      }
+    }
+  }
+
+  private static int align(int length)
+  {
+    return (length + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  /**
+   * Reads the records of a ring file, oldest first.
+   *
+   * @throws IOException
+   *           if the file cannot be read or is not a flight recorder file
+   */
+  public static List<Record> read(File file) throws IOException
+  {
+    final ByteBuffer in;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    if (in.capacity() < HEADER_SIZE || in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+      throw new IOException(file + " is not a flight recorder file");
+    }
+    final int dataSize = in.getInt(POS_CAPACITY) - HEADER_SIZE;
+    final int run = in.getInt(POS_RUN);
+    long lap = in.getLong(POS_LAP);
+    // The writer that started a new lap may have died before updating the header
+    while (isRecordAt(in, dataSize, run, (lap + 1) * dataSize)) {
+      lap++;
+    }
+
+    final List<Record> current = new ArrayList<>();
+    final int end = readRange(in, dataSize, run, lap * dataSize, 0, current);
+    final List<Record> result = new ArrayList<>();
+    if (lap > 0) {
+      readRange(in, dataSize, run, (lap - 1) * dataSize, end, result);
+    }
+    result.addAll(current);
+    return result;
+  }
+
+  /**
+   * Reads the records of one lap of the ring from {@code from} to the end of the ring, skipping
+   * anything that is not a complete record of that lap.
+   *
+   * @return the offset after the last record read, or {@code from} if none was
+   */
+  private static int readRange(ByteBuffer in, int dataSize, int run, long lapStart, int from,
+      List<Record> result)
+  {
+    int end = from;
+    int offset = align(from);
+    while (offset + RECORD_HEADER_SIZE <= dataSize) {
+      if (!isRecordAt(in, dataSize, run, lapStart + offset)) {
+        offset += ALIGNMENT;
+        continue;
+      }
+      final ByteBuffer record = in.duplicate();
+      record.position(HEADER_SIZE + offset + 12);
+      final int length = record.getShort() & 0xFFFF;
+      final Type type = Type.of(record.get());
+      final int flags = record.get();
+      final long time = record.getLong();
+      final int aux = record.getInt();
+      final byte[] key = new byte[record.get() & 0xFF];
+      record.get(key);
+      final byte[] value = new byte[length - RECORD_HEADER_SIZE - key.length];
+      record.get(value);
+      result.add(new Record(type, flags, time, aux, new String(key, StandardCharsets.UTF_8),
+          new String(value, StandardCharsets.UTF_8)));
+      offset += align(length);
+      end = offset;
+    }
+    return end;
+  }
+
+  /** Whether a complete record of this run was written at a position. */
+  private static boolean isRecordAt(ByteBuffer in, int dataSize, int run, long position)
+  {
+    final int offset = (int) (position % dataSize);
+    if (offset + RECORD_HEADER_SIZE > dataSize) {
+      return false;
+    }
+    final int at = HEADER_SIZE + offset;
+    if (in.getLong(at) != position || in.getInt(at + 8) != run) {
+      return false;
+    }
+    final int length = in.getShort(at + 12) & 0xFFFF;
+    final int type = in.get(at + 14);
+    return length >= RECORD_HEADER_SIZE && offset + length <= dataSize
+        && type >= 1 && type <= Type.values().length
+        && (in.get(at + 28) & 0xFF) <= length - RECORD_HEADER_SIZE;
+  }
+}
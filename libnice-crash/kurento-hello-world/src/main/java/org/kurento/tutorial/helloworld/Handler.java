@@ -16,55 +16,106 @@
 
 package org.kurento.tutorial.helloworld;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 // Kurento client
-import org.kurento.client.BaseRtpEndpoint;
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 
 // Kurento events
-import org.kurento.client.ConnectionStateChangedEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.IceComponentStateChangedEvent;
-import org.kurento.client.IceGatheringDoneEvent;
-import org.kurento.client.MediaFlowInStateChangeEvent;
-import org.kurento.client.MediaFlowOutStateChangeEvent;
-import org.kurento.client.MediaStateChangedEvent;
-import org.kurento.client.MediaTranscodingStateChangeEvent;
-import org.kurento.client.NewCandidatePairSelectedEvent;
 
 
 /**
  * Kurento Java Tutorial - WebSocket message handler.
  */
-public class Handler extends TextWebSocketHandler
+public class Handler extends AbstractWebSocketHandler
 {
   private static final Logger log = LoggerFactory.getLogger(Handler.class);
-  private static final Gson gson = new GsonBuilder().create();
 
   private final ConcurrentHashMap<String, UserSession> users =
       new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Autowired
+  private EndpointPool endpointPool;
+
+  @Autowired
+  private EndpointEvents endpointEvents;
+
+  @Autowired
+  private StartupWarmup startupWarmup;
+
+  @Autowired
+  private FlightRecorder flightRecorder;
+
+  @Autowired
+  private SdpMunger sdpMunger;
+
+  // Shared by all endpoints; the Dispatcher of each one carries its PooledEndpoint
+  private final EndpointEvents.Callback endpointCallback =
+      new EndpointEvents.Callback() {
+    @Override
+    public void onError(EndpointEvents.Dispatcher dispatcher, ErrorEvent ev) {
+      final WebSocketSession session = ownerOf(dispatcher);
+      if (session != null) {
+        sendError(session, "[Kurento] " + ev.getDescription());
+        stop(session);
+      }
+    }
+
+    @Override
+    public void onIceCandidateFound(EndpointEvents.Dispatcher dispatcher,
+        IceCandidateFoundEvent ev) {
+      final WebSocketSession session = ownerOf(dispatcher);
+      if (session == null) {
+        return;
+      }
+      JsonObject message = new JsonObject();
+      message.addProperty("id", "ADD_ICE_CANDIDATE");
+      message.add("candidate", JsonUtils.toJsonObject(ev.getCandidate()));
+      sendMessage(session, message);
+    }
+  };
+
+  @PostConstruct
+  private void init()
+  {
+    // Endpoints get their listeners when built, before being assigned to a user
+    endpointPool.start(new EndpointPool.Initializer() {
+      @Override
+      public void init(EndpointPool.PooledEndpoint pooled) {
+        log.info("[Handler::init] Subscribe to events, name: {}",
+            pooled.getEndpoint().getName());
+        pooled.setEvents(endpointEvents.subscribe(pooled.getEndpoint(),
+            endpointCallback, pooled));
+      }
+    });
+  }
+
+  private static WebSocketSession ownerOf(EndpointEvents.Dispatcher dispatcher)
+  {
+    return ((EndpointPool.PooledEndpoint) dispatcher.getAttachment()).getOwner();
+  }
 
   /**
    * Invoked after WebSocket negotiation has succeeded and the WebSocket connection is
@@ -76,6 +127,8 @@ public class Handler extends TextWebSocketHandler
   {
     log.info("[Handler::afterConnectionEstablished] New WebSocket connection, sessionId: {}",
         session.getId());
+    flightRecorder.attach(session);
+    flightRecorder.recordOpen(session);
   }
 
   /**
@@ -88,6 +141,7 @@ public class Handler extends TextWebSocketHandler
   public void afterConnectionClosed(final WebSocketSession session,
       CloseStatus status) throws Exception
   {
+    flightRecorder.recordClose(session, status.getCode());
     if (!status.equalsCode(CloseStatus.NORMAL)) {
       log.warn("[Handler::afterConnectionClosed] status: {}, sessionId: {}",
           status, session.getId());
@@ -97,22 +151,60 @@ public class Handler extends TextWebSocketHandler
   }
 
   /**
-   * Invoked when a new WebSocket message arrives.
+   * Invoked when a new WebSocket text message arrives.
    */
   @Override
   protected void handleTextMessage(WebSocketSession session,
       TextMessage message) throws Exception
+  {
+    handleFrame(session, message);
+  }
+
+  /**
+   * Invoked when a new WebSocket binary message arrives; only sent by clients
+   * that use the compact signaling encoding.
+   */
+  @Override
+  protected void handleBinaryMessage(WebSocketSession session,
+      BinaryMessage message) throws Exception
+  {
+    handleFrame(session, message);
+  }
+
+  private void handleFrame(final WebSocketSession session,
+      WebSocketMessage<?> message)
+  {
+    final Tracing.Span trace = Tracing.startTrace("message");
+    try {
+      handleFrame(session, message, trace);
+    } finally {
+      trace.end();
+    }
+  }
+
+  private void handleFrame(final WebSocketSession session,
+      WebSocketMessage<?> message, Tracing.Span trace)
   {
     final String sessionId = session.getId();
-    JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-        JsonObject.class);
+    final Tracing.Span decode = Tracing.start("decode");
+    final JsonObject jsonMessage;
+    try {
+      jsonMessage = SignalingCodec.decode(message);
+    } finally {
+      decode.end();
+    }
+    flightRecorder.recordInbound(session, jsonMessage.toString());
 
-    log.info("[Handler::handleTextMessage] message: {}, sessionId: {}",
+    log.info("[Handler::handleFrame] message: {}, sessionId: {}",
         jsonMessage, sessionId);
 
     try {
       final String messageId = jsonMessage.get("id").getAsString();
+      trace.rename(messageId);
       switch (messageId) {
+        case "SET_ENCODING":
+          handleSetEncoding(session, jsonMessage);
+          break;
         case "PROCESS_SDP_OFFER":
           // Start: Create user session and process SDP Offer
           handleProcessSdpOffer(session, jsonMessage);
@@ -128,12 +220,13 @@ public class Handler extends TextWebSocketHandler
           break;
         default:
           // Ignore the message
-          log.warn("[Handler::handleTextMessage] Skip, invalid message, id: {}",
+          log.warn("[Handler::handleFrame] Skip, invalid message, id: {}",
               messageId);
           break;
       }
     } catch (Throwable ex) {
-      log.error("[Handler::handleTextMessage] Exception: {}, sessionId: {}",
+      trace.fail();
+      log.error("[Handler::handleFrame] Exception: {}, sessionId: {}",
           ex, sessionId);
       sendError(session, "[Kurento] Exception: " + ex.getMessage());
     }
@@ -152,8 +245,13 @@ public class Handler extends TextWebSocketHandler
     session.close(CloseStatus.SERVER_ERROR);
   }
 
-  private synchronized void sendMessage(final WebSocketSession session,
-      String message)
+  /**
+   * Sends are serialized per session by {@link OutboundLanes}, as a WebSocket
+   * session does not allow concurrent sends; the SDP answer goes ahead of any
+   * queued candidates, and different users never wait for each other.
+   */
+  private void sendMessage(final WebSocketSession session,
+      JsonObject message)
   {
     log.debug("[Handler::sendMessage] {}", message);
 
@@ -170,7 +268,7 @@ public class Handler extends TextWebSocketHandler
     }
 
     try {
-      session.sendMessage(new TextMessage(message));
+      OutboundLanes.send(session, message);
     } catch (IOException ex) {
       log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
     }
@@ -184,151 +282,28 @@ public class Handler extends TextWebSocketHandler
       JsonObject message = new JsonObject();
       message.addProperty("id", "ERROR");
       message.addProperty("message", errMsg);
-      sendMessage(session, message.toString());
+      sendMessage(session, message);
     }
   }
 
-  // PROCESS_SDP_OFFER ---------------------------------------------------------
+  // SET_ENCODING --------------------------------------------------------------
 
-  private void initBaseEventListeners(final WebSocketSession session,
-      BaseRtpEndpoint baseRtpEp, final String className)
+  private void handleSetEncoding(final WebSocketSession session,
+      JsonObject jsonMessage)
   {
-    log.info("[Handler::initBaseEventListeners] name: {}, class: {}, sessionId: {}",
-        baseRtpEp.getName(), className, session.getId());
-
-    // Event: Some error happened
-    baseRtpEp.addErrorListener(new EventListener<ErrorEvent>() {
-      @Override
-      public void onEvent(ErrorEvent ev) {
-        log.error("[{}::ErrorEvent] Error code {}: '{}', source: {}, timestamp: {}, tags: {}, description: {}",
-            className, ev.getErrorCode(), ev.getType(), ev.getSource().getName(),
-            ev.getTimestamp(), ev.getTags(), ev.getDescription());
-
-        sendError(session, "[Kurento] " + ev.getDescription());
-        stop(session);
-      }
-    });
+    final String encoding = jsonMessage.get("encoding").getAsString();
+    log.info("[Handler::handleSetEncoding] encoding: {}, sessionId: {}",
+        encoding, session.getId());
 
-    // Event: Media is flowing into this sink
-    baseRtpEp.addMediaFlowInStateChangeListener(
-        new EventListener<MediaFlowInStateChangeEvent>() {
-      @Override
-      public void onEvent(MediaFlowInStateChangeEvent ev) {
-        log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
-      }
-    });
-
-    // Event: Media is flowing out of this source
-    baseRtpEp.addMediaFlowOutStateChangeListener(
-        new EventListener<MediaFlowOutStateChangeEvent>() {
-      @Override
-      public void onEvent(MediaFlowOutStateChangeEvent ev) {
-        log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
-      }
-    });
-
-    // Event: [TODO write meaning of this event]
-    baseRtpEp.addConnectionStateChangedListener(
-        new EventListener<ConnectionStateChangedEvent>() {
-      @Override
-      public void onEvent(ConnectionStateChangedEvent ev) {
-        log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getOldState(), ev.getNewState());
-      }
-    });
-
-    // Event: [TODO write meaning of this event]
-    baseRtpEp.addMediaStateChangedListener(
-        new EventListener<MediaStateChangedEvent>() {
-      @Override
-      public void onEvent(MediaStateChangedEvent ev) {
-        log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getOldState(), ev.getNewState());
-      }
-    });
-
-    // Event: This element will (or will not) perform media transcoding
-    baseRtpEp.addMediaTranscodingStateChangeListener(
-        new EventListener<MediaTranscodingStateChangeEvent>() {
-      @Override
-      public void onEvent(MediaTranscodingStateChangeEvent ev) {
-        log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, binName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getState(), ev.getBinName(), ev.getMediaType());
-      }
-    });
+    SignalingCodec.setEncoding(session, "compact".equals(encoding)
+        ? SignalingCodec.Encoding.COMPACT : SignalingCodec.Encoding.TEXT);
   }
 
-  private void initWebRtcEventListeners(final WebSocketSession session,
-      final WebRtcEndpoint webRtcEp)
-  {
-    log.info("[Handler::initWebRtcEventListeners] name: {}, sessionId: {}",
-        webRtcEp.getName(), session.getId());
-
-    // Event: The ICE backend found a local candidate during Trickle ICE
-    webRtcEp.addIceCandidateFoundListener(
-        new EventListener<IceCandidateFoundEvent>() {
-      @Override
-      public void onEvent(IceCandidateFoundEvent ev) {
-        log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, candidate: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), JsonUtils.toJson(ev.getCandidate()));
-
-        JsonObject message = new JsonObject();
-        message.addProperty("id", "ADD_ICE_CANDIDATE");
-        message.add("candidate", JsonUtils.toJsonObject(ev.getCandidate()));
-        sendMessage(session, message.toString());
-      }
-    });
-
-    // Event: The ICE backend changed state
-    webRtcEp.addIceComponentStateChangedListener(
-        new EventListener<IceComponentStateChangedEvent>() {
-      @Override
-      public void onEvent(IceComponentStateChangedEvent ev) {
-        log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, streamId: {}, componentId: {}, state: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getStreamId(), ev.getComponentId(), ev.getState());
-      }
-    });
-
-    // Event: The ICE backend finished gathering ICE candidates
-    webRtcEp.addIceGatheringDoneListener(
-        new EventListener<IceGatheringDoneEvent>() {
-      @Override
-      public void onEvent(IceGatheringDoneEvent ev) {
-        log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags());
-      }
-    });
-
-    // Event: The ICE backend selected a new pair of ICE candidates for use
-    webRtcEp.addNewCandidatePairSelectedListener(
-        new EventListener<NewCandidatePairSelectedEvent>() {
-      @Override
-      public void onEvent(NewCandidatePairSelectedEvent ev) {
-        log.info("[WebRtcEndpoint::{}] name: {}, timestamp: {}, tags: {}, streamId: {}, local: {}, remote: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), ev.getCandidatePair().getStreamID(),
-            ev.getCandidatePair().getLocalCandidate(),
-            ev.getCandidatePair().getRemoteCandidate());
-      }
-    });
-  }
+  // PROCESS_SDP_OFFER ---------------------------------------------------------
 
   private void initWebRtcEndpoint(final WebSocketSession session,
-      final WebRtcEndpoint webRtcEp, String sdpOffer)
+      final WebRtcEndpoint webRtcEp, final String sdpOffer)
   {
-    initBaseEventListeners(session, webRtcEp, "WebRtcEndpoint");
-    initWebRtcEventListeners(session, webRtcEp);
-
     final String sessionId = session.getId();
     final String name = "user" + sessionId + "_webrtcendpoint";
     webRtcEp.setName(name);
@@ -345,8 +320,17 @@ public class Handler extends TextWebSocketHandler
     webRtcEp.setStunServerPort(3478);
     */
 
+    // Apply the configured codec filter and bitrate cap, if any
+    final String mungedOffer = sdpMunger.munge(sdpOffer);
+
     // Continue the SDP Negotiation: Generate an SDP Answer
-    final String sdpAnswer = webRtcEp.processOffer(sdpOffer);
+    final String sdpAnswer = sdpMunger.munge(kmsBreaker.call("processOffer",
+        new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return webRtcEp.processOffer(mungedOffer);
+      }
+    }));
 
     log.info("[Handler::initWebRtcEndpoint] name: {}, SDP Offer from browser to KMS:\n{}",
         name, sdpOffer);
@@ -356,15 +340,20 @@ public class Handler extends TextWebSocketHandler
     JsonObject message = new JsonObject();
     message.addProperty("id", "PROCESS_SDP_ANSWER");
     message.addProperty("sdpAnswer", sdpAnswer);
-    sendMessage(session, message.toString());
+    sendMessage(session, message);
   }
 
-  private void startWebRtcEndpoint(WebRtcEndpoint webRtcEp)
+  private void startWebRtcEndpoint(final WebRtcEndpoint webRtcEp)
   {
     // Calling gatherCandidates() is when the Endpoint actually starts working.
     // In this tutorial, this is emphasized for demonstration purposes by
     // launching the ICE candidate gathering in its own method.
-    webRtcEp.gatherCandidates();
+    kmsBreaker.run("gatherCandidates", new Runnable() {
+      @Override
+      public void run() {
+        webRtcEp.gatherCandidates();
+      }
+    });
   }
 
   private void handleProcessSdpOffer(final WebSocketSession session,
@@ -372,6 +361,7 @@ public class Handler extends TextWebSocketHandler
   {
     // ---- Session handling
 
+    final long start = System.nanoTime();
     final String sessionId = session.getId();
 
     log.info("[Handler::handleStart] User count: {}", users.size());
@@ -379,19 +369,25 @@ public class Handler extends TextWebSocketHandler
 
     final UserSession user = new UserSession();
     users.put(sessionId, user);
+    SignalingCodec.countJoin();
 
 
     // ---- Media pipeline
 
-    log.info("[Handler::handleStart] Create Media Pipeline");
+    log.info("[Handler::handleStart] Take Media Pipeline and WebRtcEndpoint");
 
-    final MediaPipeline pipeline = kurento.createMediaPipeline();
+    final EndpointPool.PooledEndpoint pooled;
+    final Tracing.Span take = Tracing.start("EndpointPool.take");
+    try {
+      pooled = endpointPool.take(session);
+    } finally {
+      take.end();
+    }
+    user.setPooledEndpoint(pooled);
+    final MediaPipeline pipeline = pooled.getPipeline();
     user.setMediaPipeline(pipeline);
-
-    final WebRtcEndpoint webRtcEp =
-        new WebRtcEndpoint.Builder(pipeline).build();
+    final WebRtcEndpoint webRtcEp = pooled.getEndpoint();
     user.setWebRtcEndpoint(webRtcEp);
-    webRtcEp.connect(webRtcEp);
 
 
     // ---- Endpoint configuration
@@ -406,6 +402,7 @@ public class Handler extends TextWebSocketHandler
     // ---- Endpoint startup
 
     startWebRtcEndpoint(webRtcEp);
+    startupWarmup.recordStart(System.nanoTime() - start);
 
 
     // ---- Debug
@@ -437,8 +434,13 @@ public class Handler extends TextWebSocketHandler
         jsonCandidate.get("sdpMid").getAsString(),
         jsonCandidate.get("sdpMLineIndex").getAsInt());
 
-    WebRtcEndpoint webRtcEp = user.getWebRtcEndpoint();
-    webRtcEp.addIceCandidate(candidate);
+    final WebRtcEndpoint webRtcEp = user.getWebRtcEndpoint();
+    kmsBreaker.run("addIceCandidate", new Runnable() {
+      @Override
+      public void run() {
+        webRtcEp.addIceCandidate(candidate);
+      }
+    });
   }
 
   // STOP ----------------------------------------------------------------------
@@ -447,6 +449,15 @@ public class Handler extends TextWebSocketHandler
   {
     // Remove the user session and release all resources
     UserSession user = users.remove(session.getId());
+    if (user == null) {
+      return;
+    }
+
+    // The pipeline may be shared with other users: release only what this
+    // user owns, and give its slot back
+    if (user.getPooledEndpoint() != null) {
+      endpointPool.release(user.getPooledEndpoint());
+    }
     user = null;  // No more references, all data gets garbage-collected
   }
 
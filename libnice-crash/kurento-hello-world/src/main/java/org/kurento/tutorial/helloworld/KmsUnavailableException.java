@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+/**
+ * Thrown when a call to the media server is refused because the {@link KmsCircuitBreaker} is
+ * open, or because the call did not complete within its configured timeout.
+ */
+public class KmsUnavailableException extends RuntimeException
+{
+
+  private static final long serialVersionUID = 1L;
+
+  public KmsUnavailableException(String message)
+  {
+    super(message);
+  }
+
+  public KmsUnavailableException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Kurento Java Tutorial - Outbound signaling lanes.
+ *
+ * Outbound signaling queue of a WebSocket session, split into priority lanes
+ * so that the SDP answer is never held behind the ICE candidates that KMS
+ * starts finding as soon as the endpoint is created. Every message sent to a
+ * client goes through {@link #send}: it is queued in the lane of its type,
+ * and the first thread finding the session idle sends queued messages,
+ * highest lane first, until all lanes are empty; other threads just queue and
+ * return. Time spent queued is accounted per lane.
+ */
+public final class OutboundLanes
+{
+
+  public enum Lane
+  {
+    /** SDP answers, and errors that end the session. */
+    NEGOTIATION,
+    /** ICE candidates. */
+    CANDIDATES
+  }
+
+  private static final String SESSION_ATTRIBUTE = OutboundLanes.class.getName();
+
+  private static final LaneCounters[] counters = new LaneCounters[Lane.values().length];
+
+  static
+  {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LaneCounters();
+    }
+  }
+
+  private static class Pending
+  {
+    final JsonObject message;
+    final Lane lane;
+    final long queuedAt = System.nanoTime();
+
+    Pending(JsonObject message, Lane lane)
+    {
+      this.message = message;
+      this.lane = lane;
+    }
+  }
+
+  private final WebSocketSession session;
+
+  // Guarded by "this"
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private final ArrayDeque<Pending>[] queues = new ArrayDeque[Lane.values().length];
+  private boolean sending;
+
+  private OutboundLanes(WebSocketSession session)
+  {
+    this.session = session;
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Queues a message for a session, and sends it unless another thread is already sending to the
+   * session, in which case that thread will.
+   *
+   * @throws IOException
+   *           if the session is closed, or sending failed; the messages still queued for the
+   *           session are then dropped
+   */
+  public static void send(WebSocketSession session, JsonObject message) throws IOException
+  {
+    if (!session.isOpen()) {
+      throw new IOException("Session " + session.getId() + " is closed");
+    }
+    Object lanes = session.getAttributes().get(SESSION_ATTRIBUTE);
+    if (lanes == null) {
+      final Object created = new OutboundLanes(session);
+      lanes = session.getAttributes().putIfAbsent(SESSION_ATTRIBUTE, created);
+      if (lanes == null) {
+        lanes = created;
+      }
+    }
+    ((OutboundLanes) lanes).enqueue(message);
+  }
+
+  public static Lane laneOf(JsonObject message)
+  {
+    switch (message.get("id").getAsString()) {
+      case "ADD_ICE_CANDIDATE":
+        return Lane.CANDIDATES;
+      default:
+        return Lane.NEGOTIATION;
+    }
+  }
+
+  public static Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    for (final Lane lane : Lane.values()) {
+      stats.put(lane.name().toLowerCase(), counters[lane.ordinal()].toMap());
+    }
+    return stats;
+  }
+
+  private void enqueue(JsonObject message) throws IOException
+  {
+    final Lane lane = laneOf(message);
+    synchronized (this) {
+      queues[lane.ordinal()].add(new Pending(message, lane));
+      if (sending) {
+        return;
+      }
+      sending = true;
+    }
+    drain();
+  }
+
+  private void drain() throws IOException
+  {
+    while (true) {
+      final Pending next;
+      synchronized (this) {
+        next = poll();
+        if (next == null) {
+          sending = false;
+          return;
+        }
+      }
+
+      final WebSocketMessage<?> frame = SignalingCodec.encode(session, next.message);
+      try {
+        synchronized (session) {
+          session.sendMessage(frame);
+        }
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          counters[next.lane.ordinal()].dropped.incrementAndGet();
+          for (final ArrayDeque<Pending> queue : queues) {
+            for (final Pending dropped : queue) {
+              counters[dropped.lane.ordinal()].dropped.incrementAndGet();
+            }
+            queue.clear();
+          }
+          sending = false;
+        }
+        throw e;
+      }
+      counters[next.lane.ordinal()].sent(next.queuedAt);
+    }
+  }
+
+  private Pending poll()
+  {
+    for (final ArrayDeque<Pending> queue : queues) {
+      if (!queue.isEmpty()) {
+        return queue.poll();
+      }
+    }
+    return null;
+  }
+
+  private static class LaneCounters
+  {
+    // Waits in buckets of powers of two microseconds: [0, 1), [1, 2), [2, 4)...
+    private static final int BUCKETS = 32;
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong waitMicros = new AtomicLong();
+    final AtomicLong maxWaitMicros = new AtomicLong();
+    final AtomicLongArray waitBuckets = new AtomicLongArray(BUCKETS);
+
+    void sent(long queuedAt)
+    {
+      final long micros = (System.nanoTime() - queuedAt) / 1000;
+      sent.incrementAndGet();
+      waitMicros.addAndGet(micros);
+      long max = maxWaitMicros.get();
+      while (micros > max && !maxWaitMicros.compareAndSet(max, micros)) {
+        max = maxWaitMicros.get();
+      }
+      waitBuckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+    }
+
+    /** Upper bound of the bucket holding the given fraction of the waits, in microseconds. */
+    long percentile(double fraction)
+    {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        total += waitBuckets.get(i);
+      }
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += waitBuckets.get(i);
+        if (seen > 0 && seen >= total * fraction) {
+          return 1L << i;
+        }
+      }
+      return 0;
+    }
+
+    Map<String, Object> toMap()
+    {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      final long sentCount = sent.get();
+      map.put("sent", sentCount);
+      map.put("dropped", dropped.get());
+      map.put("meanWaitMicros", sentCount > 0 ? waitMicros.get() / sentCount : 0);
+      map.put("p50WaitMicros", percentile(0.5));
+      map.put("p99WaitMicros", percentile(0.99));
+      map.put("maxWaitMicros", maxWaitMicros.get());
+      return map;
+    }
+  }
+}
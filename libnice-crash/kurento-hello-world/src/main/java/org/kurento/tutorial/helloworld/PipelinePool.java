@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+// Kurento client
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+
+/**
+ * Kurento Java Tutorial - Media Pipelines shared by the loopback sessions.
+ *
+ * Each user only needs one WebRtcEndpoint connected to itself, so up to
+ * "helloworld.pipeline.users-per-pipeline" users are packed into the same
+ * Media Pipeline instead of paying for one GStreamer pipeline (and its
+ * threads) each. New users go to the fullest pipeline that still has room, so
+ * that the least used ones empty out and get released.
+ *
+ * With the default of 1 user per pipeline, every user gets its own pipeline.
+ *
+ * Pipelines are created outside the pool lock, so that a slow KMS does not
+ * hold up the users that fit in an existing pipeline, or those releasing one.
+ * A pipeline being created already counts against the limit, and users that
+ * arrive meanwhile reserve its remaining slots and wait for it.
+ */
+public class PipelinePool
+{
+  private static final Logger log = LoggerFactory.getLogger(PipelinePool.class);
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${helloworld.pipeline.users-per-pipeline:1}")
+  private int usersPerPipeline;
+
+  @Value("${helloworld.pipeline.max-pipelines:0}")
+  private int maxPipelines;
+
+  // Pipeline -> number of users assigned to it
+  private final Map<MediaPipeline, Integer> users = new IdentityHashMap<>();
+
+  // Pipelines being created, guarded by "this" like "users"
+  private final List<PendingPipeline> pending = new ArrayList<>();
+
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong released = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Assigns a pipeline to a new user, creating it if all are full.
+   *
+   * @throws KmsUnavailableException if all "helloworld.pipeline.max-pipelines"
+   *     pipelines are full, or KMS cannot create a new one
+   */
+  public MediaPipeline acquire()
+  {
+    final PendingPipeline creation;
+    synchronized (this) {
+      MediaPipeline best = null;
+      int bestUsers = 0;
+      for (Map.Entry<MediaPipeline, Integer> entry : users.entrySet()) {
+        final int count = entry.getValue();
+        if (count < usersPerPipeline && count > bestUsers) {
+          best = entry.getKey();
+          bestUsers = count;
+        }
+      }
+      if (best != null) {
+        users.put(best, bestUsers + 1);
+        acquired.incrementAndGet();
+        return best;
+      }
+
+      for (PendingPipeline candidate : pending) {
+        if (candidate.reserved < usersPerPipeline) {
+          candidate.reserved++;
+          return awaitCreation(candidate);
+        }
+      }
+
+      if (maxPipelines > 0 && users.size() + pending.size() >= maxPipelines) {
+        rejected.incrementAndGet();
+        throw new KmsUnavailableException("All " + maxPipelines
+            + " shared pipelines are full");
+      }
+      creation = new PendingPipeline();
+      pending.add(creation);
+    }
+
+    MediaPipeline pipeline = null;
+    RuntimeException failure = null;
+    try {
+      pipeline = kmsBreaker.call("createMediaPipeline",
+          new Callable<MediaPipeline>() {
+        @Override
+        public MediaPipeline call() throws Exception {
+          return kurento.createMediaPipeline();
+        }
+      });
+    } catch (RuntimeException ex) {
+      failure = ex;
+    }
+
+    synchronized (this) {
+      pending.remove(creation);
+      creation.pipeline = pipeline;
+      creation.failed = failure != null;
+      creation.done = true;
+      notifyAll();
+      if (failure != null) {
+        throw failure;
+      }
+      users.put(pipeline, creation.reserved);
+      created.incrementAndGet();
+      acquired.incrementAndGet();
+      log.info("[PipelinePool::acquire] New Media Pipeline, total: {}",
+          users.size());
+      return pipeline;
+    }
+  }
+
+  /**
+   * Waits, holding the pool lock, for a pipeline another user is creating and
+   * in which a slot was reserved for this one.
+   */
+  private MediaPipeline awaitCreation(PendingPipeline creation)
+  {
+    while (!creation.done) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        if (!creation.done) {
+          creation.reserved--;
+          throw new KmsUnavailableException(
+              "Interrupted while waiting for a new Media Pipeline", ex);
+        }
+      }
+    }
+    if (creation.failed) {
+      throw new KmsUnavailableException("Could not create a new Media Pipeline");
+    }
+    acquired.incrementAndGet();
+    return creation.pipeline;
+  }
+
+  /**
+   * Returns the slot of a user; the pipeline is released once it has no users.
+   */
+  public void release(final MediaPipeline pipeline)
+  {
+    synchronized (this) {
+      final Integer count = users.get(pipeline);
+      if (count == null) {
+        return;
+      }
+      if (count > 1) {
+        users.put(pipeline, count - 1);
+        return;
+      }
+      users.remove(pipeline);
+    }
+
+    released.incrementAndGet();
+    kmsBreaker.release(pipeline, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.debug("[PipelinePool::release] Released Media Pipeline {}",
+            pipeline.getId());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("[PipelinePool::release] Could not release Media Pipeline {}",
+            pipeline.getId(), cause);
+      }
+    });
+  }
+
+  public Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final int pipelines;
+    int assigned = 0;
+    synchronized (this) {
+      pipelines = users.size();
+      for (int count : users.values()) {
+        assigned += count;
+      }
+    }
+    stats.put("usersPerPipeline", usersPerPipeline);
+    stats.put("pipelines", pipelines);
+    stats.put("users", assigned);
+    stats.put("acquired", acquired.get());
+    stats.put("created", created.get());
+    stats.put("released", released.get());
+    stats.put("rejected", rejected.get());
+    return stats;
+  }
+
+  private static class PendingPipeline
+  {
+    // Users the pipeline will hold when created, including its creator
+    int reserved = 1;
+    boolean done;
+    boolean failed;
+    MediaPipeline pipeline;
+  }
+}
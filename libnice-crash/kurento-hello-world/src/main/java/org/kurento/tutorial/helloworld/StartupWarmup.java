@@ -0,0 +1,187 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+
+// Kurento client
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * Kurento Java Tutorial - Startup time and warm-up.
+ *
+ * Reports how long the application takes to become ready and to serve its
+ * first user, and, once ready, warms up what that user would otherwise find
+ * cold: the JSON-RPC connection to KMS, the client proxies of pipelines and
+ * endpoints (by building and releasing a throwaway pipeline), and the
+ * signaling parser and codec. The web server is already listening by then, so
+ * early users are served while the warm-up runs.
+ */
+public class StartupWarmup implements ApplicationListener<ApplicationReadyEvent>
+{
+  private static final Logger log = LoggerFactory.getLogger(StartupWarmup.class);
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${helloworld.warmup.enabled:true}")
+  private boolean enabled;
+
+  @Value("${helloworld.warmup.pipeline:true}")
+  private boolean warmPipeline;
+
+  private volatile long readyMs = -1;
+  private volatile long warmupMs = -1;
+  private volatile boolean warmupOk;
+  private volatile long firstStartMs = -1;
+
+  private final AtomicLong starts = new AtomicLong();
+  private final AtomicLong startNanos = new AtomicLong();
+
+  @Override
+  public void onApplicationEvent(ApplicationReadyEvent event)
+  {
+    readyMs = System.currentTimeMillis()
+        - ManagementFactory.getRuntimeMXBean().getStartTime();
+    final String archive = getSharedArchive();
+    log.info("[StartupWarmup::onApplicationEvent] Ready {} ms after JVM start, class data sharing: {}",
+        readyMs, archive != null ? archive : "off");
+
+    if (!enabled) {
+      return;
+    }
+
+    final long start = System.nanoTime();
+    try {
+      warmUp();
+      warmupOk = true;
+    } catch (RuntimeException ex) {
+      log.warn("[StartupWarmup::onApplicationEvent] Warm-up failed: {}",
+          ex.getMessage());
+    }
+    warmupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    log.info("[StartupWarmup::onApplicationEvent] Warm-up took {} ms", warmupMs);
+  }
+
+  /**
+   * Accounts for the time taken to handle a PROCESS_SDP_OFFER, up to the
+   * sending of its answer.
+   */
+  public void recordStart(long nanos)
+  {
+    if (starts.getAndIncrement() == 0) {
+      firstStartMs = TimeUnit.NANOSECONDS.toMillis(nanos);
+      log.info("[StartupWarmup::recordStart] First user took {} ms",
+          firstStartMs);
+    }
+    startNanos.addAndGet(nanos);
+  }
+
+  public Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final long startCount = starts.get();
+    stats.put("readyMs", readyMs);
+    stats.put("warmupEnabled", enabled);
+    stats.put("warmupOk", warmupOk);
+    stats.put("warmupMs", warmupMs);
+    stats.put("classDataSharing", getSharedArchive());
+    stats.put("firstStartMs", firstStartMs);
+    stats.put("starts", startCount);
+    stats.put("avgStartMs", startCount > 0
+        ? TimeUnit.NANOSECONDS.toMillis(startNanos.get() / startCount) : 0);
+    return stats;
+  }
+
+  private void warmUp()
+  {
+    SignalingCodec.warmUp();
+
+    final String version = kmsBreaker.call("getServerInfo",
+        new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return kurento.getServerManager().getInfo().getVersion();
+      }
+    });
+    log.info("[StartupWarmup::warmUp] Connected to KMS {}", version);
+
+    if (!warmPipeline) {
+      return;
+    }
+    final MediaPipeline pipeline = kmsBreaker.call("createMediaPipeline",
+        new Callable<MediaPipeline>() {
+      @Override
+      public MediaPipeline call() throws Exception {
+        return kurento.createMediaPipeline();
+      }
+    });
+    try {
+      kmsBreaker.run("createWebRtcEndpoint", new Runnable() {
+        @Override
+        public void run() {
+          final WebRtcEndpoint webRtcEp =
+              new WebRtcEndpoint.Builder(pipeline).build();
+          webRtcEp.connect(webRtcEp);
+        }
+      });
+    } finally {
+      kmsBreaker.release(pipeline, new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+          log.debug("[StartupWarmup::warmUp] Released warm-up pipeline");
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.warn("[StartupWarmup::warmUp] Could not release warm-up pipeline",
+              cause);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return The class data sharing archive the JVM was started with, or null
+   */
+  private static String getSharedArchive()
+  {
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.startsWith("-XX:SharedArchiveFile=")) {
+        return arg.substring(arg.indexOf('=') + 1);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Kurento Java Tutorial - Runtime counters, served as JSON under "/stats".
+ */
+@RequestMapping("/stats")
+public class StatsController
+{
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Autowired
+  private SdpMunger sdpMunger;
+
+  @Autowired
+  private PipelinePool pipelinePool;
+
+  @Autowired
+  private EndpointPool endpointPool;
+
+  @Autowired
+  private EndpointEvents endpointEvents;
+
+  @Autowired
+  private StartupWarmup startupWarmup;
+
+  @Autowired
+  private FlightRecorder flightRecorder;
+
+  @Autowired
+  private TraceExporter traceExporter;
+
+  @Autowired
+  private StaticAssets staticAssets;
+
+  @RequestMapping(method = RequestMethod.GET)
+  @ResponseBody
+  public Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("kms", kmsBreaker.getStats());
+    stats.put("signaling", SignalingCodec.getStats());
+    stats.put("lanes", OutboundLanes.getStats());
+    stats.put("sdp", sdpMunger.getStats());
+    stats.put("pipelines", pipelinePool.getStats());
+    stats.put("endpoints", endpointPool.getStats());
+    stats.put("events", endpointEvents.getStats());
+    stats.put("startup", startupWarmup.getStats());
+    stats.put("flightRecorder", flightRecorder.getStats());
+    stats.put("tracing", traceExporter.getStats());
+    stats.put("assets", staticAssets.getStats());
+    return stats;
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Kurento Java Tutorial - Trace exporter.
+ *
+ * Collects the traces finished by {@link Tracing} for the configured message types: keeps the last
+ * of them in memory, for the per-stage latency summary reported under "tracing" in {@code /stats},
+ * and appends them to a file, one JSON object per line, for offline analysis. The file format is
+ * that of the group call tutorial, so its TraceExporter prints the same summary for these files.
+ *
+ * <p>
+ * The summary gives the median and 99th percentile, per stage, of the time each trace spent in it;
+ * a stage entered several times by a trace counts once with the sum of its spans.
+ * </p>
+ */
+public class TraceExporter
+{
+
+  private static final Logger log = LoggerFactory.getLogger(TraceExporter.class);
+
+  @Value("${helloworld.tracing.enabled:true}")
+  private boolean enabled;
+
+  @Value("${helloworld.tracing.messages:PROCESS_SDP_OFFER}")
+  private String[] messages;
+
+  @Value("${helloworld.tracing.file:}")
+  private String fileName;
+
+  @Value("${helloworld.tracing.keep:1000}")
+  private int keep;
+
+  private final Set<String> traced = new HashSet<>();
+
+  // Stage durations of the last traces, in milliseconds, guarded by "this"
+  private final ArrayDeque<Map<String, Double>> recent = new ArrayDeque<>();
+  private Writer file;
+
+  private final AtomicLong exported = new AtomicLong();
+  private final AtomicLong writeErrors = new AtomicLong();
+
+  @PostConstruct
+  private void init()
+  {
+    if (!enabled) {
+      return;
+    }
+    traced.addAll(Arrays.asList(messages));
+    if (!fileName.isEmpty()) {
+      try {
+        file = new OutputStreamWriter(new FileOutputStream(fileName, true),
+            StandardCharsets.UTF_8);
+        log.info("[TraceExporter::init] Writing traces of {} to {}", traced,
+            new File(fileName).getAbsolutePath());
+      } catch (IOException e) {
+        log.warn("[TraceExporter::init] Could not open {}, keeping traces in memory only: {}",
+            fileName, e.getMessage());
+      }
+    }
+    Tracing.setExporter(this);
+  }
+
+  @PreDestroy
+  private synchronized void shutdown()
+  {
+    Tracing.setExporter(null);
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        log.debug("[TraceExporter::shutdown] Could not close trace file: {}", e.getMessage());
+      }
+      file = null;
+    }
+  }
+
+  void export(Tracing.Span root)
+  {
+    if (!traced.contains(root.getName())) {
+      return;
+    }
+    exported.incrementAndGet();
+
+    final Map<String, Double> stages = new LinkedHashMap<>();
+    final JsonArray spans = new JsonArray();
+    // The root ends last, but its stage goes first
+    stages.put(root.getStage(), 0.0);
+    for (final Tracing.Span span : root.getFinished()) {
+      final double ms = span.getDurationNanos() / 1e6;
+      final Double previous = stages.get(span.getStage());
+      stages.put(span.getStage(), previous != null ? previous + ms : ms);
+
+      final JsonObject json = new JsonObject();
+      json.addProperty("stage", span.getStage());
+      json.addProperty("offsetMs", (span.getStartNanos() - root.getStartNanos()) / 1e6);
+      json.addProperty("ms", ms);
+      if (span.isFailed()) {
+        json.addProperty("failed", true);
+      }
+      spans.add(json);
+    }
+
+    final JsonObject trace = new JsonObject();
+    trace.addProperty("name", root.getName());
+    trace.addProperty("start", System.currentTimeMillis()
+        - (System.nanoTime() - root.getStartNanos()) / 1000000);
+    trace.add("spans", spans);
+
+    synchronized (this) {
+      recent.addLast(stages);
+      while (recent.size() > keep) {
+        recent.removeFirst();
+      }
+      if (file != null) {
+        try {
+          file.write(trace.toString());
+          file.write('\n');
+          file.flush();
+        } catch (IOException e) {
+          writeErrors.incrementAndGet();
+          log.debug("[TraceExporter::export] Could not write trace: {}", e.getMessage());
+        }
+      }
+    }
+  }
+
+  public Map<String, Object> getStats()
+  {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", enabled);
+    stats.put("exported", exported.get());
+    stats.put("writeErrors", writeErrors.get());
+    final List<Map<String, Double>> traces;
+    synchronized (this) {
+      traces = new ArrayList<>(recent);
+    }
+    stats.put("kept", traces.size());
+    stats.put("stages", summarize(traces));
+    return stats;
+  }
+
+  /**
+   * @param traces
+   *          the milliseconds spent in each stage, per trace
+   * @return the number of samples and their median, 99th percentile and maximum, per stage
+   */
+  static Map<String, Map<String, Object>> summarize(Collection<Map<String, Double>> traces)
+  {
+    final Map<String, List<Double>> samples = new LinkedHashMap<>();
+    for (final Map<String, Double> trace : traces) {
+      for (final Map.Entry<String, Double> stage : trace.entrySet()) {
+        List<Double> values = samples.get(stage.getKey());
+        if (values == null) {
+          values = new ArrayList<>();
+          samples.put(stage.getKey(), values);
+        }
+        values.add(stage.getValue());
+      }
+    }
+
+    final Map<String, Map<String, Object>> summary = new LinkedHashMap<>();
+    for (final Map.Entry<String, List<Double>> stage : samples.entrySet()) {
+      final double[] values = new double[stage.getValue().size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = stage.getValue().get(i);
+      }
+      Arrays.sort(values);
+      final Map<String, Object> stats = new LinkedHashMap<>();
+      stats.put("samples", values.length);
+      stats.put("p50Ms", percentile(values, 0.50));
+      stats.put("p99Ms", percentile(values, 0.99));
+      stats.put("maxMs", values[values.length - 1]);
+      summary.put(stage.getKey(), stats);
+    }
+    return summary;
+  }
+
+  private static double percentile(double[] sorted, double p)
+  {
+    final int rank = (int) Math.ceil(p * sorted.length);
+    return sorted[Math.max(rank - 1, 0)];
+  }
+}
@@ -26,6 +26,7 @@ public class UserSession
 {
   private MediaPipeline mediaPipeline;
   private WebRtcEndpoint webRtcEndpoint;
+  private EndpointPool.PooledEndpoint pooledEndpoint;
 
   public UserSession()
   {}
@@ -41,4 +42,10 @@ public class UserSession
 
   public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint)
   { this.webRtcEndpoint = webRtcEndpoint; }
+
+  public EndpointPool.PooledEndpoint getPooledEndpoint()
+  { return pooledEndpoint; }
+
+  public void setPooledEndpoint(EndpointPool.PooledEndpoint pooledEndpoint)
+  { this.pooledEndpoint = pooledEndpoint; }
 }
@@ -15,6 +15,7 @@
  */
 
 const ws = new WebSocket('wss://' + location.host + '/helloworld');
+ws.onopen = () => SignalingCodec.negotiate(ws);
 
 let webRtcPeer;
 
@@ -81,9 +82,8 @@ function sendMessage(message)
     return;
   }
 
-  const jsonMessage = JSON.stringify(message);
-  console.log("[sendMessage] message: " + jsonMessage);
-  ws.send(jsonMessage);
+  console.log("[sendMessage] message: " + JSON.stringify(message));
+  SignalingCodec.send(ws, message);
 }
 
 
@@ -94,8 +94,12 @@ function sendMessage(message)
 
 ws.onmessage = function(message)
 {
-  const jsonMessage = JSON.parse(message.data);
-  console.log("[onmessage] Received message: " + message.data);
+  SignalingCodec.receive(message.data, handleMessage);
+}
+
+function handleMessage(jsonMessage)
+{
+  console.log("[onmessage] Received message: " + JSON.stringify(jsonMessage));
 
   switch (jsonMessage.id) {
     case 'PROCESS_SDP_ANSWER':
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Wire encoding of the signaling messages. Messages are JSON text frames unless
+ * the page is opened with "?encoding=compact" and the browser supports raw
+ * DEFLATE streams; in that case the server is asked to switch to binary frames:
+ * one format byte (0 = UTF-8 JSON, 1 = raw DEFLATE compressed JSON) followed by
+ * the message. Only messages carrying SDPs are big enough to be compressed.
+ */
+const SignalingCodec = (function()
+{
+  const FORMAT_JSON = 0;
+  const FORMAT_DEFLATE = 1;
+  const COMPRESS_THRESHOLD = 512;
+
+  const compact = /[?&]encoding=compact(&|$)/.test(location.search)
+      && typeof CompressionStream !== 'undefined'
+      && typeof DecompressionStream !== 'undefined';
+
+  // Compression is asynchronous: chain every frame to keep messages in order
+  let sending = Promise.resolve();
+  let receiving = Promise.resolve();
+
+  function transform(bytes, stream)
+  {
+    const blob = new Blob([bytes]);
+    return new Response(blob.stream().pipeThrough(stream)).arrayBuffer();
+  }
+
+  function frame(format, payload)
+  {
+    const bytes = new Uint8Array(payload.byteLength + 1);
+    bytes[0] = format;
+    bytes.set(new Uint8Array(payload), 1);
+    return bytes.buffer;
+  }
+
+  function encode(message)
+  {
+    const json = JSON.stringify(message);
+    if (!compact) {
+      return Promise.resolve(json);
+    }
+    const utf8 = new TextEncoder().encode(json);
+    if (utf8.byteLength < COMPRESS_THRESHOLD) {
+      return Promise.resolve(frame(FORMAT_JSON, utf8.buffer));
+    }
+    return transform(utf8, new CompressionStream('deflate-raw'))
+        .then((deflated) => frame(FORMAT_DEFLATE, deflated));
+  }
+
+  function decode(data)
+  {
+    if (typeof data === 'string') {
+      return Promise.resolve(JSON.parse(data));
+    }
+    const bytes = new Uint8Array(data);
+    const payload = bytes.subarray(1);
+    let utf8;
+    switch (bytes[0]) {
+      case FORMAT_JSON:
+        utf8 = Promise.resolve(payload);
+        break;
+      case FORMAT_DEFLATE:
+        utf8 = transform(payload, new DecompressionStream('deflate-raw'));
+        break;
+      default:
+        return Promise.reject(new Error("Unknown signaling frame format " + bytes[0]));
+    }
+    return utf8.then((json) => JSON.parse(new TextDecoder().decode(json)));
+  }
+
+  return {
+    // To be called from the "open" handler of the WebSocket, before any other
+    // message is sent
+    negotiate: function(ws)
+    {
+      ws.binaryType = 'arraybuffer';
+      if (compact) {
+        ws.send(JSON.stringify({
+          id: 'SET_ENCODING',
+          encoding: 'compact',
+        }));
+      }
+    },
+
+    send: function(ws, message)
+    {
+      sending = sending
+          .then(() => encode(message))
+          .then((data) => ws.send(data))
+          .catch((err) => console.error("[SignalingCodec] Send error: " + err));
+    },
+
+    receive: function(data, callback)
+    {
+      receiving = receiving
+          .then(() => decode(data))
+          .then(callback)
+          .catch((err) => console.error("[SignalingCodec] Receive error: " + err));
+    },
+  };
+})();
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Kurento Java Tutorial - Send contention benchmark.
+ *
+ * Hundreds of simulated sessions receive ICE candidates and SDP answers from
+ * many threads at once, as they do when KMS gathers candidates for every
+ * endpoint in parallel. Each WebSocket write takes a few tens of
+ * microseconds, like a real socket write. The same load is sent once through
+ * the per-session path the Handler uses, and once through a single lock
+ * shared by all sessions, as the Handler did when its sendMessage was
+ * synchronized. Sessions, threads and messages can be changed with
+ * -Dsend.benchmark.sessions, -Dsend.benchmark.threads and
+ * -Dsend.benchmark.messages.
+ *
+ * The test checks that writes to different sessions overlap, which only the
+ * per-session path allows. The speedup itself depends on the host, and is
+ * only asserted with -Dsend.benchmark.assertSpeedup=true.
+ */
+public class SendContentionBenchmarkTest
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SendContentionBenchmarkTest.class);
+
+  private static final int SESSIONS =
+      Integer.getInteger("send.benchmark.sessions", 400);
+  private static final int THREADS =
+      Integer.getInteger("send.benchmark.threads", 32);
+  private static final int MESSAGES =
+      Integer.getInteger("send.benchmark.messages", 20_000);
+  private static final boolean ASSERT_SPEEDUP =
+      Boolean.getBoolean("send.benchmark.assertSpeedup");
+  private static final long WRITE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+  private final Object handlerLock = new Object();
+
+  @After
+  public void tearDown()
+  {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void perSessionSendsOutrunOneSharedLock() throws Exception
+  {
+    final AtomicLong written = new AtomicLong();
+    final WriteConcurrency writes = new WriteConcurrency();
+    final WebSocketSession[] sessions = openSessions(SESSIONS, written, writes);
+
+    // Warm up both paths, so that neither pays for class loading and JIT
+    run(sessions, MESSAGES / 10, false);
+    run(sessions, MESSAGES / 10, true);
+    written.set(0);
+
+    writes.reset();
+    final long sharedNanos = run(sessions, MESSAGES, true);
+    final int sharedMaxWrites = writes.max.get();
+    writes.reset();
+    final long perSessionNanos = run(sessions, MESSAGES, false);
+    final int perSessionMaxWrites = writes.max.get();
+
+    log.info("[SendContentionBenchmarkTest] {} sessions, {} threads, {} messages:"
+        + " shared lock {} ms ({} msg/s, {} writes at once), per session {} ms"
+        + " ({} msg/s, {} writes at once)", SESSIONS, THREADS, MESSAGES,
+        sharedNanos / 1_000_000, rate(sharedNanos), sharedMaxWrites,
+        perSessionNanos / 1_000_000, rate(perSessionNanos), perSessionMaxWrites);
+
+    assertEquals(2L * MESSAGES, written.get());
+    assertEquals(1, sharedMaxWrites);
+    assertTrue("Per-session sends wrote to " + perSessionMaxWrites
+        + " sessions at once", perSessionMaxWrites > 1);
+    if (ASSERT_SPEEDUP) {
+      assertTrue("Per-session sends took " + perSessionNanos / 1_000_000
+          + " ms, a shared lock " + sharedNanos / 1_000_000 + " ms",
+          perSessionNanos * 2 < sharedNanos);
+    }
+  }
+
+  /**
+   * Sends the messages from all the threads, each thread going round the
+   * sessions from its own offset.
+   *
+   * @return the elapsed time, in nanoseconds
+   */
+  private long run(final WebSocketSession[] sessions, int messages,
+      final boolean sharedLock) throws Exception
+  {
+    final int perThread = messages / THREADS;
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int offset = t * 7919;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          start.await();
+          for (int i = 0; i < perThread; i++) {
+            final WebSocketSession session =
+                sessions[(offset + i) % sessions.length];
+            final JsonObject message = message(i);
+            if (sharedLock) {
+              synchronized (handlerLock) {
+                OutboundLanes.send(session, message);
+              }
+            } else {
+              OutboundLanes.send(session, message);
+            }
+          }
+          return null;
+        }
+      }));
+    }
+
+    final long begin = System.nanoTime();
+    start.countDown();
+    for (Future<Void> future : futures) {
+      future.get(5, TimeUnit.MINUTES);
+    }
+    return System.nanoTime() - begin;
+  }
+
+  private static JsonObject message(int i)
+  {
+    final JsonObject message = new JsonObject();
+    if (i % 20 == 0) {
+      message.addProperty("id", "PROCESS_SDP_ANSWER");
+      message.addProperty("sdpAnswer", "v=0\r\n");
+    } else {
+      message.addProperty("id", "ADD_ICE_CANDIDATE");
+      message.addProperty("candidate", "candidate:" + i
+          + " 1 UDP 2122260223 192.0.2.1 " + (50000 + i % 10000) + " typ host");
+    }
+    return message;
+  }
+
+  private static long rate(long nanos)
+  {
+    return nanos > 0 ? MESSAGES * 1_000_000_000L / nanos : 0;
+  }
+
+  /** How many session writes are in progress, and the most there have been. */
+  private static class WriteConcurrency
+  {
+    final AtomicInteger current = new AtomicInteger();
+    final AtomicInteger max = new AtomicInteger();
+
+    void begin()
+    {
+      final int now = current.incrementAndGet();
+      int seen = max.get();
+      while (now > seen && !max.compareAndSet(seen, now)) {
+        seen = max.get();
+      }
+    }
+
+    void end()
+    {
+      current.decrementAndGet();
+    }
+
+    void reset()
+    {
+      max.set(0);
+    }
+  }
+
+  /**
+   * Sessions that are always open, and whose writes take WRITE_NANOS and
+   * are counted in "written" and "writes".
+   */
+  private static WebSocketSession[] openSessions(int count,
+      final AtomicLong written, final WriteConcurrency writes)
+  {
+    final WebSocketSession[] sessions = new WebSocketSession[count];
+    for (int i = 0; i < count; i++) {
+      final String id = "session-" + i;
+      final Map<String, Object> attributes = new ConcurrentHashMap<>();
+      sessions[i] = (WebSocketSession) Proxy.newProxyInstance(
+          SendContentionBenchmarkTest.class.getClassLoader(),
+          new Class<?>[] { WebSocketSession.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          switch (method.getName()) {
+            case "getId":
+              return id;
+            case "getAttributes":
+              return attributes;
+            case "isOpen":
+              return true;
+            case "sendMessage":
+              writes.begin();
+              final long until = System.nanoTime() + WRITE_NANOS;
+              while (System.nanoTime() < until) {
+                LockSupport.parkNanos(until - System.nanoTime());
+              }
+              writes.end();
+              written.incrementAndGet();
+              return null;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            case "toString":
+              return "Session[" + id + "]";
+            default:
+              return null;
+          }
+        }
+      });
+    }
+    return sessions;
+  }
+}
@@ -95,6 +95,20 @@ fi
 [ -f $DEMO_BINARY ] || { echo "Unable to find ${project.artifactId} binary file"; exit 1; }
 #[ -f $DEMO_CONFIG ] || { echo "Unable to find configuration file: $DEMO_CONFIG"; exit 1; }
 
+# Class data sharing (JDK 13 or later): with APP_CDS=true, the first start
+# dumps the classes it loaded into CDS_ARCHIVE when it exits, and later starts
+# map that archive instead of loading and verifying those classes again. Only
+# JDK classes benefit, as classes nested in the application jar can't be
+# archived. Delete the archive after upgrading the JDK
+if [ "x$APP_CDS" = "xtrue" ]; then
+    CDS_ARCHIVE=${CDS_ARCHIVE:-$DEMO_HOME/${project.artifactId}.jsa}
+    if [ -f $CDS_ARCHIVE ]; then
+        JAVA_OPTS="$JAVA_OPTS -XX:SharedArchiveFile=$CDS_ARCHIVE"
+    else
+        JAVA_OPTS="$JAVA_OPTS -XX:ArchiveClassesAtExit=$CDS_ARCHIVE"
+    fi
+fi
+
 # Display our environment
 echo "========================================================================="
 echo ""
@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Control loop adjusting the video bitrates of the rooms of this node to their size and to the
+ * loss measured by the {@link MediaStatsCollector}, as decided by the configured
+ * {@link BitratePolicy}: the maximum send bandwidth of every subscription (incoming endpoints),
+ * and the minimum receive bandwidth requested from every publisher (outgoing endpoints).
+ *
+ * <p>
+ * Limits are only pushed to KMS when they change by more than {@code groupcall.bitrate.hysteresis}
+ * of their current value, and never while the {@link KmsCircuitBreaker} is not closed.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class BitrateController {
+
+  private static final Logger log = LoggerFactory.getLogger(BitrateController.class);
+
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private MediaStatsCollector mediaStats;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Autowired
+  private BitratePolicy policy;
+
+  @Value("${groupcall.bitrate.interval-ms:5000}")
+  private long intervalMs;
+
+  @Value("${groupcall.bitrate.hysteresis:0.05}")
+  private double hysteresis;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  // Endpoint id -> limit applied, in kbps
+  private final ConcurrentMap<String, Integer> applied = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Integer> roomAverageKbps = new ConcurrentHashMap<>();
+
+  private final AtomicLong passes = new AtomicLong();
+  private final AtomicLong increases = new AtomicLong();
+  private final AtomicLong decreases = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  @PostConstruct
+  private void init() {
+    if (intervalMs <= 0) {
+      return;
+    }
+    log.info("Bitrate control every {} ms with policy {}", intervalMs,
+        policy.getClass().getSimpleName());
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          adjust();
+        } catch (Exception e) {
+          log.warn("Bitrate control pass failed", e);
+        }
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("policy", policy.getClass().getSimpleName());
+    stats.put("passes", passes.get());
+    stats.put("increases", increases.get());
+    stats.put("decreases", decreases.get());
+    stats.put("failures", failures.get());
+    stats.put("subscriberKbpsByRoom", new LinkedHashMap<>(roomAverageKbps));
+    return stats;
+  }
+
+  private void adjust() {
+    if (kmsBreaker.getState() != KmsCircuitBreaker.State.CLOSED) {
+      return;
+    }
+
+    final Set<String> live = new HashSet<>();
+    final Set<String> roomNames = new HashSet<>();
+    for (final Room room : roomManager.getRooms()) {
+      final int roomSize = room.getPublisherNames().size();
+      final int publisherMin = policy.publisherMinKbps(roomSize);
+      long subscriberSum = 0;
+      int subscriptions = 0;
+
+      for (final UserSession user : room.getParticipants()) {
+        final WebRtcEndpoint outgoing = user.getOutgoingWebRtcPeer();
+        if (outgoing != null) {
+          live.add(outgoing.getId());
+          apply(outgoing, publisherMin, false);
+        }
+
+        for (final WebRtcEndpoint incoming : user.getIncomingMedia().values()) {
+          live.add(incoming.getId());
+          final Integer current = applied.get(incoming.getId());
+          final int target = policy.subscriberMaxKbps(roomSize,
+              mediaStats.getLoss(incoming.getId()), current != null ? current : 0);
+          apply(incoming, target, true);
+          final Integer now = applied.get(incoming.getId());
+          if (now != null) {
+            subscriberSum += now;
+            subscriptions++;
+          }
+        }
+      }
+
+      roomNames.add(room.getName());
+      if (subscriptions > 0) {
+        roomAverageKbps.put(room.getName(), (int) (subscriberSum / subscriptions));
+      }
+    }
+
+    applied.keySet().retainAll(live);
+    roomAverageKbps.keySet().retainAll(roomNames);
+    passes.incrementAndGet();
+  }
+
+  private void apply(final WebRtcEndpoint endpoint, final int kbps, final boolean subscriber) {
+    final Integer current = applied.get(endpoint.getId());
+    if (current != null && Math.abs(kbps - current) <= hysteresis * current) {
+      return;
+    }
+
+    try {
+      kmsBreaker.run(subscriber ? "setMaxVideoSendBandwidth" : "setMinVideoRecvBandwidth",
+          new Runnable() {
+            @Override
+            public void run() {
+              if (subscriber) {
+                endpoint.setMaxVideoSendBandwidth(kbps);
+              } else {
+                endpoint.setMinVideoRecvBandwidth(kbps);
+              }
+            }
+          });
+    } catch (RuntimeException e) {
+      failures.incrementAndGet();
+      log.debug("Could not set the bitrate of endpoint {}: {}", endpoint.getId(), e.getMessage());
+      return;
+    }
+
+    applied.put(endpoint.getId(), kbps);
+    if (current != null) {
+      if (kbps > current) {
+        increases.incrementAndGet();
+      } else {
+        decreases.incrementAndGet();
+      }
+    }
+    log.trace("Endpoint {}: {} set to {} kbps", endpoint.getId(),
+        subscriber ? "max send bandwidth" : "min receive bandwidth", kbps);
+  }
+}
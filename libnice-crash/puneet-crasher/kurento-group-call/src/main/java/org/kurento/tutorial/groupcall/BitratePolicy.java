@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+/**
+ * Decides the video bitrates of a room, for the {@link BitrateController}. Selected with
+ * {@code groupcall.bitrate.policy}: either {@code room-size}, for {@link RoomSizeBitratePolicy},
+ * or the fully qualified name of a class implementing this interface, with a public no-arg
+ * constructor.
+ *
+ * @since 6.8.0
+ */
+public interface BitratePolicy {
+
+  /**
+   * @param roomSize
+   *          the number of publishers in the room, on every node; viewers neither send nor
+   *          take a share of the budget of others
+   * @param loss
+   *          the packet loss the subscriber reports, as a fraction, or -1 if not measured yet
+   * @param currentKbps
+   *          the limit currently applied to the subscription, or 0 if none was applied yet
+   * @return the maximum bitrate KMS should send to the subscriber, in kbps
+   */
+  int subscriberMaxKbps(int roomSize, double loss, int currentKbps);
+
+  /**
+   * @param roomSize
+   *          the number of publishers in the room, on every node
+   * @return the minimum bitrate KMS should ask each publisher for, in kbps
+   */
+  int publisherMinKbps(int roomSize);
+}
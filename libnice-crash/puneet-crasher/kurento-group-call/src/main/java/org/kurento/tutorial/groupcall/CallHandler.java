@@ -20,38 +20,90 @@ package org.kurento.tutorial.groupcall;
 import java.io.IOException;
 
 import org.kurento.client.IceCandidate;
+import org.kurento.client.MediaElement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 /**
  * 
  * @author Ivan Gracia (izanmail@gmail.com)
  * @since 4.3.1
  */
-public class CallHandler extends TextWebSocketHandler {
+public class CallHandler extends AbstractWebSocketHandler {
 
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
 
-  private static final Gson gson = new GsonBuilder().create();
-
   @Autowired
   private RoomManager roomManager;
 
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private StartupWarmup startupWarmup;
+
+  @Autowired
+  private DrainController drainController;
+
+  @Autowired
+  private FlightRecorder flightRecorder;
+
+  @Value("${groupcall.resume.grace-ms:15000}")
+  private long resumeGraceMs;
+
+  @Value("${groupcall.webinar.max-publishers:0}")
+  private int maxPublishers;
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    flightRecorder.attach(session);
+    flightRecorder.recordOpen(session);
+  }
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-    final JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+    handleFrame(session, message);
+  }
+
+  @Override
+  protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message)
+      throws Exception {
+    handleFrame(session, message);
+  }
+
+  private void handleFrame(WebSocketSession session, WebSocketMessage<?> message)
+      throws IOException {
+    final Tracing.Span trace = Tracing.startTrace("message");
+    try {
+      handleFrame(session, message, trace);
+    } finally {
+      trace.end();
+    }
+  }
+
+  private void handleFrame(WebSocketSession session, WebSocketMessage<?> message,
+      Tracing.Span trace) throws IOException {
+    final Tracing.Span decode = Tracing.start("decode");
+    final JsonObject jsonMessage;
+    try {
+      jsonMessage = SignalingCodec.decode(message);
+    } finally {
+      decode.end();
+    }
+    trace.rename(jsonMessage.get("id").getAsString());
+    flightRecorder.recordInbound(session, jsonMessage.toString());
 
     final UserSession user = registry.getBySession(session);
 
@@ -61,18 +113,65 @@ public class CallHandler extends TextWebSocketHandler {
       log.debug("Incoming message from new user: {}", jsonMessage);
     }
 
+    try {
+      handleMessage(jsonMessage, user, session);
+    } catch (KmsUnavailableException e) {
+      trace.fail();
+      log.warn("Refusing message {} from session {}: {}", jsonMessage.get("id"), session.getId(),
+          e.getMessage());
+      sendServerBusy(session, e.getMessage());
+    }
+  }
+
+  private void handleMessage(JsonObject jsonMessage, UserSession user, WebSocketSession session)
+      throws IOException {
     switch (jsonMessage.get("id").getAsString()) {
+      case "setEncoding":
+        final String encoding = jsonMessage.get("encoding").getAsString();
+        SignalingCodec.setEncoding(session, "compact".equals(encoding)
+            ? SignalingCodec.Encoding.COMPACT : SignalingCodec.Encoding.TEXT);
+        break;
       case "joinRoom":
         joinRoom(jsonMessage, session);
         break;
       case "receiveVideoFrom":
+        if (user == null) {
+          break;
+        }
         final String senderName = jsonMessage.get("sender").getAsString();
-        final UserSession sender = registry.getByName(senderName);
+        final MediaElement senderEndpoint =
+            roomManager.getRoom(user.getRoomName()).getSenderEndpoint(senderName, user);
+        if (senderEndpoint == null) {
+          log.warn("PARTICIPANT {}: unknown sender {} in room {}", user.getName(), senderName,
+              user.getRoomName());
+          break;
+        }
         final String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
-        user.receiveVideoFrom(sender, sdpOffer);
+        user.receiveVideoFrom(senderName, senderEndpoint, sdpOffer, getMediaMask(jsonMessage));
+        break;
+      case "setMediaMask":
+        if (user != null) {
+          setMediaMask(user, jsonMessage);
+        }
+        break;
+      case "startRecording":
+        if (user != null) {
+          roomManager.getRoom(user.getRoomName()).startRecording(user);
+        }
+        break;
+      case "stopRecording":
+        if (user != null) {
+          roomManager.getRoom(user.getRoomName()).stopRecording(user);
+        }
+        break;
+      case "resumeSession":
+        resumeSession(jsonMessage, session);
         break;
       case "leaveRoom":
-        leaveRoom(user);
+        if (user != null) {
+          registry.removeBySession(session);
+          leaveRoom(user);
+        }
         break;
       case "onIceCandidate":
         JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
@@ -90,22 +189,127 @@ public class CallHandler extends TextWebSocketHandler {
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-    UserSession user = registry.removeBySession(session);
-    roomManager.getRoom(user.getRoomName()).leave(user);
+    flightRecorder.recordClose(session, status.getCode());
+    final UserSession user = registry.removeBySession(session);
+    if (user == null) {
+      // Never joined, or already left the room
+      return;
+    }
+
+    final boolean clientWentAway = status.equalsCode(CloseStatus.NORMAL)
+        || status.equalsCode(CloseStatus.GOING_AWAY);
+    if (clientWentAway || resumeGraceMs <= 0) {
+      leaveRoom(user);
+      return;
+    }
+
+    final Room room = roomManager.findRoom(user.getRoomName());
+    if (room == null) {
+      // Closed meanwhile, together with its participants
+      return;
+    }
+    registry.park(user, resumeGraceMs, room.countEndpointsOf(user), new Runnable() {
+      @Override
+      public void run() {
+        // A session replaced meanwhile, by the same name joining again, is left alone
+        try {
+          leaveRoom(user);
+        } catch (IOException e) {
+          log.warn("PARTICIPANT {}: error leaving room {}", user.getName(), room.getName(), e);
+        }
+      }
+    });
+  }
+
+  private void resumeSession(JsonObject params, WebSocketSession session) throws IOException {
+    final String token = params.get("resumeToken").getAsString();
+    final UserSession user = registry.resume(token, session);
+
+    final JsonObject response = new JsonObject();
+    if (user == null) {
+      log.info("Session {} could not be resumed, the client has to join again", session.getId());
+      response.addProperty("id", "resumeFailed");
+      OutboundLanes.send(session, response);
+      return;
+    }
+
+    // Participants may have come or gone while this user was away: send the current roster so the
+    // client can reconcile
+    final Room room = roomManager.getRoom(user.getRoomName());
+    final JsonArray participantsArray = new JsonArray();
+    for (final String participantName : room.getPublisherNames()) {
+      if (!participantName.equals(user.getName())) {
+        participantsArray.add(new JsonPrimitive(participantName));
+      }
+    }
+    response.addProperty("id", "sessionResumed");
+    response.add("data", participantsArray);
+    user.sendMessage(response);
+  }
+
+  private static UserSession.MediaMask getMediaMask(JsonObject params) {
+    return UserSession.MediaMask.fromSignaling(
+        params.has("media") ? params.get("media").getAsString() : null);
+  }
+
+  /**
+   * Switches the media a participant receives from a sender, for instance to audio only when its
+   * link degrades, without renegotiating.
+   */
+  private void setMediaMask(UserSession user, JsonObject params) {
+    final String senderName = params.get("sender").getAsString();
+    final MediaElement senderEndpoint =
+        roomManager.getRoom(user.getRoomName()).getSenderEndpoint(senderName, user);
+    final UserSession.MediaMask mask = getMediaMask(params);
+    if (senderEndpoint == null || !user.setMediaMask(senderName, senderEndpoint, mask)) {
+      log.debug("PARTICIPANT {}: not receiving from {}, ignoring media mask {}", user.getName(),
+          senderName, mask);
+    }
+  }
+
+  private void sendServerBusy(WebSocketSession session, String reason) throws IOException {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "serverBusy");
+    message.addProperty("message", reason);
+    OutboundLanes.send(session, message);
   }
 
   private void joinRoom(JsonObject params, WebSocketSession session) throws IOException {
+    final long start = System.nanoTime();
     final String roomName = params.get("room").getAsString();
     final String name = params.get("name").getAsString();
     log.info("PARTICIPANT {}: trying to join room {}", name, roomName);
 
+    if (!drainController.isAcceptingJoin(roomName)) {
+      log.info("PARTICIPANT {}: node is draining, sent elsewhere to join room {}", name, roomName);
+      drainController.refuseJoin(session);
+      return;
+    }
+
     Room room = roomManager.getRoom(roomName);
-    final UserSession user = room.join(name, session);
+    final UserSession.Role role =
+        params.has("role") && "viewer".equals(params.get("role").getAsString())
+            ? UserSession.Role.VIEWER : UserSession.Role.PUBLISHER;
+    final UserSession user;
+    try {
+      user = room.join(name, session, role, maxPublishers);
+    } catch (KmsUnavailableException e) {
+      if (room.getParticipants().isEmpty()) {
+        roomManager.removeRoom(room);
+      }
+      throw e;
+    }
     registry.register(user);
+    SignalingCodec.countJoin();
+    startupWarmup.recordJoin(System.nanoTime() - start);
   }
 
   private void leaveRoom(UserSession user) throws IOException {
-    final Room room = roomManager.getRoom(user.getRoomName());
+    final Room room = roomManager.findRoom(user.getRoomName());
+    if (room == null) {
+      // Reaped or drained meanwhile, which closed its participants
+      return;
+    }
     room.leave(user);
     if (room.getParticipants().isEmpty()) {
       roomManager.removeRoom(room);
@@ -0,0 +1,325 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Takes this signaling node out of service without dropping its rooms all at once.
+ *
+ * <p>
+ * Once draining, the node refuses to open new rooms, and for {@code groupcall.drain.grace-ms}
+ * lets the rooms it serves go on and finish by themselves. Then it hands the participants left
+ * over to other nodes, {@code groupcall.drain.batch-size} every {@code groupcall.drain.interval-ms}:
+ * each one is sent a {@code nodeDraining} message with a random delay of up to
+ * {@code groupcall.drain.rejoin-jitter-ms}, after which the client reconnects and joins the room
+ * again, through whichever node the load balancer picks. The room and its pipeline stay alive
+ * while any node serves it. Participants that have not left {@code groupcall.drain.handover-ms}
+ * after being asked are disconnected, which releases their endpoints at the same pace.
+ * </p>
+ *
+ * <p>
+ * Draining starts on {@code POST /drain}, from the node itself, and is cancelled with
+ * {@code DELETE /drain}; {@code GET /drain} tells its progress. It also starts on shutdown, which
+ * then waits up to {@code groupcall.drain.shutdown-timeout-ms} for the rooms to be gone.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+@RequestMapping("/drain")
+public class DrainController {
+
+  private static final Logger log = LoggerFactory.getLogger(DrainController.class);
+
+  public enum State {
+    ACTIVE, DRAINING, MIGRATING, DRAINED
+  }
+
+  @Autowired
+  private RoomManager roomManager;
+
+  @Value("${groupcall.drain.grace-ms:30000}")
+  private long graceMs;
+
+  @Value("${groupcall.drain.interval-ms:1000}")
+  private long intervalMs;
+
+  @Value("${groupcall.drain.batch-size:5}")
+  private int batchSize;
+
+  @Value("${groupcall.drain.handover-ms:10000}")
+  private long handoverMs;
+
+  @Value("${groupcall.drain.rejoin-jitter-ms:5000}")
+  private long rejoinJitterMs;
+
+  @Value("${groupcall.drain.on-shutdown:true}")
+  private boolean drainOnShutdown;
+
+  @Value("${groupcall.drain.shutdown-timeout-ms:120000}")
+  private long shutdownTimeoutMs;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private volatile State state = State.ACTIVE;
+  private volatile long startedAt;
+
+  // Participants asked to move, and when
+  private final ConcurrentMap<UserSession, Long> notified = new ConcurrentHashMap<>();
+  private final Set<UserSession> evicted = new HashSet<>();
+
+  private final AtomicLong refusedJoins = new AtomicLong();
+  private final AtomicLong notifications = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  @PostConstruct
+  private void init() {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          drainStep();
+        } catch (Exception e) {
+          log.warn("Drain step failed", e);
+        }
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() throws InterruptedException {
+    if (drainOnShutdown && !roomManager.getRooms().isEmpty()) {
+      start();
+      final long deadline = System.currentTimeMillis() + shutdownTimeoutMs;
+      while (state != State.DRAINED && System.currentTimeMillis() < deadline) {
+        Thread.sleep(intervalMs);
+      }
+      if (state != State.DRAINED) {
+        log.warn("Shutting down with {} rooms not drained", roomManager.getRooms().size());
+      }
+    }
+    scheduler.shutdownNow();
+  }
+
+  @RequestMapping(method = RequestMethod.GET)
+  public ResponseEntity<Map<String, Object>> status() {
+    return new ResponseEntity<>(getStats(), HttpStatus.OK);
+  }
+
+  @RequestMapping(method = RequestMethod.POST)
+  public ResponseEntity<Map<String, Object>> startDrain(HttpServletRequest request) {
+    if (!isLocal(request)) {
+      return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+    }
+    start();
+    return new ResponseEntity<>(getStats(), HttpStatus.ACCEPTED);
+  }
+
+  @RequestMapping(method = RequestMethod.DELETE)
+  public ResponseEntity<Map<String, Object>> cancelDrain(HttpServletRequest request) {
+    if (!isLocal(request)) {
+      return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+    }
+    synchronized (this) {
+      if (state != State.ACTIVE) {
+        log.info("Drain cancelled, node back in service");
+        state = State.ACTIVE;
+        notified.clear();
+        evicted.clear();
+      }
+    }
+    return new ResponseEntity<>(getStats(), HttpStatus.OK);
+  }
+
+  public synchronized void start() {
+    if (state != State.ACTIVE) {
+      return;
+    }
+    startedAt = System.currentTimeMillis();
+    state = graceMs > 0 ? State.DRAINING : State.MIGRATING;
+    log.info("Draining node {}: {} rooms, no new rooms accepted", roomManager.getNodeId(),
+        roomManager.getRooms().size());
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * Tells whether a participant may join a room through this node: any room while active, only
+   * the rooms it already serves during the grace period, and none afterwards.
+   */
+  public boolean isAcceptingJoin(String roomName) {
+    switch (state) {
+      case ACTIVE:
+        return true;
+      case DRAINING:
+        return roomManager.hasRoom(roomName);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Tells a client whose join was refused to try again later, through another node.
+   */
+  public void refuseJoin(WebSocketSession session) throws IOException {
+    refusedJoins.incrementAndGet();
+    OutboundLanes.send(session, newDrainingMessage());
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    int participants = 0;
+    for (final Room room : roomManager.getRooms()) {
+      participants += room.getParticipants().size();
+    }
+    stats.put("state", state);
+    stats.put("drainingForMs", state == State.ACTIVE ? 0 : System.currentTimeMillis() - startedAt);
+    stats.put("rooms", roomManager.getRooms().size());
+    stats.put("participants", participants);
+    stats.put("refusedJoins", refusedJoins.get());
+    stats.put("notified", notifications.get());
+    stats.put("evicted", evictions.get());
+    return stats;
+  }
+
+  private synchronized void drainStep() {
+    if (state == State.ACTIVE || state == State.DRAINED) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    if (state == State.DRAINING && now - startedAt >= graceMs) {
+      log.info("Drain grace period over, moving {} rooms to other nodes",
+          roomManager.getRooms().size());
+      state = State.MIGRATING;
+    }
+
+    final Set<UserSession> present = new HashSet<>();
+    for (final Room room : roomManager.getRooms()) {
+      present.addAll(room.getParticipants());
+    }
+    if (present.isEmpty() && roomManager.getRooms().isEmpty()) {
+      log.info("Node {} drained in {} ms", roomManager.getNodeId(), now - startedAt);
+      state = State.DRAINED;
+      return;
+    }
+    notified.keySet().retainAll(present);
+    evicted.retainAll(present);
+    if (state != State.MIGRATING) {
+      return;
+    }
+
+    // Disconnecting and notifying share the budget, so endpoints are released at a steady pace
+    int budget = batchSize;
+    for (final Map.Entry<UserSession, Long> entry : notified.entrySet()) {
+      if (budget == 0) {
+        return;
+      }
+      final UserSession user = entry.getKey();
+      if (now - entry.getValue() >= handoverMs && evicted.add(user)) {
+        evict(user);
+        budget--;
+      }
+    }
+    for (final UserSession user : present) {
+      if (budget == 0) {
+        return;
+      }
+      if (!notified.containsKey(user)) {
+        notified.put(user, now);
+        notifyUser(user);
+        budget--;
+      }
+    }
+  }
+
+  private void notifyUser(UserSession user) {
+    notifications.incrementAndGet();
+    try {
+      user.sendMessage(newDrainingMessage());
+    } catch (IOException e) {
+      log.debug("PARTICIPANT {}: could not be asked to move: {}", user.getName(), e.getMessage());
+    }
+  }
+
+  /**
+   * Closes the signaling of a participant that did not move on its own; the handler then removes
+   * it from its room as if it had left.
+   */
+  private void evict(UserSession user) {
+    final WebSocketSession session = user.getSession();
+    if (!session.isOpen()) {
+      // Disconnected: it leaves when its resume grace period ends
+      return;
+    }
+    log.info("PARTICIPANT {}: did not move off draining node, disconnecting", user.getName());
+    evictions.incrementAndGet();
+    try {
+      session.close(CloseStatus.GOING_AWAY);
+    } catch (IOException e) {
+      log.debug("PARTICIPANT {}: could not be disconnected: {}", user.getName(), e.getMessage());
+    }
+  }
+
+  private JsonObject newDrainingMessage() {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "nodeDraining");
+    message.addProperty("retryAfterMs",
+        rejoinJitterMs > 0 ? ThreadLocalRandom.current().nextLong(rejoinJitterMs) : 0);
+    return message;
+  }
+
+  private static boolean isLocal(HttpServletRequest request) {
+    try {
+      return InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kurento.client.EventListener;
+import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * The incoming endpoints of all the participants of a room, in one dense table instead of a map
+ * per participant. Every participant gets a small integer id on joining, which indexes the first
+ * of its entries; the entries of a participant are chained through an array of indexes, and freed
+ * entries and ids are reused. An entry takes a slot in six arrays, and a participant one in two,
+ * whatever the number of senders it receives from. An entry is reserved before its endpoint is
+ * built, so that a participant gets one endpoint per sender whoever asks for it at once.
+ *
+ * <p>
+ * The table is also the one listener for the ICE candidates of all the endpoints of the room. The
+ * endpoints are indexed by id, so that the participant an endpoint belongs to, and for which
+ * sender, is found without going through the room.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+final class EndpointTable implements EventListener<IceCandidateFoundEvent> {
+
+  private static final int NONE = -1;
+  private static final int INITIAL_CAPACITY = 8;
+
+  // Guarded by "this". By participant id: the participant, and its first entry
+  private UserSession[] members = new UserSession[INITIAL_CAPACITY];
+  private int[] heads = new int[INITIAL_CAPACITY];
+
+  // By entry: its participant, the next entry of that participant, and what it holds
+  private int[] owners = new int[INITIAL_CAPACITY];
+  private int[] next = new int[INITIAL_CAPACITY];
+  private String[] senders = new String[INITIAL_CAPACITY];
+  private WebRtcEndpoint[] endpoints = new WebRtcEndpoint[INITIAL_CAPACITY];
+  private ListenerSubscription[] subscriptions = new ListenerSubscription[INITIAL_CAPACITY];
+  private UserSession.MediaMask[] masks = new UserSession.MediaMask[INITIAL_CAPACITY];
+  // Entries never used are past the end; freed ones are chained from the free list
+  private int end;
+  private int freeEntries = NONE;
+  // By endpoint id: the entry of an incoming endpoint, or -1 - id for the outgoing endpoint of the
+  // participant with that id
+  private final Map<String, Integer> byEndpoint = new HashMap<>();
+
+  /**
+   * @return the id of the participant in this table
+   */
+  synchronized int add(UserSession member) {
+    int id = 0;
+    while (id < members.length && members[id] != null) {
+      id++;
+    }
+    if (id == members.length) {
+      members = Arrays.copyOf(members, id * 2);
+      heads = Arrays.copyOf(heads, id * 2);
+    }
+    members[id] = member;
+    heads[id] = NONE;
+    if (member.getOutgoingWebRtcPeer() != null) {
+      byEndpoint.put(member.getOutgoingWebRtcPeer().getId(), -1 - id);
+    }
+    return id;
+  }
+
+  /**
+   * Forgets a participant and its entries, if any are left, freeing its id.
+   */
+  synchronized void remove(UserSession member) {
+    if (isMember(member)) {
+      while (heads[member.getId()] != NONE) {
+        free(member.getId(), heads[member.getId()], NONE);
+      }
+      if (member.getOutgoingWebRtcPeer() != null) {
+        byEndpoint.remove(member.getOutgoingWebRtcPeer().getId());
+      }
+      members[member.getId()] = null;
+    }
+  }
+
+  /**
+   * @return the endpoint of a participant for a sender, or null if there is none, or it is still
+   *         being built
+   */
+  synchronized WebRtcEndpoint get(UserSession member, String sender) {
+    final int entry = find(member, sender);
+    return entry != NONE ? endpoints[entry] : null;
+  }
+
+  synchronized ListenerSubscription getSubscription(UserSession member, String sender) {
+    final int entry = find(member, sender);
+    return entry != NONE ? subscriptions[entry] : null;
+  }
+
+  synchronized UserSession.MediaMask getMask(UserSession member, String sender) {
+    final int entry = find(member, sender);
+    return entry != NONE ? masks[entry] : null;
+  }
+
+  synchronized void setMask(UserSession member, String sender, UserSession.MediaMask mask) {
+    final int entry = find(member, sender);
+    if (entry != NONE) {
+      masks[entry] = mask;
+    }
+  }
+
+  /**
+   * Reserves the entry of a participant for a sender, unless it has one already. Waits while the
+   * endpoint of the entry is being built by another thread.
+   *
+   * @return the endpoint of the entry, or null if the caller got the entry, and must then either
+   *         {@link #put} its endpoint or {@link #remove(UserSession, String) remove} it
+   */
+  synchronized WebRtcEndpoint reserve(UserSession member, String sender,
+      UserSession.MediaMask mask) {
+    while (isMember(member)) {
+      int entry = find(member, sender);
+      if (entry == NONE) {
+        entry = allocate();
+        owners[entry] = member.getId();
+        next[entry] = heads[member.getId()];
+        heads[member.getId()] = entry;
+        senders[entry] = sender;
+        masks[entry] = mask;
+        return null;
+      } else if (endpoints[entry] != null) {
+        return endpoints[entry];
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KmsUnavailableException("Interrupted while waiting for an endpoint", e);
+      }
+    }
+    // Gone: put will tell
+    return null;
+  }
+
+  /**
+   * Sets the endpoint of a reserved entry.
+   *
+   * @return false if the entry is gone, as the participant left or stopped receiving from the
+   *         sender meanwhile
+   */
+  synchronized boolean put(UserSession member, String sender, WebRtcEndpoint endpoint,
+      ListenerSubscription subscription) {
+    final int entry = find(member, sender);
+    if (entry == NONE || endpoints[entry] != null) {
+      return false;
+    }
+    byEndpoint.put(endpoint.getId(), entry);
+    endpoints[entry] = endpoint;
+    subscriptions[entry] = subscription;
+    notifyAll();
+    return true;
+  }
+
+  synchronized void remove(UserSession member, String sender) {
+    if (!isMember(member)) {
+      return;
+    }
+    int previous = NONE;
+    for (int entry = heads[member.getId()]; entry != NONE; entry = next[entry]) {
+      if (senders[entry].equals(sender)) {
+        free(member.getId(), entry, previous);
+        return;
+      }
+      previous = entry;
+    }
+  }
+
+  synchronized int count(UserSession member) {
+    int count = 0;
+    if (isMember(member)) {
+      for (int entry = heads[member.getId()]; entry != NONE; entry = next[entry]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return a copy of the senders of a participant
+   */
+  synchronized String[] senders(UserSession member) {
+    final String[] names = new String[count(member)];
+    int i = 0;
+    if (names.length > 0) {
+      for (int entry = heads[member.getId()]; entry != NONE; entry = next[entry]) {
+        names[i++] = senders[entry];
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @return a copy of the endpoints of a participant, by sender
+   */
+  synchronized Map<String, WebRtcEndpoint> toMap(UserSession member) {
+    final Map<String, WebRtcEndpoint> map = new LinkedHashMap<>();
+    if (isMember(member)) {
+      for (int entry = heads[member.getId()]; entry != NONE; entry = next[entry]) {
+        if (endpoints[entry] != null) {
+          map.put(senders[entry], endpoints[entry]);
+        }
+      }
+    }
+    return map;
+  }
+
+  @Override
+  public void onEvent(IceCandidateFoundEvent event) {
+    final UserSession owner;
+    final String sender;
+    synchronized (this) {
+      final Integer index = byEndpoint.get(event.getSource().getId());
+      if (index == null) {
+        // Released meanwhile
+        return;
+      } else if (index >= 0) {
+        owner = members[owners[index]];
+        sender = senders[index];
+      } else {
+        owner = members[-1 - index];
+        sender = owner.getName();
+      }
+    }
+    owner.relayCandidate(sender, event.getCandidate());
+  }
+
+  private boolean isMember(UserSession member) {
+    // Ids are reused, so a participant that left must not reach the entries of a new one
+    return member.getId() < members.length && members[member.getId()] == member;
+  }
+
+  private int find(UserSession member, String sender) {
+    if (!isMember(member)) {
+      return NONE;
+    }
+    for (int entry = heads[member.getId()]; entry != NONE; entry = next[entry]) {
+      // Names are interned, so this is mostly a reference comparison
+      if (senders[entry].equals(sender)) {
+        return entry;
+      }
+    }
+    return NONE;
+  }
+
+  private int allocate() {
+    if (freeEntries != NONE) {
+      final int entry = freeEntries;
+      freeEntries = next[entry];
+      return entry;
+    }
+    if (end == owners.length) {
+      final int capacity = end * 2;
+      owners = Arrays.copyOf(owners, capacity);
+      next = Arrays.copyOf(next, capacity);
+      senders = Arrays.copyOf(senders, capacity);
+      endpoints = Arrays.copyOf(endpoints, capacity);
+      subscriptions = Arrays.copyOf(subscriptions, capacity);
+      masks = Arrays.copyOf(masks, capacity);
+    }
+    return end++;
+  }
+
+  /** Unlinks an entry from the chain of its participant, after the given one, and frees it. */
+  private void free(int id, int entry, int previous) {
+    if (previous == NONE) {
+      heads[id] = next[entry];
+    } else {
+      next[previous] = next[entry];
+    }
+    if (endpoints[entry] != null) {
+      byEndpoint.remove(endpoints[entry].getId());
+    }
+    senders[entry] = null;
+    endpoints[entry] = null;
+    subscriptions[entry] = null;
+    masks[entry] = null;
+    next[entry] = freeEntries;
+    freeEntries = entry;
+    // Whoever waited for its endpoint may reserve it again, or finds the participant gone
+    notifyAll();
+  }
+}
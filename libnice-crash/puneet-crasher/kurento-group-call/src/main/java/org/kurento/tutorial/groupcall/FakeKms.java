@@ -0,0 +1,464 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.JsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Stand-in for Kurento Media Server that speaks enough of its JSON-RPC protocol for the group call
+ * application to run: it keeps track of the objects created, answers SDP offers with a copy of
+ * them, and accepts every other call without doing any media processing. Together with
+ * {@link FlightReplay} it lets recorded sessions be replayed at high speed without a media server,
+ * to tell signaling problems from media server ones.
+ *
+ * <p>
+ * Usage: {@code mvn spring-boot:run -Dstart-class=org.kurento.tutorial.groupcall.FakeKms
+ * -Drun.arguments=[<port>][,--latency-ms=<ms>]} (default port 8888, as KMS), then start the
+ * application with {@code -Dkms.url=ws://localhost:<port>/kurento}. Every answer is delayed by
+ * the given latency, to approximate a loaded server.
+ * </p>
+ *
+ * <p>
+ * The only event sent is one host candidate for every {@code gatherCandidates} on an endpoint
+ * subscribed to {@code IceCandidateFound}, right after the answer.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class FakeKms extends Endpoint {
+
+  private static final String SERVER_MANAGER = "manager_ServerManager";
+
+  private static final String EMPTY_SDP = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\n"
+      + "s=Kurento Media Server\r\nc=IN IP4 127.0.0.1\r\nt=0 0\r\n";
+
+  private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+  private static final int ERROR_CODE = 40101;
+
+  private static final String CANDIDATE_EVENT = "IceCandidateFound";
+
+  /**
+   * A media object: its type, its pipeline (null for pipelines), its name, and whether it is
+   * listened to for candidates.
+   */
+  private static class FakeObject {
+    private final String type;
+    private final String pipeline;
+    private volatile String name;
+    private volatile boolean candidatesSubscribed;
+
+    FakeObject(String type, String pipeline, String name) {
+      this.type = type;
+      this.pipeline = pipeline;
+      this.name = name;
+    }
+  }
+
+  private final long latencyMs;
+  private final String sessionId = UUID.randomUUID().toString();
+  private final ConcurrentMap<String, FakeObject> objects = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(4);
+
+  public FakeKms(long latencyMs) {
+    this.latencyMs = latencyMs;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = 8888;
+    long latencyMs = 0;
+    for (final String arg : args) {
+      if (arg.startsWith("--latency-ms=")) {
+        latencyMs = Long.parseLong(arg.substring("--latency-ms=".length()));
+      } else {
+        port = Integer.parseInt(arg);
+      }
+    }
+
+    final Tomcat tomcat = start(port, latencyMs);
+    System.out.println("Fake KMS listening on ws://localhost:"
+        + tomcat.getConnector().getLocalPort() + "/kurento, latency " + latencyMs + " ms");
+    tomcat.getServer().await();
+  }
+
+  /**
+   * Starts a fake media server in this process, at {@code ws://localhost:<port>/kurento}.
+   *
+   * @param port
+   *          the port to listen on, or 0 for any free one
+   * @return the server, whose connector tells the port actually used
+   */
+  public static Tomcat start(int port, long latencyMs)
+      throws LifecycleException, DeploymentException {
+    final Tomcat tomcat = new Tomcat();
+    tomcat.setPort(port);
+    tomcat.setBaseDir(System.getProperty("java.io.tmpdir"));
+    final Context context = tomcat.addContext("", System.getProperty("java.io.tmpdir"));
+    context.addServletContainerInitializer(new WsSci(), null);
+    // Requests that map to no servlet are rejected before reaching the WebSocket filter
+    Tomcat.addServlet(context, "default", new DefaultServlet());
+    context.addServletMappingDecoded("/", "default");
+    tomcat.getConnector();
+    tomcat.start();
+
+    final FakeKms kms = new FakeKms(latencyMs);
+    final ServerContainer container = (ServerContainer) context.getServletContext()
+        .getAttribute(ServerContainer.class.getName());
+    container.addEndpoint(ServerEndpointConfig.Builder.create(FakeKms.class, "/kurento")
+        .configurator(new ServerEndpointConfig.Configurator() {
+          @Override
+          public <T> T getEndpointInstance(Class<T> endpointClass) {
+            return endpointClass.cast(kms);
+          }
+        }).build());
+    return tomcat;
+  }
+
+  @Override
+  public void onOpen(final Session session, EndpointConfig config) {
+    session.setMaxTextMessageBufferSize(MAX_MESSAGE_SIZE);
+    session.addMessageHandler(new MessageHandler.Whole<String>() {
+      @Override
+      public void onMessage(String text) {
+        final JsonObject request = new JsonParser().parse(text).getAsJsonObject();
+        if (!request.has("id")) {
+          return;
+        }
+        final List<JsonObject> events = new ArrayList<>();
+        final JsonObject response = handle(request, events);
+        responder.schedule(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              synchronized (session) {
+                session.getBasicRemote().sendText(response.toString());
+                for (final JsonObject event : events) {
+                  final JsonObject notification = new JsonObject();
+                  notification.addProperty("jsonrpc", "2.0");
+                  notification.addProperty("method", "onEvent");
+                  notification.add("params", event);
+                  session.getBasicRemote().sendText(notification.toString());
+                }
+              }
+            } catch (IOException e) {
+              System.err.println("Could not answer: " + e.getMessage());
+            }
+          }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+      }
+    });
+  }
+
+  /**
+   * Serves this fake media server to a client in the same process, created with
+   * {@code KurentoClient.createFromJsonRpcClient(new JsonRpcClientLocal(kms.localHandler()))}.
+   * Requests are answered on the calling thread, with no latency and no network in between, so
+   * that tests can run many more sessions than through a WebSocket.
+   */
+  public JsonRpcHandler<JsonObject> localHandler() {
+    return new DefaultJsonRpcHandler<JsonObject>() {
+      @Override
+      public void handleRequest(Transaction transaction, Request<JsonObject> request)
+          throws Exception {
+        final JsonObject params = request.getParams() != null ? request.getParams()
+            : new JsonObject();
+        final List<JsonObject> events = new ArrayList<>();
+        try {
+          transaction.sendResponse(result(request.getMethod(), params, events));
+        } catch (IllegalArgumentException e) {
+          transaction.sendError(ERROR_CODE, e.getMessage(), null);
+        }
+        if (events.isEmpty()) {
+          return;
+        }
+        final org.kurento.jsonrpc.Session session = transaction.getSession();
+        responder.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (final JsonObject event : events) {
+              try {
+                // A request with no id is a notification; sent with a continuation, so that the
+                // local session does not wait for an answer that never comes
+                session.sendRequest(new Request<JsonObject>("onEvent", event),
+                    new Continuation<Response<JsonElement>>() {
+                      @Override
+                      public void onSuccess(Response<JsonElement> result) {
+                      }
+
+                      @Override
+                      public void onError(Throwable cause) {
+                        System.err.println("Could not send an event: " + cause.getMessage());
+                      }
+                    });
+              } catch (IOException e) {
+                System.err.println("Could not send an event: " + e.getMessage());
+              }
+            }
+          }
+        });
+      }
+    };
+  }
+
+  private JsonObject handle(JsonObject request, List<JsonObject> events) {
+    final JsonObject response = new JsonObject();
+    response.addProperty("jsonrpc", "2.0");
+    response.add("id", request.get("id"));
+
+    final JsonObject params = request.has("params") ? request.getAsJsonObject("params")
+        : new JsonObject();
+    try {
+      response.add("result", result(request.get("method").getAsString(), params, events));
+    } catch (IllegalArgumentException e) {
+      final JsonObject error = new JsonObject();
+      error.addProperty("code", ERROR_CODE);
+      error.addProperty("message", e.getMessage());
+      response.add("error", error);
+    }
+    return response;
+  }
+
+  /**
+   * @param events
+   *          where to add the parameters of the events to send after the answer
+   */
+  private JsonObject result(String method, JsonObject params, List<JsonObject> events) {
+    final JsonObject result = new JsonObject();
+    result.add("value", dispatch(method, params, events));
+    result.addProperty("sessionId", sessionId);
+    return result;
+  }
+
+  private JsonElement dispatch(String method, JsonObject params, List<JsonObject> events) {
+    switch (method) {
+      case "ping":
+        return new JsonPrimitive("pong");
+      case "connect":
+      case "closeSession":
+      case "unsubscribe":
+        return JsonNull.INSTANCE;
+      case "create":
+        return new JsonPrimitive(create(params));
+      case "invoke":
+        return invoke(params.get("object").getAsString(), params.get("operation").getAsString(),
+            params.has("operationParams") ? params.getAsJsonObject("operationParams")
+                : new JsonObject(), events);
+      case "subscribe":
+        final FakeObject subscribed = lookup(params.get("object").getAsString());
+        if (CANDIDATE_EVENT.equals(params.get("type").getAsString())) {
+          subscribed.candidatesSubscribed = true;
+        }
+        return new JsonPrimitive(UUID.randomUUID().toString());
+      case "release":
+        release(params.get("object").getAsString());
+        return JsonNull.INSTANCE;
+      case "describe":
+        return describe(params.get("object").getAsString());
+      default:
+        throw new IllegalArgumentException("Method not supported: " + method);
+    }
+  }
+
+  private String create(JsonObject params) {
+    final String type = params.get("type").getAsString();
+    final JsonObject constructorParams = params.has("constructorParams")
+        ? params.getAsJsonObject("constructorParams") : new JsonObject();
+    final String pipeline = constructorParams.has("mediaPipeline")
+        ? constructorParams.get("mediaPipeline").getAsString() : null;
+    if (pipeline != null) {
+      lookup(pipeline);
+    }
+
+    final String id = (pipeline != null ? pipeline + "/" : "") + UUID.randomUUID() + "_kurento."
+        + type;
+    objects.put(id, new FakeObject(type, pipeline, id));
+    return id;
+  }
+
+  private void release(String id) {
+    if (objects.remove(id) == null) {
+      throw new IllegalArgumentException("Object '" + id + "' not found");
+    }
+    for (final String child : objects.keySet()) {
+      if (id.equals(objects.get(child).pipeline)) {
+        objects.remove(child);
+      }
+    }
+  }
+
+  private JsonElement describe(String id) {
+    final FakeObject object = lookup(id);
+    final JsonObject description = new JsonObject();
+    description.addProperty("type", object.type);
+    description.addProperty("qualifiedType", "kurento." + object.type);
+    final JsonArray hierarchy = new JsonArray();
+    if (object.pipeline != null) {
+      hierarchy.add(new JsonPrimitive("kurento.MediaElement"));
+    }
+    hierarchy.add(new JsonPrimitive("kurento.MediaObject"));
+    description.add("hierarchy", hierarchy);
+    return description;
+  }
+
+  private JsonElement invoke(String id, String operation, JsonObject params,
+      List<JsonObject> events) {
+    if (SERVER_MANAGER.equals(id)) {
+      return invokeServerManager(operation);
+    }
+
+    final FakeObject object = lookup(id);
+    switch (operation) {
+      case "processOffer":
+        // Good enough for the application, which only relays the answer
+        return new JsonPrimitive(params.get("offer").getAsString()
+            .replace("a=setup:actpass", "a=setup:active"));
+      case "processAnswer":
+      case "generateOffer":
+      case "getLocalSessionDescriptor":
+      case "getRemoteSessionDescriptor":
+        return new JsonPrimitive(EMPTY_SDP);
+      case "getStats":
+        return new JsonObject();
+      case "getChildren":
+        final JsonArray children = new JsonArray();
+        for (final String child : objects.keySet()) {
+          if (id.equals(objects.get(child).pipeline)) {
+            children.add(new JsonPrimitive(child));
+          }
+        }
+        return children;
+      case "getMediaPipeline":
+      case "getParent":
+        return object.pipeline != null ? new JsonPrimitive(object.pipeline) : JsonNull.INSTANCE;
+      case "getName":
+        return new JsonPrimitive(object.name);
+      case "setName":
+        object.name = params.get("name").getAsString();
+        return JsonNull.INSTANCE;
+      case "getGstreamerDot":
+        return new JsonPrimitive("digraph fake {}");
+      case "isMediaFlowingIn":
+      case "isMediaFlowingOut":
+        return new JsonPrimitive(false);
+      case "gatherCandidates":
+        if (object.candidatesSubscribed) {
+          events.add(candidateEvent(id));
+        }
+        return JsonNull.INSTANCE;
+      default:
+        // Connections, candidates, bandwidth settings, recording...
+        return JsonNull.INSTANCE;
+    }
+  }
+
+  private static JsonObject candidateEvent(String id) {
+    final JsonObject candidate = new JsonObject();
+    candidate.addProperty("__module__", "kurento");
+    candidate.addProperty("__type__", "IceCandidate");
+    candidate.addProperty("candidate", "candidate:1 1 UDP 2013266431 127.0.0.1 9 typ host");
+    candidate.addProperty("sdpMid", "0");
+    candidate.addProperty("sdpMLineIndex", 0);
+
+    final JsonObject data = new JsonObject();
+    data.addProperty("source", id);
+    data.addProperty("type", CANDIDATE_EVENT);
+    data.addProperty("timestamp", String.valueOf(System.currentTimeMillis() / 1000));
+    data.add("tags", new JsonArray());
+    data.add("candidate", candidate);
+
+    final JsonObject value = new JsonObject();
+    value.add("data", data);
+    value.addProperty("object", id);
+    value.addProperty("type", CANDIDATE_EVENT);
+    final JsonObject params = new JsonObject();
+    params.add("value", value);
+    return params;
+  }
+
+  private JsonElement invokeServerManager(String operation) {
+    switch (operation) {
+      case "getInfo":
+        final JsonObject info = new JsonObject();
+        info.addProperty("version", "6.8.0-fake");
+        info.add("modules", new JsonArray());
+        info.addProperty("type", "KMS");
+        info.add("capabilities", new JsonArray());
+        return info;
+      case "getPipelines":
+        final JsonArray pipelines = new JsonArray();
+        for (final String id : objects.keySet()) {
+          if (objects.get(id).pipeline == null) {
+            pipelines.add(new JsonPrimitive(id));
+          }
+        }
+        return pipelines;
+      case "getSessions":
+        return new JsonArray();
+      case "getUsedMemory":
+      case "getUsedCpu":
+        return new JsonPrimitive(0);
+      case "getCpuCount":
+        return new JsonPrimitive(1);
+      default:
+        return new JsonPrimitive("");
+    }
+  }
+
+  private FakeObject lookup(String id) {
+    final FakeObject object = objects.get(id);
+    if (object == null) {
+      throw new IllegalArgumentException("Object '" + id + "' not found");
+    }
+    return object;
+  }
+}
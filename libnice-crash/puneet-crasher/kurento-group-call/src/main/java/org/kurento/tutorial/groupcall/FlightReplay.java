@@ -0,0 +1,247 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+/**
+ * Offline tool for the ring files written by {@link FlightRecorder}: prints them, or drives a
+ * running application with the client messages they captured, at the recorded pace or faster, to
+ * reproduce failures that depend on load and timing. Each recorded WebSocket session is replayed
+ * over a session of its own; server messages and media server calls are only counted.
+ *
+ * <p>
+ * Usage: {@code mvn spring-boot:run -Dstart-class=org.kurento.tutorial.groupcall.FlightReplay
+ * -Drun.arguments=<file>[,--dump][,--url=wss://localhost:8443/groupcall][,--speed=1.0]}. Run it
+ * against a node connected to {@link FakeKms} to exercise signaling without a real media server.
+ * </p>
+ *
+ * <p>
+ * The recorded SDP offers and candidates are those of the original browsers, so the replayed
+ * sessions negotiate but never send media.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class FlightReplay {
+
+  private static final long CLOSE_WAIT_MS = 2000;
+
+  private final String url;
+  private final double speed;
+  private final StandardWebSocketClient client = new StandardWebSocketClient();
+  private final Map<String, WebSocketSession> sessions = new HashMap<>();
+
+  private final AtomicLong received = new AtomicLong();
+  private long sent;
+  private long skipped;
+  private long failed;
+
+  private final AbstractWebSocketHandler handler = new AbstractWebSocketHandler() {
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+      received.incrementAndGet();
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+      received.incrementAndGet();
+    }
+  };
+
+  public FlightReplay(String url, double speed) throws Exception {
+    this.url = url;
+    this.speed = speed;
+    if (url.startsWith("wss:")) {
+      // The application uses a self-signed certificate
+      client.setUserProperties(Collections.<String, Object>singletonMap(
+          "org.apache.tomcat.websocket.SSL_CONTEXT", trustAllContext()));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String file = null;
+    String url = "wss://localhost:8443/groupcall";
+    double speed = 1.0;
+    boolean dump = false;
+    for (final String arg : args) {
+      if (arg.equals("--dump")) {
+        dump = true;
+      } else if (arg.startsWith("--url=")) {
+        url = arg.substring("--url=".length());
+      } else if (arg.startsWith("--speed=")) {
+        speed = Double.parseDouble(arg.substring("--speed=".length()));
+      } else {
+        file = arg;
+      }
+    }
+    if (file == null || speed <= 0) {
+      System.err.println("Usage: FlightReplay <file> [--dump] [--url=<ws url>] [--speed=<factor>]");
+      System.exit(1);
+    }
+
+    final List<FlightRecorder.Record> records = FlightRecorder.read(new File(file));
+    if (dump) {
+      dump(records);
+    } else {
+      new FlightReplay(url, speed).replay(records);
+    }
+  }
+
+  private static void dump(List<FlightRecorder.Record> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+    final long origin = records.get(0).getTimeMicros();
+    for (final FlightRecorder.Record record : records) {
+      System.out.println(String.format(Locale.ROOT, "+%.6f %-5s %s %d%s%s %s",
+          (record.getTimeMicros() - origin) / 1e6, record.getType(), record.getKey(),
+          record.getAux(), record.isFailed() ? " FAILED" : "",
+          record.isTruncated() ? " TRUNCATED" : "", record.getValue()));
+    }
+  }
+
+  public void replay(List<FlightRecorder.Record> records) throws InterruptedException {
+    if (records.isEmpty()) {
+      System.out.println("Nothing to replay");
+      return;
+    }
+    final long origin = records.get(0).getTimeMicros();
+    final long start = System.nanoTime();
+
+    for (final FlightRecorder.Record record : records) {
+      final long dueNanos = (long) ((record.getTimeMicros() - origin) * 1000 / speed);
+      final long waitNanos = dueNanos - (System.nanoTime() - start);
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+
+      switch (record.getType()) {
+        case OPEN:
+          open(record.getKey());
+          break;
+        case IN:
+          send(record);
+          break;
+        case CLOSE:
+          close(record.getKey(), record.getAux());
+          break;
+        default:
+          break;
+      }
+    }
+
+    Thread.sleep(CLOSE_WAIT_MS);
+    for (final String key : sessions.keySet().toArray(new String[0])) {
+      close(key, CloseStatus.NORMAL.getCode());
+    }
+    System.out.println(String.format(Locale.ROOT,
+        "Replayed %d records in %.1f s: %d messages sent, %d skipped, %d failed, %d received",
+        records.size(), (System.nanoTime() - start) / 1e9, sent, skipped, failed,
+        received.get()));
+  }
+
+  private WebSocketSession open(String key) {
+    try {
+      final WebSocketSession session = client.doHandshake(handler, url).get(10, TimeUnit.SECONDS);
+      sessions.put(key, session);
+      return session;
+    } catch (Exception e) {
+      System.err.println("Session " + key + " could not connect: " + e.getMessage());
+      failed++;
+      return null;
+    }
+  }
+
+  private void send(FlightRecorder.Record record) {
+    if (record.isTruncated()) {
+      skipped++;
+      return;
+    }
+    WebSocketSession session = sessions.get(record.getKey());
+    if (session == null) {
+      // Its opening was overwritten in the ring
+      session = open(record.getKey());
+      if (session == null) {
+        return;
+      }
+    }
+    try {
+      session.sendMessage(new TextMessage(record.getValue()));
+      sent++;
+    } catch (IOException e) {
+      failed++;
+    }
+  }
+
+  private void close(String key, int code) {
+    final WebSocketSession session = sessions.remove(key);
+    if (session == null) {
+      return;
+    }
+    // Abnormal closures cannot be sent by a client: use an application code instead, which the
+    // server handles as a lost connection too
+    final CloseStatus status = code == CloseStatus.NORMAL.getCode()
+        || code == CloseStatus.GOING_AWAY.getCode() ? new CloseStatus(code) : new CloseStatus(4000);
+    try {
+      session.close(status);
+    } catch (IOException e) {
+      failed++;
+    }
+  }
+
+  private static SSLContext trustAllContext() throws Exception {
+    final SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, new TrustManager[] { new X509TrustManager() {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    } }, new SecureRandom());
+    return context;
+  }
+}
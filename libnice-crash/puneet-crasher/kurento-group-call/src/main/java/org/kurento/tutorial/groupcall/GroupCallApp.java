@@ -18,6 +18,7 @@
 package org.kurento.tutorial.groupcall;
 
 import org.kurento.client.KurentoClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -39,6 +40,14 @@ public class GroupCallApp implements WebSocketConfigurer {
     return new UserRegistry();
   }
 
+  @Bean
+  public RoomStateStore roomStateStore(@Value("${groupcall.state.store:memory}") String type) {
+    if ("shared".equals(type)) {
+      return InMemoryRoomStateStore.shared();
+    }
+    return new InMemoryRoomStateStore();
+  }
+
   @Bean
   public RoomManager roomManager() {
     return new RoomManager();
@@ -54,6 +63,81 @@ public class GroupCallApp implements WebSocketConfigurer {
     return KurentoClient.create();
   }
 
+  @Bean
+  public FlightRecorder flightRecorder() {
+    return new FlightRecorder();
+  }
+
+  @Bean
+  public KmsCircuitBreaker kmsCircuitBreaker() {
+    return new KmsCircuitBreaker();
+  }
+
+  @Bean
+  public SdpMunger sdpMunger() {
+    return new SdpMunger();
+  }
+
+  @Bean
+  public RecordingManager recordingManager() {
+    return new RecordingManager();
+  }
+
+  @Bean
+  public RelayManager relayManager() {
+    return new RelayManager();
+  }
+
+  @Bean
+  public ZombieReaper zombieReaper() {
+    return new ZombieReaper();
+  }
+
+  @Bean
+  public MediaStatsCollector mediaStatsCollector() {
+    return new MediaStatsCollector();
+  }
+
+  @Bean
+  public BitratePolicy bitratePolicy(
+      @Value("${groupcall.bitrate.policy:room-size}") String policy) throws Exception {
+    if ("room-size".equals(policy)) {
+      return new RoomSizeBitratePolicy();
+    }
+    return Class.forName(policy).asSubclass(BitratePolicy.class).getDeclaredConstructor()
+        .newInstance();
+  }
+
+  @Bean
+  public BitrateController bitrateController() {
+    return new BitrateController();
+  }
+
+  @Bean
+  public StartupWarmup startupWarmup() {
+    return new StartupWarmup();
+  }
+
+  @Bean
+  public DrainController drainController() {
+    return new DrainController();
+  }
+
+  @Bean
+  public TraceExporter traceExporter() {
+    return new TraceExporter();
+  }
+
+  @Bean
+  public StaticAssets staticAssets() {
+    return new StaticAssets();
+  }
+
+  @Bean
+  public StatsController statsController() {
+    return new StatsController();
+  }
+
   public static void main(String[] args) throws Exception {
     SpringApplication.run(GroupCallApp.class, args);
   }
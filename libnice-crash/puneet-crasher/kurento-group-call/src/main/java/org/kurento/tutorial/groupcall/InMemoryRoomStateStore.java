@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link RoomStateStore} kept in the memory of the JVM. On its own, it serves a single signaling
+ * node. The instance returned by {@link #shared()} is embedded in the JVM and can be used by
+ * several application contexts at once, which is how {@link LocalCluster} runs a multi-node
+ * deployment on one machine.
+ *
+ * <p>
+ * Messages are delivered on one thread per subscribed node, in the order they were published.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class InMemoryRoomStateStore implements RoomStateStore {
+
+  private static final Logger log = LoggerFactory.getLogger(InMemoryRoomStateStore.class);
+
+  private static final InMemoryRoomStateStore SHARED = new InMemoryRoomStateStore();
+
+  private final Map<String, Long> nodeExpiry = new HashMap<>();
+  private final Map<String, RoomState> rooms = new HashMap<>();
+  private final Map<String, Subscription> subscriptions = new HashMap<>();
+
+  /**
+   * @return the store shared by all the application contexts of this JVM
+   */
+  public static InMemoryRoomStateStore shared() {
+    return SHARED;
+  }
+
+  @Override
+  public synchronized void heartbeat(String nodeId, long ttlMs) {
+    nodeExpiry.put(nodeId, System.currentTimeMillis() + ttlMs);
+  }
+
+  @Override
+  public synchronized boolean isAlive(String nodeId) {
+    final Long expiry = nodeExpiry.get(nodeId);
+    return expiry != null && expiry > System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized boolean acquireLease(String roomName, String nodeId, long ttlMs) {
+    final RoomState room = getOrCreate(roomName);
+    final long now = System.currentTimeMillis();
+    if (room.leaseOwner == null || room.leaseOwner.equals(nodeId) || room.leaseExpiry <= now) {
+      if (room.leaseOwner != null && !room.leaseOwner.equals(nodeId)) {
+        log.info("Room {}: lease taken over by {} from {}", roomName, nodeId, room.leaseOwner);
+      }
+      room.leaseOwner = nodeId;
+      room.leaseExpiry = now + ttlMs;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized void releaseLease(String roomName, String nodeId) {
+    final RoomState room = rooms.get(roomName);
+    if (room != null && nodeId.equals(room.leaseOwner)) {
+      room.leaseOwner = null;
+      room.leaseExpiry = 0;
+    }
+  }
+
+  @Override
+  public synchronized String getLeaseOwner(String roomName) {
+    final RoomState room = rooms.get(roomName);
+    return room != null && room.leaseExpiry > System.currentTimeMillis() ? room.leaseOwner : null;
+  }
+
+  @Override
+  public synchronized String getPipelineId(String roomName) {
+    final RoomState room = rooms.get(roomName);
+    return room != null ? room.pipelineId : null;
+  }
+
+  @Override
+  public synchronized String putPipelineIdIfAbsent(String roomName, String pipelineId) {
+    final RoomState room = getOrCreate(roomName);
+    if (room.pipelineId != null) {
+      return room.pipelineId;
+    }
+    room.pipelineId = pipelineId;
+    return null;
+  }
+
+  @Override
+  public synchronized void addParticipant(String roomName, ParticipantInfo participant) {
+    getOrCreate(roomName).participants.put(participant.getName(), participant);
+  }
+
+  @Override
+  public synchronized boolean removeParticipant(String roomName, String name, String nodeId) {
+    final RoomState room = rooms.get(roomName);
+    if (room == null) {
+      return false;
+    }
+    final ParticipantInfo participant = room.participants.get(name);
+    if (participant == null || !participant.getNodeId().equals(nodeId)) {
+      return false;
+    }
+    room.participants.remove(name);
+    return true;
+  }
+
+  @Override
+  public synchronized Map<String, ParticipantInfo> getParticipants(String roomName) {
+    final RoomState room = rooms.get(roomName);
+    return room != null ? new HashMap<>(room.participants)
+        : new HashMap<String, ParticipantInfo>();
+  }
+
+  @Override
+  public synchronized boolean removeRoomIfEmpty(String roomName) {
+    final RoomState room = rooms.get(roomName);
+    if (room == null || !room.participants.isEmpty()) {
+      return false;
+    }
+    rooms.remove(roomName);
+    return true;
+  }
+
+  @Override
+  public synchronized void subscribe(String nodeId, MessageListener listener) {
+    final Subscription previous = subscriptions.put(nodeId, new Subscription(nodeId, listener));
+    if (previous != null) {
+      previous.executor.shutdown();
+    }
+  }
+
+  @Override
+  public synchronized void unsubscribe(String nodeId) {
+    final Subscription subscription = subscriptions.remove(nodeId);
+    if (subscription != null) {
+      subscription.executor.shutdown();
+    }
+  }
+
+  @Override
+  public void publish(String nodeId, final String roomName, final String payload) {
+    final Subscription subscription;
+    synchronized (this) {
+      subscription = subscriptions.get(nodeId);
+    }
+    if (subscription == null) {
+      log.debug("Room {}: node {} is not subscribed, dropping message", roomName, nodeId);
+      return;
+    }
+
+    try {
+      subscription.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            subscription.listener.onMessage(roomName, payload);
+          } catch (Exception e) {
+            log.warn("Room {}: node {} failed to handle message", roomName, subscription.nodeId,
+                e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Unsubscribed, or subscribed again, since the lookup
+      log.debug("Room {}: node {} is not subscribed, dropping message", roomName, nodeId);
+    }
+  }
+
+  private RoomState getOrCreate(String roomName) {
+    RoomState room = rooms.get(roomName);
+    if (room == null) {
+      room = new RoomState();
+      rooms.put(roomName, room);
+    }
+    return room;
+  }
+
+  private static class RoomState {
+    String leaseOwner;
+    long leaseExpiry;
+    String pipelineId;
+    final Map<String, ParticipantInfo> participants = new HashMap<>();
+  }
+
+  private static class Subscription {
+    final String nodeId;
+    final MessageListener listener;
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    Subscription(String nodeId, MessageListener listener) {
+      this.nodeId = nodeId;
+      this.listener = listener;
+    }
+  }
+}
@@ -0,0 +1,471 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaObject;
+import org.kurento.client.ServerManager;
+import org.kurento.client.internal.server.KurentoServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+
+/**
+ * Guards every call made to the media server. Each operation runs with its own timeout on a
+ * bounded pool, so a wedged KMS blocks pool threads instead of WebSocket threads. The outcome and
+ * latency of the last calls are kept in a sliding window; when too many of them fail or are too
+ * slow, or when the periodic load probe finds KMS overloaded, the breaker opens and all calls fail
+ * fast with {@link KmsUnavailableException} until a probe or a trial call succeeds again.
+ *
+ * <p>
+ * Per-operation timeouts can be set with {@code kms.breaker.timeout-ms.<operation>}, e.g.
+ * {@code kms.breaker.timeout-ms.processOffer=8000}.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class KmsCircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(KmsCircuitBreaker.class);
+
+  // Admission of the calls made while CLOSED
+  private static final Object ADMITTED = new Object();
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private FlightRecorder flightRecorder;
+
+  @Value("${kms.breaker.timeout-ms:5000}")
+  private long defaultTimeoutMs;
+
+  @Value("${kms.breaker.max-concurrent-calls:32}")
+  private int maxConcurrentCalls;
+
+  @Value("${kms.breaker.window-size:20}")
+  private int windowSize;
+
+  @Value("${kms.breaker.min-calls:5}")
+  private int minCalls;
+
+  @Value("${kms.breaker.failure-ratio:0.5}")
+  private double failureRatio;
+
+  @Value("${kms.breaker.slow-call-ms:2000}")
+  private long slowCallMs;
+
+  @Value("${kms.breaker.slow-call-ratio:0.8}")
+  private double slowCallRatio;
+
+  @Value("${kms.breaker.open-ms:10000}")
+  private long openMs;
+
+  @Value("${kms.breaker.probe-interval-ms:5000}")
+  private long probeIntervalMs;
+
+  @Value("${kms.breaker.max-pipelines:0}")
+  private int maxPipelines;
+
+  @Value("${kms.breaker.max-used-memory-kb:0}")
+  private long maxUsedMemoryKb;
+
+  private ThreadPoolExecutor callExecutor;
+  private ScheduledExecutorService probeExecutor;
+
+  // Sliding window of the last call outcomes, guarded by "this"
+  private boolean[] failedWindow;
+  private boolean[] slowWindow;
+  private int windowPos;
+  private int windowCount;
+
+  private State state = State.CLOSED;
+  private long openedAt;
+  // Admission of the trial call while it is in flight: only its outcome resolves HALF_OPEN
+  private Object trialToken;
+  private String lastTripReason;
+
+  private final AtomicLong totalCalls = new AtomicLong();
+  private final AtomicLong failedCalls = new AtomicLong();
+  private final AtomicLong timedOutCalls = new AtomicLong();
+  private final AtomicLong rejectedCalls = new AtomicLong();
+  private final AtomicLong trips = new AtomicLong();
+  private volatile int lastProbePipelines = -1;
+  private volatile long lastProbeUsedMemoryKb = -1;
+
+  @PostConstruct
+  private void init() {
+    failedWindow = new boolean[windowSize];
+    slowWindow = new boolean[windowSize];
+
+    callExecutor = new ThreadPoolExecutor(maxConcurrentCalls, maxConcurrentCalls, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxConcurrentCalls),
+        new NamedThreadFactory("kms-call"));
+    callExecutor.allowCoreThreadTimeOut(true);
+
+    probeExecutor = Executors
+        .newSingleThreadScheduledExecutor(new NamedThreadFactory("kms-probe"));
+    probeExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        probe();
+      }
+    }, probeIntervalMs, probeIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    probeExecutor.shutdownNow();
+    callExecutor.shutdownNow();
+  }
+
+  /**
+   * Runs a synchronous KMS operation under the breaker.
+   *
+   * @param operation
+   *          name of the operation, used for per-operation timeouts and logging
+   * @param action
+   *          the blocking call to KMS
+   * @return the result of the call
+   * @throws KmsUnavailableException
+   *           if the breaker is open, the call pool is saturated, or the call timed out
+   */
+  public <T> T call(String operation, Callable<T> action) {
+    final Tracing.Span span = Tracing.start("kms." + operation);
+    try {
+      return guardedCall(operation, action);
+    } catch (RuntimeException e) {
+      span.fail();
+      throw e;
+    } finally {
+      span.end();
+    }
+  }
+
+  private <T> T guardedCall(String operation, Callable<T> action) {
+    final Object admission = allowCall();
+    if (admission == null) {
+      rejectedCalls.incrementAndGet();
+      throw new KmsUnavailableException("Media server unavailable (" + lastTripReason
+          + "), refusing " + operation);
+    }
+
+    totalCalls.incrementAndGet();
+    final long start = System.nanoTime();
+    final Future<T> future;
+    try {
+      future = callExecutor.submit(action);
+    } catch (RejectedExecutionException e) {
+      rejectedCalls.incrementAndGet();
+      record(admission, operation, false, 0);
+      throw new KmsUnavailableException("Too many pending calls to media server, refusing "
+          + operation, e);
+    }
+
+    try {
+      T result = future.get(timeoutFor(operation), TimeUnit.MILLISECONDS);
+      record(admission, operation, true, elapsedMs(start));
+      return result;
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      timedOutCalls.incrementAndGet();
+      record(admission, operation, false, elapsedMs(start));
+      throw new KmsUnavailableException("Media server did not answer " + operation + " within "
+          + timeoutFor(operation) + " ms", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      record(admission, operation, false, elapsedMs(start));
+      throw new KmsUnavailableException("Interrupted while waiting for " + operation, e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      // The server answered with an error: it is alive, the request was just wrong
+      final boolean serverAnswered = cause instanceof KurentoServerException;
+      record(admission, operation, serverAnswered, elapsedMs(start));
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new KmsUnavailableException(operation + " failed: " + cause.getMessage(), cause);
+    }
+  }
+
+  public void run(String operation, final Runnable action) {
+    call(operation, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        action.run();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Releases a media object asynchronously. Releases are never refused, because they are what
+   * relieves an overloaded server; their failures are counted, but they are kept out of the window
+   * and do not resolve a trial.
+   */
+  public void release(MediaObject object, final Continuation<Void> continuation) {
+    object.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        recordRelease(true);
+        continuation.onSuccess(result);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        recordRelease(cause instanceof KurentoServerException);
+        continuation.onError(cause);
+      }
+    });
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    synchronized (this) {
+      stats.put("state", state);
+      stats.put("lastTripReason", lastTripReason);
+    }
+    stats.put("totalCalls", totalCalls.get());
+    stats.put("failedCalls", failedCalls.get());
+    stats.put("timedOutCalls", timedOutCalls.get());
+    stats.put("rejectedCalls", rejectedCalls.get());
+    stats.put("pendingCalls", callExecutor.getActiveCount() + callExecutor.getQueue().size());
+    stats.put("trips", trips.get());
+    stats.put("kmsPipelines", lastProbePipelines);
+    stats.put("kmsUsedMemoryKb", lastProbeUsedMemoryKb);
+    return stats;
+  }
+
+  /**
+   * @return how the call was admitted, to be passed to {@link #record}, or null if refused
+   */
+  private synchronized Object allowCall() {
+    switch (state) {
+      case CLOSED:
+        return ADMITTED;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt < openMs) {
+          return null;
+        }
+        log.info("KMS breaker: HALF_OPEN after {} ms, allowing a trial call", openMs);
+        state = State.HALF_OPEN;
+        trialToken = null;
+        // This call is the trial
+        return takeTrial();
+      case HALF_OPEN:
+      default:
+        return takeTrial();
+    }
+  }
+
+  /**
+   * Admits the trial call of the half-open breaker, unless one is running. Called holding the
+   * breaker lock.
+   */
+  private Object takeTrial() {
+    if (trialToken != null) {
+      return null;
+    }
+    trialToken = new Object();
+    return trialToken;
+  }
+
+  private synchronized void record(Object admission, String operation, boolean success,
+      long latencyMs) {
+    flightRecorder.recordKmsCall(operation, success, latencyMs);
+    if (!success) {
+      failedCalls.incrementAndGet();
+    }
+    final boolean slow = latencyMs >= slowCallMs;
+    if (slow) {
+      log.debug("KMS breaker: slow call {} took {} ms", operation, latencyMs);
+    }
+
+    if (admission == trialToken) {
+      trialToken = null;
+      if (success && !slow) {
+        close("trial call " + operation + " succeeded");
+      } else {
+        trip("trial call " + operation + " failed");
+      }
+      return;
+    }
+
+    // Calls admitted before the breaker opened still complete: they say nothing of its state now
+    if (state != State.CLOSED) {
+      return;
+    }
+
+    failedWindow[windowPos] = !success;
+    slowWindow[windowPos] = slow;
+    windowPos = (windowPos + 1) % windowSize;
+    windowCount = Math.min(windowCount + 1, windowSize);
+
+    if (windowCount < minCalls) {
+      return;
+    }
+
+    int failures = 0;
+    int slowCalls = 0;
+    for (int i = 0; i < windowCount; i++) {
+      if (failedWindow[i]) {
+        failures++;
+      }
+      if (slowWindow[i]) {
+        slowCalls++;
+      }
+    }
+
+    if (failures >= failureRatio * windowCount) {
+      trip(failures + " of the last " + windowCount + " calls failed");
+    } else if (slowCalls >= slowCallRatio * windowCount) {
+      trip(slowCalls + " of the last " + windowCount + " calls took more than " + slowCallMs
+          + " ms");
+    }
+  }
+
+  private void recordRelease(boolean success) {
+    flightRecorder.recordKmsCall("release", success, 0);
+    if (!success) {
+      failedCalls.incrementAndGet();
+    }
+  }
+
+  private synchronized void trip(String reason) {
+    if (state != State.OPEN) {
+      trips.incrementAndGet();
+      log.warn("KMS breaker: OPEN, {}", reason);
+    }
+    state = State.OPEN;
+    openedAt = System.currentTimeMillis();
+    lastTripReason = reason;
+  }
+
+  private synchronized void close(String reason) {
+    log.info("KMS breaker: CLOSED, {}", reason);
+    state = State.CLOSED;
+    windowPos = 0;
+    windowCount = 0;
+    trialToken = null;
+  }
+
+  private void probe() {
+    final ServerManager serverManager;
+    final int pipelines;
+    final long usedMemoryKb;
+    try {
+      serverManager = kurento.getServerManager();
+      pipelines = timedProbe(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          return serverManager.getPipelines().size();
+        }
+      });
+      usedMemoryKb = timedProbe(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return serverManager.getUsedMemory();
+        }
+      });
+    } catch (Exception e) {
+      log.warn("KMS breaker: load probe failed: {}", e.getMessage());
+      trip("load probe failed: " + e.getMessage());
+      return;
+    }
+
+    lastProbePipelines = pipelines;
+    lastProbeUsedMemoryKb = usedMemoryKb;
+    log.trace("KMS breaker: probe found {} pipelines, {} KiB used", pipelines, usedMemoryKb);
+
+    if (maxPipelines > 0 && pipelines >= maxPipelines) {
+      trip("KMS overloaded, " + pipelines + " pipelines");
+    } else if (maxUsedMemoryKb > 0 && usedMemoryKb >= maxUsedMemoryKb) {
+      trip("KMS overloaded, " + usedMemoryKb + " KiB used");
+    } else if (getState() != State.CLOSED) {
+      close("load probe succeeded");
+    }
+  }
+
+  private <T> T timedProbe(Callable<T> action) throws Exception {
+    final Future<T> future = callExecutor.submit(action);
+    try {
+      return future.get(defaultTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new TimeoutException("no answer within " + defaultTimeoutMs + " ms");
+    }
+  }
+
+  private long timeoutFor(String operation) {
+    return env.getProperty("kms.breaker.timeout-ms." + operation, Long.class, defaultTimeoutMs);
+  }
+
+  private static long elapsedMs(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
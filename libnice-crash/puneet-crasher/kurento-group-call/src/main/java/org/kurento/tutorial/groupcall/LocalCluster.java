@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Test harness that runs several signaling nodes of the group call application in one JVM. All of
+ * them share the embedded {@link InMemoryRoomStateStore} and the same media server, so clients
+ * connected to different nodes can join the same room.
+ *
+ * <p>
+ * Usage: {@code mvn spring-boot:run -Dstart-class=org.kurento.tutorial.groupcall.LocalCluster
+ * -Drun.arguments=<nodes>,<basePort>} (defaults: 2 nodes, ports from 8443). Node {@code i} listens
+ * on {@code basePort + i} with node id {@code node-i}; any other {@code --property=value} argument
+ * is passed to every node.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class LocalCluster {
+
+  public static void main(String[] args) throws Exception {
+    int nodes = 2;
+    int basePort = 8443;
+    final List<String> extraArgs = new ArrayList<>();
+    final List<String> positional = new ArrayList<>();
+    for (final String arg : args) {
+      if (arg.startsWith("--")) {
+        extraArgs.add(arg);
+      } else {
+        positional.add(arg);
+      }
+    }
+    if (positional.size() > 0) {
+      nodes = Integer.parseInt(positional.get(0));
+    }
+    if (positional.size() > 1) {
+      basePort = Integer.parseInt(positional.get(1));
+    }
+
+    final List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+    for (int i = 0; i < nodes; i++) {
+      final List<String> nodeArgs = new ArrayList<>(extraArgs);
+      nodeArgs.add("--server.port=" + (basePort + i));
+      nodeArgs.add("--groupcall.node-id=node-" + i);
+      nodeArgs.add("--groupcall.state.store=shared");
+      nodeArgs.add("--groupcall.flight-recorder.file=flight-recorder-node-" + i + ".bin");
+      nodeArgs.add("--spring.jmx.enabled=false");
+      contexts.add(new SpringApplicationBuilder(GroupCallApp.class)
+          .run(nodeArgs.toArray(new String[nodeArgs.size()])));
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        for (final ConfigurableApplicationContext context : contexts) {
+          context.close();
+        }
+      }
+    });
+  }
+}
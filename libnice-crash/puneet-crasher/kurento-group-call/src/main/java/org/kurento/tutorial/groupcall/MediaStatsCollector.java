@@ -0,0 +1,469 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.MediaType;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Polls {@code getStats} on the endpoints of the participants of this node, and aggregates packet
+ * loss, round trip time, jitter and bitrate into a {@link MediaStatsSeries} per room.
+ *
+ * <p>
+ * Outgoing endpoints report what KMS receives from each publisher; incoming endpoints, what KMS
+ * sends to each subscriber and the loss and RTT the subscriber reports back. Each endpoint is
+ * polled on its own adaptive interval: every {@code min-interval-ms} while its loss is high or its
+ * bitrate changing, backing off up to {@code max-interval-ms} while stable. To keep the polling
+ * from loading KMS, at most {@code max-in-flight} requests are outstanding and at most
+ * {@code max-polls-per-second} are started per second, oldest due first; polling is suspended
+ * while the {@link KmsCircuitBreaker} is not closed.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class MediaStatsCollector {
+
+  private static final Logger log = LoggerFactory.getLogger(MediaStatsCollector.class);
+
+  private static final long TICK_MS = 1000;
+  private static final double HIGH_LOSS = 0.02;
+  private static final double BITRATE_CHANGE = 0.2;
+
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${groupcall.media-stats.min-interval-ms:2000}")
+  private long minIntervalMs;
+
+  @Value("${groupcall.media-stats.max-interval-ms:30000}")
+  private long maxIntervalMs;
+
+  @Value("${groupcall.media-stats.max-in-flight:4}")
+  private int maxInFlight;
+
+  @Value("${groupcall.media-stats.max-polls-per-second:20}")
+  private int maxPollsPerSecond;
+
+  @Value("${groupcall.media-stats.bucket-ms:10000}")
+  private long bucketMs;
+
+  @Value("${groupcall.media-stats.history:360}")
+  private int history;
+
+  @Value("${groupcall.media-stats.enabled:true}")
+  private boolean enabled;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService pollers;
+  private Semaphore inFlight;
+
+  // Endpoint id -> polling state
+  private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, MediaStatsSeries> series = new ConcurrentHashMap<>();
+  private long bucketStart = System.currentTimeMillis();
+
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong failedPolls = new AtomicLong();
+  private final AtomicLong deferredPolls = new AtomicLong();
+  private final AtomicLong pollNanos = new AtomicLong();
+
+  @PostConstruct
+  private void init() {
+    if (!enabled) {
+      return;
+    }
+    pollers = Executors.newFixedThreadPool(maxInFlight);
+    inFlight = new Semaphore(maxInFlight);
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          tick();
+        } catch (Exception e) {
+          log.warn("Media stats collection failed", e);
+        }
+      }
+    }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    scheduler.shutdownNow();
+    if (pollers != null) {
+      pollers.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the rooms with media stats, and their latest point
+   */
+  public Map<String, Object> getRoomsSummary() {
+    final Map<String, Object> rooms = new LinkedHashMap<>();
+    for (final Map.Entry<String, MediaStatsSeries> entry : series.entrySet()) {
+      final List<Map<String, Object>> points = entry.getValue().toList(0);
+      rooms.put(entry.getKey(), points.isEmpty() ? null : points.get(points.size() - 1));
+    }
+    return rooms;
+  }
+
+  /**
+   * @return the time series of a room, or null if it has none
+   */
+  public List<Map<String, Object>> getRoomSeries(String roomName, long since) {
+    final MediaStatsSeries roomSeries = series.get(roomName);
+    return roomSeries != null ? roomSeries.toList(since) : null;
+  }
+
+  /**
+   * @return the latest sample of every endpoint of a room
+   */
+  public List<Map<String, Object>> getRoomEndpoints(String roomName) {
+    final List<Map<String, Object>> endpoints = new ArrayList<>();
+    for (final Target target : targets.values()) {
+      if (target.roomName.equals(roomName)) {
+        endpoints.add(target.toMap());
+      }
+    }
+    return endpoints;
+  }
+
+  /**
+   * @param endpointId
+   *          the id of an endpoint of a participant of this node
+   * @return the packet loss last measured on the endpoint, as a fraction, or -1 if it was not
+   *         polled yet
+   */
+  public double getLoss(String endpointId) {
+    final Target target = targets.get(endpointId);
+    return target != null && target.lastSampleAt > 0 ? target.loss : -1;
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final long count = polls.get();
+    stats.put("enabled", enabled);
+    stats.put("endpoints", targets.size());
+    stats.put("polls", count);
+    stats.put("failedPolls", failedPolls.get());
+    stats.put("deferredPolls", deferredPolls.get());
+    stats.put("avgPollMicros", count > 0 ? pollNanos.get() / 1000 / count : 0);
+    return stats;
+  }
+
+  private void tick() {
+    refreshTargets();
+
+    final long now = System.currentTimeMillis();
+    if (now - bucketStart >= bucketMs) {
+      flushBuckets(now);
+      bucketStart = now;
+    }
+
+    if (kmsBreaker.getState() != KmsCircuitBreaker.State.CLOSED) {
+      return;
+    }
+
+    final List<Target> due = new ArrayList<>();
+    for (final Target target : targets.values()) {
+      if (!target.polling && target.nextPollAt <= now) {
+        due.add(target);
+      }
+    }
+    Collections.sort(due, new Comparator<Target>() {
+      @Override
+      public int compare(Target a, Target b) {
+        return Long.compare(a.nextPollAt, b.nextPollAt);
+      }
+    });
+
+    int started = 0;
+    for (final Target target : due) {
+      if (started >= maxPollsPerSecond || !inFlight.tryAcquire()) {
+        deferredPolls.addAndGet(due.size() - started);
+        break;
+      }
+      started++;
+      target.polling = true;
+      pollers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            poll(target);
+          } finally {
+            target.polling = false;
+            inFlight.release();
+          }
+        }
+      });
+    }
+  }
+
+  /** Tracks the endpoints of the current participants, and forgets those that are gone. */
+  private void refreshTargets() {
+    final Set<String> current = new HashSet<>();
+    final Set<String> roomNames = new HashSet<>();
+    for (final Room room : roomManager.getRooms()) {
+      roomNames.add(room.getName());
+      for (final UserSession user : room.getParticipants()) {
+        if (user.isPublisher()) {
+          track(current, room.getName(), user.getName(), null, user.getOutgoingWebRtcPeer());
+        }
+        for (final Map.Entry<String, WebRtcEndpoint> incoming : user.getIncomingMedia()
+            .entrySet()) {
+          track(current, room.getName(), user.getName(), incoming.getKey(), incoming.getValue());
+        }
+      }
+    }
+    targets.keySet().retainAll(current);
+    series.keySet().retainAll(roomNames);
+    buckets.keySet().retainAll(roomNames);
+  }
+
+  private void track(Set<String> current, String roomName, String userName, String senderName,
+      WebRtcEndpoint endpoint) {
+    final String id = endpoint.getId();
+    current.add(id);
+    if (!targets.containsKey(id)) {
+      // Spread the first polls of a new room over the minimum interval
+      final long firstPoll = System.currentTimeMillis() + (long) (Math.random() * minIntervalMs);
+      targets.put(id, new Target(roomName, userName, senderName, endpoint, firstPoll,
+          minIntervalMs));
+    }
+  }
+
+  private void poll(final Target target) {
+    final long start = System.nanoTime();
+    final Map<String, Stats> stats;
+    try {
+      stats = kmsBreaker.call("getStats", new Callable<Map<String, Stats>>() {
+        @Override
+        public Map<String, Stats> call() throws Exception {
+          return target.endpoint.getStats(MediaType.VIDEO);
+        }
+      });
+    } catch (RuntimeException e) {
+      failedPolls.incrementAndGet();
+      target.nextPollAt = System.currentTimeMillis() + maxIntervalMs;
+      log.debug("Could not get stats of endpoint {}: {}", target.endpoint.getId(), e.getMessage());
+      return;
+    }
+    polls.incrementAndGet();
+    pollNanos.addAndGet(System.nanoTime() - start);
+
+    long bytes = 0;
+    double loss = 0;
+    double rttMs = -1;
+    double jitterMs = -1;
+    for (final Stats stat : stats.values()) {
+      if (target.isOutgoing() && stat instanceof RTCInboundRTPStreamStats) {
+        final RTCInboundRTPStreamStats inbound = (RTCInboundRTPStreamStats) stat;
+        bytes += inbound.getBytesReceived();
+        loss = Math.max(loss, normalizeLoss(inbound.getFractionLost()));
+        jitterMs = Math.max(jitterMs, inbound.getJitter() * 1000);
+      } else if (!target.isOutgoing() && stat instanceof RTCOutboundRTPStreamStats) {
+        final RTCOutboundRTPStreamStats outbound = (RTCOutboundRTPStreamStats) stat;
+        bytes += outbound.getBytesSent();
+        loss = Math.max(loss, normalizeLoss(outbound.getFractionLost()));
+        rttMs = Math.max(rttMs, outbound.getRoundTripTime() * 1000);
+      }
+    }
+
+    final long now = System.currentTimeMillis();
+    final int previousKbps = target.kbps;
+    if (target.lastSampleAt > 0 && bytes >= target.lastBytes) {
+      target.kbps = (int) ((bytes - target.lastBytes) * 8 / Math.max(1, now - target.lastSampleAt));
+    }
+    target.lastBytes = bytes;
+    target.lastSampleAt = now;
+    target.loss = loss;
+    target.rttMs = rttMs;
+    target.jitterMs = jitterMs;
+
+    final boolean unstable = loss > HIGH_LOSS
+        || Math.abs(target.kbps - previousKbps) > BITRATE_CHANGE * Math.max(previousKbps, 1);
+    target.intervalMs = unstable ? minIntervalMs : Math.min(target.intervalMs * 2, maxIntervalMs);
+    target.nextPollAt = now + target.intervalMs;
+
+    Bucket bucket = buckets.get(target.roomName);
+    if (bucket == null) {
+      final Bucket created = new Bucket();
+      bucket = buckets.putIfAbsent(target.roomName, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    bucket.add(target);
+  }
+
+  /**
+   * KMS reports the RTCP "fraction lost" field either as a fraction or as its raw 8 bit value.
+   */
+  private static double normalizeLoss(double fractionLost) {
+    return fractionLost > 1 ? fractionLost / 256 : fractionLost;
+  }
+
+  private void flushBuckets(long now) {
+    for (final Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+      MediaStatsSeries roomSeries = series.get(entry.getKey());
+      if (roomSeries == null) {
+        roomSeries = new MediaStatsSeries(history);
+        series.put(entry.getKey(), roomSeries);
+      }
+      entry.getValue().flushTo(roomSeries, targets.keySet(), now);
+    }
+  }
+
+  /** Aggregation of the samples of a room during the current interval. */
+  private static class Bucket {
+    private final Map<String, Target> sampled = new HashMap<>();
+    private double lossSum;
+    private double lossMax;
+    private int lossCount;
+    private double rttSum;
+    private int rttCount;
+    private double jitterSum;
+    private int jitterCount;
+
+    synchronized void add(Target target) {
+      sampled.put(target.endpoint.getId(), target);
+      lossSum += target.loss;
+      lossMax = Math.max(lossMax, target.loss);
+      lossCount++;
+      if (target.rttMs >= 0) {
+        rttSum += target.rttMs;
+        rttCount++;
+      }
+      if (target.jitterMs >= 0) {
+        jitterSum += target.jitterMs;
+        jitterCount++;
+      }
+    }
+
+    synchronized void flushTo(MediaStatsSeries roomSeries, Set<String> live, long now) {
+      sampled.keySet().retainAll(live);
+      if (lossCount == 0) {
+        return;
+      }
+      int publishers = 0;
+      int subscribers = 0;
+      int kbpsIn = 0;
+      int kbpsOut = 0;
+      for (final Target target : sampled.values()) {
+        if (target.isOutgoing()) {
+          publishers++;
+          kbpsIn += target.kbps;
+        } else {
+          subscribers++;
+          kbpsOut += target.kbps;
+        }
+      }
+      roomSeries.add(now, publishers, subscribers, kbpsIn, kbpsOut, (float) (lossSum / lossCount),
+          (float) lossMax, rttCount > 0 ? (float) (rttSum / rttCount) : -1,
+          jitterCount > 0 ? (float) (jitterSum / jitterCount) : -1);
+
+      // Endpoints polled less often than the interval still count in the next point
+      lossSum = 0;
+      lossMax = 0;
+      lossCount = 0;
+      rttSum = 0;
+      rttCount = 0;
+      jitterSum = 0;
+      jitterCount = 0;
+    }
+  }
+
+  /** Polling state and latest sample of an endpoint. */
+  private static class Target {
+    final String roomName;
+    final String userName;
+    final String senderName;
+    final WebRtcEndpoint endpoint;
+    volatile long nextPollAt;
+    volatile boolean polling;
+    long intervalMs;
+    long lastBytes;
+    long lastSampleAt;
+    int kbps;
+    double loss;
+    double rttMs = -1;
+    double jitterMs = -1;
+
+    Target(String roomName, String userName, String senderName, WebRtcEndpoint endpoint,
+        long nextPollAt, long intervalMs) {
+      this.roomName = roomName;
+      this.userName = userName;
+      this.senderName = senderName;
+      this.endpoint = endpoint;
+      this.nextPollAt = nextPollAt;
+      this.intervalMs = intervalMs;
+    }
+
+    boolean isOutgoing() {
+      return senderName == null;
+    }
+
+    Map<String, Object> toMap() {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      map.put("participant", userName);
+      map.put("direction", isOutgoing() ? "publish" : "subscribe");
+      if (!isOutgoing()) {
+        map.put("sender", senderName);
+      }
+      map.put("kbps", kbps);
+      map.put("loss", loss);
+      map.put("rttMs", rttMs);
+      map.put("jitterMs", jitterMs);
+      map.put("pollIntervalMs", intervalMs);
+      map.put("lastSampleAt", lastSampleAt);
+      return map;
+    }
+  }
+}
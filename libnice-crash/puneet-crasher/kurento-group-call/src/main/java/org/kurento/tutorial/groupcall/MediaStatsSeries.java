@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed size time series of the media quality of a room, one point per aggregation interval.
+ * Points are kept in parallel primitive arrays used as a ring buffer, so a long history costs a
+ * few tens of bytes per point and no allocation once full.
+ *
+ * @since 6.8.0
+ */
+public class MediaStatsSeries {
+
+  private final long[] timestamps;
+  private final short[] publishers;
+  private final short[] subscribers;
+  private final int[] kbpsIn;
+  private final int[] kbpsOut;
+  private final float[] lossAvg;
+  private final float[] lossMax;
+  private final float[] rttAvgMs;
+  private final float[] jitterAvgMs;
+
+  private int next;
+  private int count;
+
+  public MediaStatsSeries(int capacity) {
+    timestamps = new long[capacity];
+    publishers = new short[capacity];
+    subscribers = new short[capacity];
+    kbpsIn = new int[capacity];
+    kbpsOut = new int[capacity];
+    lossAvg = new float[capacity];
+    lossMax = new float[capacity];
+    rttAvgMs = new float[capacity];
+    jitterAvgMs = new float[capacity];
+  }
+
+  public synchronized void add(long timestamp, int publisherCount, int subscriberCount,
+      int inKbps, int outKbps, float avgLoss, float maxLoss, float avgRttMs, float avgJitterMs) {
+    timestamps[next] = timestamp;
+    publishers[next] = (short) Math.min(publisherCount, Short.MAX_VALUE);
+    subscribers[next] = (short) Math.min(subscriberCount, Short.MAX_VALUE);
+    kbpsIn[next] = inKbps;
+    kbpsOut[next] = outKbps;
+    lossAvg[next] = avgLoss;
+    lossMax[next] = maxLoss;
+    rttAvgMs[next] = avgRttMs;
+    jitterAvgMs[next] = avgJitterMs;
+
+    next = (next + 1) % timestamps.length;
+    count = Math.min(count + 1, timestamps.length);
+  }
+
+  /**
+   * @param since
+   *          only return points after this time, in milliseconds since the epoch
+   * @return the points, oldest first
+   */
+  public synchronized List<Map<String, Object>> toList(long since) {
+    final List<Map<String, Object>> points = new ArrayList<>(count);
+    final int first = (next - count + timestamps.length) % timestamps.length;
+    for (int i = 0; i < count; i++) {
+      final int at = (first + i) % timestamps.length;
+      if (timestamps[at] <= since) {
+        continue;
+      }
+      final Map<String, Object> point = new LinkedHashMap<>();
+      point.put("timestamp", timestamps[at]);
+      point.put("publishers", publishers[at]);
+      point.put("subscribers", subscribers[at]);
+      point.put("kbpsIn", kbpsIn[at]);
+      point.put("kbpsOut", kbpsOut[at]);
+      point.put("lossAvg", lossAvg[at]);
+      point.put("lossMax", lossMax[at]);
+      point.put("rttAvgMs", rttAvgMs[at]);
+      point.put("jitterAvgMs", jitterAvgMs[at]);
+      points.add(point);
+    }
+    return points;
+  }
+}
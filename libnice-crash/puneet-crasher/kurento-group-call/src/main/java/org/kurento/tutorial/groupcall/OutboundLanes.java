@@ -0,0 +1,295 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Outbound signaling queue of a WebSocket session, split into priority lanes so that a join storm
+ * does not hold SDP answers behind floods of candidates and roster updates. Every message sent to a
+ * client goes through {@link #send}: it is queued in the lane of its type, and the first thread
+ * finding the session idle sends queued messages, highest lane first, until all lanes are empty;
+ * other threads just queue and return.
+ *
+ * <p>
+ * Roster updates are sent only when nothing else is pending, and coalesced while they wait: a
+ * {@code participantLeft} cancels the pending {@code newParticipantArrived} of the same
+ * participant, recording state changes cancel each other, and duplicates are dropped. Time spent
+ * queued is accounted per lane.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public final class OutboundLanes {
+
+  public enum Lane {
+    /** SDP answers, join and resume outcomes, and messages that end the session. */
+    NEGOTIATION,
+    /** ICE candidates. */
+    CANDIDATES,
+    /** Participants arriving and leaving, recording state. */
+    ROSTER
+  }
+
+  private static final String SESSION_ATTRIBUTE = OutboundLanes.class.getName();
+
+  private static final LaneCounters[] counters = new LaneCounters[Lane.values().length];
+
+  static {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LaneCounters();
+    }
+  }
+
+  private static class Pending {
+    final JsonObject message;
+    final Lane lane;
+    final long queuedAt = System.nanoTime();
+
+    Pending(JsonObject message, Lane lane) {
+      this.message = message;
+      this.lane = lane;
+    }
+  }
+
+  private final WebSocketSession session;
+
+  // Guarded by "this". A lane has a queue only while messages wait in it, as most sessions are
+  // idle most of the time
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private final ArrayDeque<Pending>[] queues = new ArrayDeque[Lane.values().length];
+  private boolean sending;
+
+  private OutboundLanes(WebSocketSession session) {
+    this.session = session;
+  }
+
+  /**
+   * Queues a message for a session, and sends it unless another thread is already sending to the
+   * session, in which case that thread will.
+   *
+   * @throws IOException
+   *           if the session is closed, or sending failed; the messages still queued for the
+   *           session are then dropped
+   */
+  public static void send(WebSocketSession session, JsonObject message) throws IOException {
+    if (!session.isOpen()) {
+      throw new IOException("Session " + session.getId() + " is closed");
+    }
+    Object lanes = session.getAttributes().get(SESSION_ATTRIBUTE);
+    if (lanes == null) {
+      final Object created = new OutboundLanes(session);
+      lanes = session.getAttributes().putIfAbsent(SESSION_ATTRIBUTE, created);
+      if (lanes == null) {
+        lanes = created;
+      }
+    }
+    ((OutboundLanes) lanes).enqueue(message);
+  }
+
+  public static Lane laneOf(JsonObject message) {
+    switch (message.get("id").getAsString()) {
+      case "iceCandidate":
+        return Lane.CANDIDATES;
+      case "newParticipantArrived":
+      case "participantLeft":
+      case "recordingStarted":
+      case "recordingStopped":
+        return Lane.ROSTER;
+      default:
+        return Lane.NEGOTIATION;
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    for (final Lane lane : Lane.values()) {
+      stats.put(lane.name().toLowerCase(), counters[lane.ordinal()].toMap());
+    }
+    return stats;
+  }
+
+  private void enqueue(JsonObject message) throws IOException {
+    final Lane lane = laneOf(message);
+    synchronized (this) {
+      if (lane != Lane.ROSTER || !coalesce(message)) {
+        if (queues[lane.ordinal()] == null) {
+          queues[lane.ordinal()] = new ArrayDeque<>(4);
+        }
+        queues[lane.ordinal()].add(new Pending(message, lane));
+      }
+      if (sending) {
+        return;
+      }
+      sending = true;
+    }
+    drain();
+  }
+
+  private void drain() throws IOException {
+    while (true) {
+      final Pending next;
+      synchronized (this) {
+        next = poll();
+        if (next == null) {
+          sending = false;
+          return;
+        }
+      }
+
+      final WebSocketMessage<?> frame = SignalingCodec.encode(session, next.message);
+      try {
+        synchronized (session) {
+          session.sendMessage(frame);
+        }
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          counters[next.lane.ordinal()].dropped.incrementAndGet();
+          for (int i = 0; i < queues.length; i++) {
+            if (queues[i] != null) {
+              counters[i].dropped.addAndGet(queues[i].size());
+              queues[i] = null;
+            }
+          }
+          sending = false;
+        }
+        throw e;
+      }
+      counters[next.lane.ordinal()].sent(next.queuedAt);
+    }
+  }
+
+  private Pending poll() {
+    for (int i = 0; i < queues.length; i++) {
+      if (queues[i] != null) {
+        final Pending next = queues[i].poll();
+        if (queues[i].isEmpty()) {
+          queues[i] = null;
+        }
+        return next;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Merges a roster message with the latest queued message about the same thing: the same
+   * participant, or the recording state. Only that one tells what the client will believe once the
+   * queue is sent, so it is the only one the new message can cancel or repeat.
+   *
+   * @return true if the message needs not be queued
+   */
+  private boolean coalesce(JsonObject message) {
+    final String id = message.get("id").getAsString();
+    final boolean recordingState = id.startsWith("recording");
+    final LaneCounters laneCounters = counters[Lane.ROSTER.ordinal()];
+
+    final ArrayDeque<Pending> queue = queues[Lane.ROSTER.ordinal()];
+    if (queue == null) {
+      return false;
+    }
+    final Iterator<Pending> it = queue.descendingIterator();
+    while (it.hasNext()) {
+      final JsonObject pending = it.next().message;
+      final String pendingId = pending.get("id").getAsString();
+      if (recordingState != pendingId.startsWith("recording")
+          || !recordingState && !pending.get("name").equals(message.get("name"))) {
+        continue;
+      }
+      if (pending.equals(message)) {
+        laneCounters.coalesced.incrementAndGet();
+        return true;
+      }
+      if (recordingState
+          || "participantLeft".equals(id) && "newParticipantArrived".equals(pendingId)) {
+        // Opposite changes, or came and went before the client was told: it never needs to know
+        it.remove();
+        if (queue.isEmpty()) {
+          queues[Lane.ROSTER.ordinal()] = null;
+        }
+        laneCounters.coalesced.addAndGet(2);
+        return true;
+      }
+      return false;
+    }
+    return false;
+  }
+
+  private static class LaneCounters {
+    // Waits in buckets of powers of two microseconds: [0, 1), [1, 2), [2, 4)...
+    private static final int BUCKETS = 32;
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong waitMicros = new AtomicLong();
+    final AtomicLong maxWaitMicros = new AtomicLong();
+    final AtomicLongArray waitBuckets = new AtomicLongArray(BUCKETS);
+
+    void sent(long queuedAt) {
+      final long micros = (System.nanoTime() - queuedAt) / 1000;
+      sent.incrementAndGet();
+      waitMicros.addAndGet(micros);
+      long max = maxWaitMicros.get();
+      while (micros > max && !maxWaitMicros.compareAndSet(max, micros)) {
+        max = maxWaitMicros.get();
+      }
+      waitBuckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+    }
+
+    /** Upper bound of the bucket holding the given fraction of the waits, in microseconds. */
+    long percentile(double fraction) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        total += waitBuckets.get(i);
+      }
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += waitBuckets.get(i);
+        if (seen > 0 && seen >= total * fraction) {
+          return 1L << i;
+        }
+      }
+      return 0;
+    }
+
+    Map<String, Object> toMap() {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      final long sentCount = sent.get();
+      map.put("sent", sentCount);
+      map.put("coalesced", coalesced.get());
+      map.put("dropped", dropped.get());
+      map.put("meanWaitMicros", sentCount > 0 ? waitMicros.get() / sentCount : 0);
+      map.put("p50WaitMicros", percentile(0.5));
+      map.put("p99WaitMicros", percentile(0.99));
+      map.put("maxWaitMicros", maxWaitMicros.get());
+      return map;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+/**
+ * What the signaling nodes of a cluster know about a participant that may be connected to any of
+ * them: the node that holds its WebSocket, and the id of its outgoing endpoint in the room pipeline,
+ * which viewers do not have.
+ *
+ * @since 6.8.0
+ */
+public final class ParticipantInfo {
+
+  private final String name;
+  private final String nodeId;
+  private final String endpointId;
+
+  public ParticipantInfo(String name, String nodeId, String endpointId) {
+    this.name = name;
+    this.nodeId = nodeId;
+    this.endpointId = endpointId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * @return the id of the outgoing endpoint, or null for viewers
+   */
+  public String getEndpointId() {
+    return endpointId;
+  }
+
+  public boolean isPublisher() {
+    return endpointId != null;
+  }
+
+  @Override
+  public String toString() {
+    return name + "@" + nodeId;
+  }
+}
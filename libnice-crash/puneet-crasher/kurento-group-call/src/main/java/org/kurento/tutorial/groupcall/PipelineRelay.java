@@ -0,0 +1,483 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the subscribers of a room over several pipelines, so that a room is not bound to what a
+ * single pipeline can take. The media of a publisher is forwarded from the room pipeline (the
+ * origin) to another pipeline through a pair of {@link RtpEndpoint}s, the first time a subscriber
+ * there asks for it. It works in one of two modes:
+ *
+ * <ul>
+ * <li>Relay: viewers go to edge pipelines, possibly on other media servers, each taking up to a
+ * fixed number of them; an edge is created when all the others are full.</li>
+ * <li>Sharding: the incoming endpoints of every participant go to one of a fixed number of
+ * pipelines on the media server of the room, the origin being one of them, so that a busy room is
+ * processed by more threads.</li>
+ * </ul>
+ *
+ * <p>
+ * Pipelines other than the origin are released with their last subscriber.
+ * </p>
+ *
+ * <p>
+ * Pipelines and bridges are created without holding the lock of the relay, so that subscribers of
+ * different pipelines, or of different publishers, do not wait for each other's calls to the
+ * media server. A pipeline or bridge being created is published as pending, and the threads
+ * needing it meanwhile wait for it.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class PipelineRelay {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelineRelay.class);
+
+  private static class Bridge {
+    final RtpEndpoint originSide;
+    final RtpEndpoint edgeSide;
+
+    Bridge(RtpEndpoint originSide, RtpEndpoint edgeSide) {
+      this.originSide = originSide;
+      this.edgeSide = edgeSide;
+    }
+  }
+
+  private static class PendingBridge {
+    Bridge bridge;
+    boolean failed;
+  }
+
+  private static class Edge {
+    // Null while the pipeline is being created
+    MediaPipeline pipeline;
+    boolean failed;
+    final String kmsUrl;
+    final Map<String, Bridge> bridges = new HashMap<>();
+    final Map<String, PendingBridge> pendingBridges = new HashMap<>();
+    int subscribers;
+
+    Edge(MediaPipeline pipeline, String kmsUrl) {
+      this.pipeline = pipeline;
+      this.kmsUrl = kmsUrl;
+    }
+  }
+
+  private final String roomName;
+  private final MediaPipeline origin;
+  private final RelayManager manager;
+  private final KmsCircuitBreaker kmsBreaker;
+  private final boolean sharding;
+  private final int edgeCapacity;
+  private final int maxEdges;
+
+  // Guarded by "this"; in sharding mode, the origin is the first one
+  private final List<Edge> edges = new ArrayList<>();
+
+  /**
+   * @param sharding
+   *          true to place every participant, on the origin too, with one participant per
+   *          pipeline before doubling up; false to only place viewers, on edges
+   */
+  PipelineRelay(String roomName, MediaPipeline origin, RelayManager manager,
+      KmsCircuitBreaker kmsBreaker, boolean sharding, int edgeCapacity, int maxEdges) {
+    this.roomName = roomName;
+    this.origin = origin;
+    this.manager = manager;
+    this.kmsBreaker = kmsBreaker;
+    this.sharding = sharding;
+    this.edgeCapacity = edgeCapacity;
+    this.maxEdges = maxEdges;
+    if (sharding) {
+      edges.add(new Edge(origin, ""));
+    }
+  }
+
+  /**
+   * @return true if every participant is to be placed, false if only viewers
+   */
+  public boolean isSharding() {
+    return sharding;
+  }
+
+  /**
+   * Picks the pipeline for the subscriptions of a new participant: the least loaded one with room
+   * left, or a new one. Once the room has its maximum number of pipelines, the least loaded one,
+   * even if full.
+   *
+   * @return the pipeline, to be passed back to {@link #leave} when the participant goes
+   * @throws KmsUnavailableException
+   *           if a new pipeline was needed but could not be created
+   */
+  public MediaPipeline place() {
+    final Edge created;
+    synchronized (this) {
+      Edge best = null;
+      for (final Edge edge : edges) {
+        if (best == null || edge.subscribers < best.subscribers) {
+          best = edge;
+        }
+      }
+      if ((best != null && best.subscribers < edgeCapacity) || edges.size() >= maxEdges) {
+        best.subscribers++;
+        return awaitPipeline(best);
+      }
+      created = new Edge(null, manager.nextEdgeUrl());
+      created.subscribers++;
+      edges.add(created);
+    }
+
+    MediaPipeline pipeline = null;
+    RuntimeException failure = null;
+    try {
+      pipeline = manager.createEdgePipeline(created.kmsUrl);
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+
+    synchronized (this) {
+      if (failure == null && !edges.contains(created)) {
+        // The relay was closed meanwhile
+        failure = new KmsUnavailableException("Relay of room " + roomName + " closed");
+      }
+      if (failure != null) {
+        edges.remove(created);
+        created.failed = true;
+      } else {
+        created.pipeline = pipeline;
+      }
+      notifyAll();
+    }
+    if (failure != null) {
+      if (pipeline != null) {
+        release(pipeline, "edge pipeline");
+      }
+      throw failure;
+    }
+    log.info("ROOM {}: {} {} created{}", roomName, sharding ? "shard" : "relay edge",
+        pipeline.getId(), created.kmsUrl.isEmpty() ? "" : " on " + created.kmsUrl);
+    return pipeline;
+  }
+
+  /**
+   * Frees the place of a participant, releasing its pipeline if it was the last one there, unless
+   * it is the origin.
+   */
+  public synchronized void leave(MediaPipeline pipeline) {
+    final Iterator<Edge> it = edges.iterator();
+    while (it.hasNext()) {
+      final Edge edge = it.next();
+      if (edge.pipeline != null && edge.pipeline.getId().equals(pipeline.getId())) {
+        if (--edge.subscribers <= 0 && edge.pipeline != origin) {
+          it.remove();
+          releaseEdge(edge);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Finds the element a subscriber on a given pipeline connects to in order to receive a publisher,
+   * bridging the publisher to that edge first if needed.
+   *
+   * @param pipeline
+   *          the pipeline of the subscriber
+   * @param publisherName
+   *          the name of the publisher
+   * @param publisherEndpoint
+   *          the outgoing endpoint of the publisher, in the origin pipeline
+   * @return the publisher endpoint itself on the origin, or the edge side of its bridge
+   */
+  public MediaElement getSource(MediaPipeline pipeline, String publisherName,
+      final MediaElement publisherEndpoint) {
+    if (pipeline.getId().equals(origin.getId())) {
+      return publisherEndpoint;
+    }
+    final Edge target;
+    final PendingBridge pending;
+    synchronized (this) {
+      target = findEdge(pipeline);
+      if (target == null) {
+        return publisherEndpoint;
+      }
+      final Bridge bridge = target.bridges.get(publisherName);
+      if (bridge != null) {
+        return bridge.edgeSide;
+      }
+      final PendingBridge other = target.pendingBridges.get(publisherName);
+      if (other != null) {
+        return awaitBridge(other);
+      }
+      pending = new PendingBridge();
+      target.pendingBridges.put(publisherName, pending);
+    }
+
+    Bridge bridge = null;
+    RuntimeException failure = null;
+    try {
+      bridge = bridge(target.pipeline);
+      final RtpEndpoint originSide = bridge.originSide;
+      kmsBreaker.run("connect", new Runnable() {
+        @Override
+        public void run() {
+          publisherEndpoint.connect(originSide);
+        }
+      });
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+
+    synchronized (this) {
+      if (target.pendingBridges.get(publisherName) == pending) {
+        target.pendingBridges.remove(publisherName);
+      } else if (failure == null) {
+        // The publisher left, or the edge was released, meanwhile
+        failure = new KmsUnavailableException("Relay of " + publisherName + " to "
+            + target.pipeline.getId() + " cancelled");
+      }
+      if (failure != null) {
+        pending.failed = true;
+      } else {
+        pending.bridge = bridge;
+        target.bridges.put(publisherName, bridge);
+      }
+      notifyAll();
+    }
+    if (failure != null) {
+      if (bridge != null) {
+        releaseBridge(bridge);
+      }
+      throw failure;
+    }
+    log.debug("ROOM {}: publisher {} relayed to edge {}", roomName, publisherName,
+        target.pipeline.getId());
+    return bridge.edgeSide;
+  }
+
+  /**
+   * Stops relaying a publisher that left the room.
+   */
+  public synchronized void removePublisher(String publisherName) {
+    for (final Edge edge : edges) {
+      // A bridge still being negotiated is released by the thread negotiating it
+      edge.pendingBridges.remove(publisherName);
+      final Bridge bridge = edge.bridges.remove(publisherName);
+      if (bridge != null) {
+        releaseBridge(bridge);
+      }
+    }
+  }
+
+  /**
+   * @return the number of relayed publishers in each pipeline, by pipeline id, counting once more
+   *         in the origin for the origin side of each relay
+   */
+  public synchronized Map<String, Integer> getBridgeCounts() {
+    final Map<String, Integer> counts = new HashMap<>();
+    int originSides = 0;
+    for (final Edge edge : edges) {
+      if (edge.pipeline == null) {
+        continue;
+      }
+      counts.put(edge.pipeline.getId(), edge.bridges.size());
+      originSides += edge.bridges.size();
+    }
+    final Integer originCount = counts.get(origin.getId());
+    counts.put(origin.getId(), (originCount != null ? originCount : 0) + originSides);
+    return counts;
+  }
+
+  /**
+   * @return the ids of the elements the relay created in the origin pipeline
+   */
+  public synchronized Set<String> getOriginObjectIds() {
+    final Set<String> ids = new HashSet<>();
+    for (final Edge edge : edges) {
+      for (final Bridge bridge : edge.bridges.values()) {
+        ids.add(bridge.originSide.getId());
+      }
+    }
+    return ids;
+  }
+
+  public synchronized void close() {
+    for (final Edge edge : edges) {
+      // A pipeline still being created is released by the thread creating it
+      if (edge.pipeline != null && edge.pipeline != origin) {
+        releaseEdge(edge);
+      }
+    }
+    edges.clear();
+    manager.closed(this);
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("room", roomName);
+    stats.put("mode", sharding ? "sharding" : "relay");
+    final List<Map<String, Object>> edgeStats = new ArrayList<>();
+    for (final Edge edge : edges) {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      map.put("pipeline", edge.pipeline != null ? edge.pipeline.getId() : "creating");
+      map.put("kms", edge.kmsUrl.isEmpty() ? "origin" : edge.kmsUrl);
+      map.put("subscribers", edge.subscribers);
+      map.put("relayedPublishers", edge.bridges.size());
+      map.put("pendingPublishers", edge.pendingBridges.size());
+      edgeStats.add(map);
+    }
+    stats.put("pipelines", edgeStats);
+    return stats;
+  }
+
+  private Edge findEdge(MediaPipeline pipeline) {
+    for (final Edge edge : edges) {
+      if (edge.pipeline != null && edge.pipeline.getId().equals(pipeline.getId())) {
+        return edge;
+      }
+    }
+    return null;
+  }
+
+  /** Waits for a pipeline being created by another thread, on which a place was taken. */
+  private MediaPipeline awaitPipeline(Edge edge) {
+    while (edge.pipeline == null && !edge.failed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (edge.pipeline == null && !edge.failed) {
+          edge.subscribers--;
+          throw new KmsUnavailableException("Interrupted while waiting for a new pipeline", e);
+        }
+      }
+    }
+    if (edge.failed) {
+      throw new KmsUnavailableException("Could not create a pipeline for room " + roomName);
+    }
+    return edge.pipeline;
+  }
+
+  /** Waits for a bridge being negotiated by another thread. */
+  private MediaElement awaitBridge(PendingBridge pending) {
+    while (pending.bridge == null && !pending.failed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KmsUnavailableException("Interrupted while waiting for a relay", e);
+      }
+    }
+    if (pending.failed) {
+      throw new KmsUnavailableException("Could not relay a publisher of room " + roomName);
+    }
+    return pending.bridge.edgeSide;
+  }
+
+  /** Creates and negotiates a pair of RTP endpoints from the origin to an edge. */
+  private Bridge bridge(final MediaPipeline edgePipeline) {
+    final RtpEndpoint originSide = kmsBreaker.call("createRtpEndpoint",
+        new Callable<RtpEndpoint>() {
+          @Override
+          public RtpEndpoint call() throws Exception {
+            return new RtpEndpoint.Builder(origin).build();
+          }
+        });
+    RtpEndpoint edgeSide = null;
+    try {
+      edgeSide = kmsBreaker.call("createRtpEndpoint", new Callable<RtpEndpoint>() {
+        @Override
+        public RtpEndpoint call() throws Exception {
+          return new RtpEndpoint.Builder(edgePipeline).build();
+        }
+      });
+      final RtpEndpoint receiver = edgeSide;
+      final String offer = kmsBreaker.call("generateOffer", new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return receiver.generateOffer();
+        }
+      });
+      final String answer = kmsBreaker.call("processOffer", new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return originSide.processOffer(offer);
+        }
+      });
+      kmsBreaker.call("processAnswer", new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return receiver.processAnswer(answer);
+        }
+      });
+      return new Bridge(originSide, edgeSide);
+    } catch (RuntimeException e) {
+      release(originSide, "RTP endpoint");
+      if (edgeSide != null) {
+        release(edgeSide, "RTP endpoint");
+      }
+      throw e;
+    }
+  }
+
+  private void releaseBridge(Bridge bridge) {
+    release(bridge.originSide, "RTP endpoint");
+    release(bridge.edgeSide, "RTP endpoint");
+  }
+
+  private void releaseEdge(Edge edge) {
+    log.info("ROOM {}: relay edge {} released", roomName, edge.pipeline.getId());
+    for (final Bridge bridge : edge.bridges.values()) {
+      release(bridge.originSide, "RTP endpoint");
+    }
+    edge.bridges.clear();
+    edge.pendingBridges.clear();
+    release(edge.pipeline, "edge pipeline");
+  }
+
+  private void release(MediaObject object, final String what) {
+    kmsBreaker.release(object, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("ROOM {}: could not release relay {}: {}", roomName, what, cause.getMessage());
+      }
+    });
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.ErrorEvent;
+import org.kurento.client.EventListener;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Creates and releases the recorders of the rooms. A recorded participant gets a single
+ * {@link RecorderEndpoint}, fed from its outgoing endpoint next to the endpoints of its
+ * subscribers, so recording costs the same whatever the number of subscribers.
+ *
+ * <p>
+ * Files are written by KMS under {@code groupcall.recording.uri}, one per participant and
+ * recording: {@code <uri>/<room>/<participant>-<timestamp>.<ext>}.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class RecordingManager {
+
+  private static final Logger log = LoggerFactory.getLogger(RecordingManager.class);
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${groupcall.recording.enabled:false}")
+  private boolean enabled;
+
+  @Value("${groupcall.recording.uri:file:///tmp/groupcall-recordings}")
+  private String baseUri;
+
+  @Value("${groupcall.recording.profile:WEBM_VIDEO_ONLY}")
+  private MediaProfileSpecType profile;
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong stopped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts recording the media a participant sends.
+   *
+   * @param pipeline
+   *          the pipeline of the room
+   * @param roomName
+   *          the name of the room
+   * @param participantName
+   *          the name of the participant
+   * @param source
+   *          the outgoing endpoint of the participant
+   * @return the recorder, to be passed to {@link #stop(RecorderEndpoint)}
+   */
+  public RecorderEndpoint start(final MediaPipeline pipeline, final String roomName,
+      final String participantName, final WebRtcEndpoint source) {
+    final String uri = baseUri + "/" + fileNameOf(roomName) + "/" + fileNameOf(participantName) + "-"
+        + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date())
+        + extensionOf(profile);
+
+    final RecorderEndpoint recorder = kmsBreaker.call("createRecorderEndpoint",
+        new Callable<RecorderEndpoint>() {
+          @Override
+          public RecorderEndpoint call() throws Exception {
+            return new RecorderEndpoint.Builder(pipeline, uri).withMediaProfile(profile).build();
+          }
+        });
+
+    recorder.addErrorListener(new EventListener<ErrorEvent>() {
+      @Override
+      public void onEvent(ErrorEvent event) {
+        failed.incrementAndGet();
+        log.warn("ROOM {}: recorder of {} failed: {}", roomName, participantName,
+            event.getDescription());
+      }
+    });
+
+    try {
+      kmsBreaker.run("connect", new Runnable() {
+        @Override
+        public void run() {
+          source.connect(recorder);
+        }
+      });
+      kmsBreaker.run("record", new Runnable() {
+        @Override
+        public void run() {
+          recorder.record();
+        }
+      });
+    } catch (RuntimeException e) {
+      release(recorder);
+      throw e;
+    }
+
+    active.incrementAndGet();
+    started.incrementAndGet();
+    log.info("ROOM {}: recording {} to {}", roomName, participantName, uri);
+    return recorder;
+  }
+
+  /**
+   * Stops a recorder, which finishes its file, and releases it.
+   *
+   * @param recorder
+   *          a recorder returned by {@link #start}
+   */
+  public void stop(final RecorderEndpoint recorder) {
+    active.decrementAndGet();
+    stopped.incrementAndGet();
+    try {
+      kmsBreaker.run("stopRecording", new Runnable() {
+        @Override
+        public void run() {
+          recorder.stop();
+        }
+      });
+    } catch (RuntimeException e) {
+      log.warn("Could not stop recorder {}: {}", recorder.getId(), e.getMessage());
+    }
+    release(recorder);
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", enabled);
+    stats.put("profile", profile);
+    stats.put("active", active.get());
+    stats.put("started", started.get());
+    stats.put("stopped", stopped.get());
+    stats.put("failed", failed.get());
+    return stats;
+  }
+
+  private void release(final RecorderEndpoint recorder) {
+    kmsBreaker.release(recorder, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("Released recorder {}", recorder.getId());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Could not release recorder {}", recorder.getId(), cause);
+      }
+    });
+  }
+
+  private static String fileNameOf(String name) {
+    return name.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+
+  private static String extensionOf(MediaProfileSpecType profile) {
+    switch (profile) {
+      case MP4:
+      case MP4_AUDIO_ONLY:
+      case MP4_VIDEO_ONLY:
+        return ".mp4";
+      case JPEG_VIDEO_ONLY:
+        return ".jpg";
+      default:
+        return ".webm";
+    }
+  }
+}
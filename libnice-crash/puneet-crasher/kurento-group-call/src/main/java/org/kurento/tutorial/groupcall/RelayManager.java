@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Creates the {@link PipelineRelay} of each room when relaying or sharding is enabled, and the
+ * pipelines they ask for: on the media server of the room, or in turn on each of
+ * {@code groupcall.relay.kms-urls} for relay edges. Relaying takes precedence over sharding.
+ *
+ * @since 6.8.0
+ */
+public class RelayManager {
+
+  private static final Logger log = LoggerFactory.getLogger(RelayManager.class);
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${groupcall.relay.enabled:false}")
+  private boolean enabled;
+
+  @Value("${groupcall.relay.edge-capacity:50}")
+  private int edgeCapacity;
+
+  @Value("${groupcall.relay.max-edges:8}")
+  private int maxEdges;
+
+  @Value("${groupcall.relay.kms-urls:}")
+  private String[] kmsUrls;
+
+  @Value("${groupcall.shards.count:1}")
+  private int shards;
+
+  private final ConcurrentMap<String, KurentoClient> edgeClients = new ConcurrentHashMap<>();
+  private final AtomicInteger nextUrl = new AtomicInteger();
+  private final Set<PipelineRelay> relays = ConcurrentHashMap.newKeySet();
+
+  @PostConstruct
+  private void init() {
+    if (enabled && shards > 1) {
+      log.warn("Relay: both relaying and sharding are enabled; rooms will only be relayed");
+    }
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    for (final KurentoClient client : edgeClients.values()) {
+      client.destroy();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled || shards > 1;
+  }
+
+  /**
+   * @param roomName
+   *          the name of the room
+   * @param origin
+   *          the pipeline of the room, where its publishers send their media
+   * @return the relay of the room, or null if both relaying and sharding are disabled
+   */
+  public PipelineRelay create(String roomName, MediaPipeline origin) {
+    final PipelineRelay relay;
+    if (enabled) {
+      relay = new PipelineRelay(roomName, origin, this, kmsBreaker, false,
+          Math.max(edgeCapacity, 1), Math.max(maxEdges, 1));
+    } else if (shards > 1) {
+      relay = new PipelineRelay(roomName, origin, this, kmsBreaker, true, 1, shards);
+    } else {
+      return null;
+    }
+    relays.add(relay);
+    return relay;
+  }
+
+  void closed(PipelineRelay relay) {
+    relays.remove(relay);
+  }
+
+  /**
+   * @return the URL of the media server for a new edge, or an empty string for that of the rooms
+   */
+  String nextEdgeUrl() {
+    if (!enabled || kmsUrls.length == 0) {
+      // Shards, or edges on the media server of the rooms
+      return "";
+    }
+    return kmsUrls[Math.abs(nextUrl.getAndIncrement() % kmsUrls.length)].trim();
+  }
+
+  MediaPipeline createEdgePipeline(String url) {
+    final KurentoClient client = url.isEmpty() ? kurento : clientFor(url);
+    return kmsBreaker.call("createMediaPipeline", new Callable<MediaPipeline>() {
+      @Override
+      public MediaPipeline call() throws Exception {
+        return client.createMediaPipeline();
+      }
+    });
+  }
+
+  private KurentoClient clientFor(String url) {
+    KurentoClient client = edgeClients.get(url);
+    if (client == null) {
+      synchronized (edgeClients) {
+        client = edgeClients.get(url);
+        if (client == null) {
+          log.info("Relay: connecting to edge media server {}", url);
+          client = KurentoClient.create(url);
+          edgeClients.put(url, client);
+        }
+      }
+    }
+    return client;
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("mode", enabled ? "relay" : shards > 1 ? "sharding" : "off");
+    final List<Map<String, Object>> rooms = new ArrayList<>();
+    for (final PipelineRelay relay : relays) {
+      rooms.add(relay.getStats());
+    }
+    stats.put("rooms", rooms);
+    return stats;
+  }
+}
@@ -21,14 +21,23 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PreDestroy;
 
 import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
@@ -36,9 +45,20 @@ import org.springframework.web.socket.WebSocketSession;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 
 /**
+ * A room as served by this signaling node. Participants connected to this node are kept here;
+ * the full participant list of the room, including those connected to other nodes, lives in the
+ * {@link RoomStateStore}, and notifications for remote participants are routed through it.
+ *
+ * <p>
+ * Only publishers are announced to the room, listed to newcomers and recorded; viewers receive
+ * the media of the publishers, but nobody is told about them or receives from them, so a room can
+ * hold many viewers at the cost of one incoming endpoint per viewer and publisher.
+ * </p>
+ *
  * @author Ivan Gracia (izanmail@gmail.com)
  * @since 4.3.1
  */
@@ -46,16 +66,40 @@ public class Room implements Closeable {
   private final Logger log = LoggerFactory.getLogger(Room.class);
 
   private final ConcurrentMap<String, UserSession> participants = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, WebRtcEndpoint> remoteEndpoints = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, RecorderEndpoint> recorders = new ConcurrentHashMap<>();
+  // Incoming endpoints of all the participants
+  private final EndpointTable endpoints = new EndpointTable();
   private final MediaPipeline pipeline;
+  private final KmsCircuitBreaker kmsBreaker;
+  private final RoomStateStore store;
+  private final String nodeId;
+  private final KurentoClient kurento;
+  private final SdpMunger sdpMunger;
+  private final RecordingManager recordingManager;
+  // Null unless relaying is enabled
+  private final PipelineRelay relay;
   private final String name;
+  private volatile boolean recording;
+  // Publishers admitted but not in the room state yet, guarded by "this"
+  private int joiningPublishers;
 
   public String getName() {
     return name;
   }
 
-  public Room(String roomName, MediaPipeline pipeline) {
+  public Room(String roomName, MediaPipeline pipeline, KmsCircuitBreaker kmsBreaker,
+      RoomStateStore store, String nodeId, KurentoClient kurento, SdpMunger sdpMunger,
+      RecordingManager recordingManager, PipelineRelay relay) {
     this.name = roomName;
     this.pipeline = pipeline;
+    this.kmsBreaker = kmsBreaker;
+    this.store = store;
+    this.nodeId = nodeId;
+    this.kurento = kurento;
+    this.sdpMunger = sdpMunger;
+    this.recordingManager = recordingManager;
+    this.relay = relay;
     log.info("ROOM {} has been created", roomName);
   }
 
@@ -64,19 +108,140 @@ public class Room implements Closeable {
     this.close();
   }
 
-  public UserSession join(String userName, WebSocketSession session) throws IOException {
-    log.info("ROOM {}: adding participant {}", userName, userName);
-    final UserSession participant = new UserSession(userName, this.name, session, this.pipeline);
-    joinRoom(participant);
-    participants.put(participant.getName(), participant);
+  public UserSession join(String userName, WebSocketSession session, UserSession.Role role)
+      throws IOException {
+    return join(userName, session, role, 0);
+  }
+
+  /**
+   * Adds a participant to the room, as a viewer if it asked to publish but the room has as many
+   * publishers as allowed already.
+   *
+   * @param maxPublishers
+   *          the most publishers the room can have, or 0 for no limit
+   */
+  public UserSession join(String userName, WebSocketSession session, UserSession.Role role,
+      int maxPublishers) throws IOException {
+    final Tracing.Span span = Tracing.start("Room.join");
+    final UserSession.Role admitted = admit(userName, role, maxPublishers);
+    try {
+      return addParticipant(userName, session, admitted);
+    } finally {
+      if (admitted == UserSession.Role.PUBLISHER && maxPublishers > 0) {
+        synchronized (this) {
+          joiningPublishers--;
+        }
+      }
+      span.end();
+    }
+  }
+
+  /**
+   * Decides the role of a participant under the room monitor, counting the publishers still
+   * joining, so that concurrent joins cannot all take the last publisher place.
+   */
+  private UserSession.Role admit(String userName, UserSession.Role role, int maxPublishers) {
+    if (role != UserSession.Role.PUBLISHER || maxPublishers <= 0) {
+      return role;
+    }
+    synchronized (this) {
+      final Collection<String> publishers = getPublisherNames();
+      // Joining again under the same name replaces a publisher instead of adding one
+      final int others = publishers.size() - (publishers.contains(userName) ? 1 : 0);
+      if (others + joiningPublishers >= maxPublishers) {
+        log.info("PARTICIPANT {}: room {} has {} publishers already, joining as viewer", userName,
+            this.name, maxPublishers);
+        return UserSession.Role.VIEWER;
+      }
+      joiningPublishers++;
+      return UserSession.Role.PUBLISHER;
+    }
+  }
+
+  private UserSession addParticipant(String userName, WebSocketSession session,
+      UserSession.Role role) throws IOException {
+    log.info("ROOM {}: adding {} {}", this.name, role.name().toLowerCase(), userName);
+    // Viewers of a relayed room go to an edge, everybody in a sharded room to a shard; what
+    // publishers send always goes to the origin
+    final MediaPipeline subscriberPipeline = isPlaced(role) ? relay.place() : this.pipeline;
+    final UserSession participant;
+    try {
+      participant = new UserSession(userName, this.name, session, this.pipeline,
+          subscriberPipeline, this.kmsBreaker, this.sdpMunger, role, endpoints);
+    } catch (KmsUnavailableException e) {
+      if (isPlaced(role)) {
+        relay.leave(subscriberPipeline);
+      }
+      throw e;
+    }
+    store.addParticipant(this.name, new ParticipantInfo(userName, nodeId,
+        participant.isPublisher() ? participant.getOutgoingWebRtcPeer().getId() : null));
+    if (participant.isPublisher()) {
+      joinRoom(participant);
+    }
+    final UserSession replaced;
+    synchronized (this) {
+      replaced = participants.put(participant.getName(), participant);
+    }
+    if (replaced != null && replaced != participant) {
+      release(replaced);
+    }
+    if (recording && participant.isPublisher()) {
+      startRecorder(participant);
+    }
     sendParticipantNames(participant);
     return participant;
   }
 
   public void leave(UserSession user) throws IOException {
     log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
-    this.removeParticipant(user.getName());
+    // Sessions of the same name are equal: only the identical one leaves
+    synchronized (this) {
+      if (participants.get(user.getName()) != user) {
+        // Replaced by a newer session of the same name, which released it
+        return;
+      }
+      participants.remove(user.getName());
+    }
+    this.removeParticipant(user);
     user.close();
+    releasePlace(user);
+  }
+
+  /**
+   * Releases a stale session of a participant that joined again under the same name, for instance
+   * after reloading its page while its previous session was parked. The participant stays in the
+   * room, so nobody is told it left: the others drop what they received from the old session and
+   * receive from the new one when told it arrived.
+   */
+  private void release(UserSession replaced) {
+    final String name = replaced.getName();
+    log.info("ROOM {}: {} joined again, releasing its previous session", this.name, name);
+    stopRecorder(name);
+    if (replaced.isPublisher()) {
+      if (relay != null) {
+        relay.removePublisher(name);
+      }
+      for (final UserSession participant : participants.values()) {
+        participant.cancelVideoFrom(name);
+      }
+    }
+    try {
+      replaced.close();
+    } catch (IOException e) {
+      log.debug("ROOM {}: Could not invoke close on participant {}", this.name, name, e);
+    }
+    releasePlace(replaced);
+  }
+
+  private boolean isPlaced(UserSession.Role role) {
+    return relay != null && (relay.isSharding() || role == UserSession.Role.VIEWER);
+  }
+
+  private void releasePlace(UserSession user) {
+    if (isPlaced(user.getRole())) {
+      relay.leave(user.getSubscriberPipeline());
+    }
   }
 
   private Collection<String> joinRoom(UserSession newParticipant) throws IOException {
@@ -96,19 +261,261 @@ public class Room implements Closeable {
       }
       participantsList.add(participant.getName());
     }
+    publishToOtherNodes(newParticipantMsg);
 
     return participantsList;
   }
 
-  private void removeParticipant(String name) throws IOException {
-    participants.remove(name);
+  private void removeParticipant(UserSession removed) throws IOException {
+    final String name = removed.getName();
+    stopRecorder(name);
+    store.removeParticipant(this.name, name, nodeId);
+    if (!removed.isPublisher()) {
+      return;
+    }
 
     log.debug("ROOM {}: notifying all users that {} is leaving the room", this.name, name);
+    final JsonObject participantLeftJson = notifyParticipantLeft(name);
+    publishToOtherNodes(participantLeftJson);
+  }
+
+  /**
+   * Handles a message routed from another node, for the participants of this room connected to
+   * this node.
+   *
+   * @param payload
+   *          the JSON message
+   */
+  public void onRemoteMessage(String payload) {
+    final JsonObject message = new JsonParser().parse(payload).getAsJsonObject();
+    switch (message.get("id").getAsString()) {
+      case "recordingStarted":
+        setRecording(true);
+        break;
+      case "recordingStopped":
+        setRecording(false);
+        break;
+      default:
+        break;
+    }
+    if ("participantLeft".equals(message.get("id").getAsString())) {
+      final String leftName = message.get("name").getAsString();
+      remoteEndpoints.remove(leftName);
+      notifyParticipantLeft(leftName);
+      return;
+    }
+
+    for (final UserSession participant : participants.values()) {
+      try {
+        participant.sendMessage(message);
+      } catch (final IOException e) {
+        log.debug("ROOM {}: participant {} could not be notified", name, participant.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Starts recording every participant of the room, on every node, and those joining later on.
+   * Each participant is recorded to its own file, from its outgoing endpoint.
+   *
+   * @param requester
+   *          the participant asking for it, told if recording is not available
+   */
+  public void startRecording(UserSession requester) throws IOException {
+    if (!recordingManager.isEnabled()) {
+      final JsonObject failedMsg = new JsonObject();
+      failedMsg.addProperty("id", "recordingFailed");
+      failedMsg.addProperty("message", "Recording is not enabled on this server");
+      requester.sendMessage(failedMsg);
+      return;
+    }
+    if (!setRecording(true)) {
+      return;
+    }
+    log.info("ROOM {}: recording started by {}", this.name, requester.getName());
+    broadcastRecordingState("recordingStarted");
+  }
+
+  /**
+   * Stops recording the room, closing the files of all its participants.
+   *
+   * @param requester
+   *          the participant asking for it
+   */
+  public void stopRecording(UserSession requester) {
+    if (!setRecording(false)) {
+      return;
+    }
+    log.info("ROOM {}: recording stopped by {}", this.name, requester.getName());
+    broadcastRecordingState("recordingStopped");
+  }
+
+  public boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * Flips the recording state under the room monitor, then starts or stops the recorders outside
+   * it: each of them is a round trip to KMS, and joins, leaves and remote messages of the room
+   * should not queue behind them.
+   *
+   * @return true if the state changed
+   */
+  private boolean setRecording(boolean record) {
+    synchronized (this) {
+      if (recording == record) {
+        return false;
+      }
+      recording = record;
+    }
+    for (final UserSession participant : participants.values()) {
+      if (record && participant.isPublisher()) {
+        startRecorder(participant);
+      } else {
+        stopRecorder(participant.getName());
+      }
+    }
+    return true;
+  }
+
+  private void startRecorder(UserSession participant) {
+    final String participantName = participant.getName();
+    if (!recording || recorders.containsKey(participantName)) {
+      return;
+    }
+    final RecorderEndpoint recorder;
+    try {
+      recorder = recordingManager.start(pipeline, this.name, participantName,
+          participant.getOutgoingWebRtcPeer());
+    } catch (KmsUnavailableException e) {
+      log.warn("ROOM {}: could not record participant {}: {}", this.name, participantName,
+          e.getMessage());
+      return;
+    }
+    // Recording may have stopped, or the participant left, while the recorder was being created
+    synchronized (this) {
+      if (recording && participants.get(participantName) == participant
+          && recorders.putIfAbsent(participantName, recorder) == null) {
+        return;
+      }
+    }
+    recordingManager.stop(recorder);
+  }
+
+  private void stopRecorder(String participantName) {
+    final RecorderEndpoint recorder;
+    synchronized (this) {
+      recorder = recorders.remove(participantName);
+    }
+    if (recorder != null) {
+      recordingManager.stop(recorder);
+    }
+  }
+
+  private void broadcastRecordingState(String id) {
+    final JsonObject stateMsg = new JsonObject();
+    stateMsg.addProperty("id", id);
+    for (final UserSession participant : participants.values()) {
+      try {
+        participant.sendMessage(stateMsg);
+      } catch (final IOException e) {
+        log.debug("ROOM {}: participant {} could not be notified", name, participant.getName(), e);
+      }
+    }
+    publishToOtherNodes(stateMsg);
+  }
+
+  /**
+   * Removes a participant whose node is gone, notifying everybody else in the room.
+   *
+   * @param participant
+   *          the participant of the dead node
+   */
+  public void purgeRemoteParticipant(ParticipantInfo participant) {
+    if (store.removeParticipant(this.name, participant.getName(), participant.getNodeId())
+        && participant.isPublisher()) {
+      remoteEndpoints.remove(participant.getName());
+      publishToOtherNodes(notifyParticipantLeft(participant.getName()));
+    }
+  }
+
+  /**
+   * Finds what a participant has to connect to in order to receive a publisher: the outgoing
+   * endpoint of the publisher, or its relay on the edge of the receiver.
+   *
+   * @param senderName
+   *          the name of the publisher
+   * @param receiver
+   *          the participant receiving it
+   * @return the element to connect from, or null if there is no such publisher in the room
+   */
+  public MediaElement getSenderEndpoint(String senderName, UserSession receiver) {
+    final WebRtcEndpoint sender = getSenderEndpoint(senderName);
+    if (sender == null || relay == null || senderName.equals(receiver.getName())) {
+      return sender;
+    }
+    return relay.getSource(receiver.getSubscriberPipeline(), senderName, sender);
+  }
+
+  /**
+   * Finds the outgoing endpoint of a participant, whichever node it is connected to.
+   *
+   * @param senderName
+   *          the name of the participant
+   * @return its outgoing endpoint, or null if there is no such publisher in the room
+   */
+  public WebRtcEndpoint getSenderEndpoint(String senderName) {
+    final UserSession local = participants.get(senderName);
+    if (local != null) {
+      return local.getOutgoingWebRtcPeer();
+    }
+
+    WebRtcEndpoint remote = remoteEndpoints.get(senderName);
+    if (remote == null) {
+      final ParticipantInfo info = store.getParticipants(this.name).get(senderName);
+      if (info == null || !info.isPublisher()) {
+        return null;
+      }
+      remote = kmsBreaker.call("getById", new Callable<WebRtcEndpoint>() {
+        @Override
+        public WebRtcEndpoint call() throws Exception {
+          return kurento.getById(info.getEndpointId(), WebRtcEndpoint.class);
+        }
+      });
+      remoteEndpoints.put(senderName.intern(), remote);
+    }
+    return remote;
+  }
+
+  /**
+   * @return the names of all the participants in the room, on any node
+   */
+  public Collection<String> getParticipantNames() {
+    return store.getParticipants(this.name).keySet();
+  }
+
+  /**
+   * @return the names of the publishers in the room, on any node
+   */
+  public Collection<String> getPublisherNames() {
+    final List<String> publishers = new ArrayList<>();
+    for (final ParticipantInfo participant : store.getParticipants(this.name).values()) {
+      if (participant.isPublisher()) {
+        publishers.add(participant.getName());
+      }
+    }
+    return publishers;
+  }
+
+  private JsonObject notifyParticipantLeft(String name) {
 
     final List<String> unnotifiedParticipants = new ArrayList<>();
     final JsonObject participantLeftJson = new JsonObject();
     participantLeftJson.addProperty("id", "participantLeft");
     participantLeftJson.addProperty("name", name);
+    if (relay != null) {
+      relay.removePublisher(name);
+    }
     for (final UserSession participant : participants.values()) {
       try {
         participant.cancelVideoFrom(name);
@@ -122,27 +529,100 @@ public class Room implements Closeable {
       log.debug("ROOM {}: The users {} could not be notified that {} left the room", this.name,
           unnotifiedParticipants, name);
     }
+    return participantLeftJson;
+  }
 
+  private void publishToOtherNodes(JsonObject message) {
+    final Set<String> nodes = new HashSet<>();
+    for (final ParticipantInfo participant : store.getParticipants(this.name).values()) {
+      nodes.add(participant.getNodeId());
+    }
+    nodes.remove(nodeId);
+
+    final String payload = message.toString();
+    for (final String node : nodes) {
+      store.publish(node, this.name, payload);
+    }
   }
 
   public void sendParticipantNames(UserSession user) throws IOException {
 
     final JsonArray participantsArray = new JsonArray();
-    for (final UserSession participant : this.getParticipants()) {
-      if (!participant.equals(user)) {
-        final JsonElement participantName = new JsonPrimitive(participant.getName());
-        participantsArray.add(participantName);
+    for (final String participantName : this.getPublisherNames()) {
+      if (!participantName.equals(user.getName())) {
+        final JsonElement participantNameJson = new JsonPrimitive(participantName);
+        participantsArray.add(participantNameJson);
       }
     }
 
     final JsonObject existingParticipantsMsg = new JsonObject();
     existingParticipantsMsg.addProperty("id", "existingParticipants");
     existingParticipantsMsg.add("data", participantsArray);
-    log.debug("PARTICIPANT {}: sending a list of {} participants", user.getName(),
+    existingParticipantsMsg.addProperty("resumeToken", user.getResumeToken());
+    existingParticipantsMsg.addProperty("recording", recording);
+    existingParticipantsMsg.addProperty("role", user.getRole().name().toLowerCase());
+    log.debug("PARTICIPANT {}: sending a list of {} publishers", user.getName(),
         participantsArray.size());
     user.sendMessage(existingParticipantsMsg);
   }
 
+  public MediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  /**
+   * @return the number of endpoints this node created in each pipeline of the room, by pipeline
+   *         id: outgoing, incoming, and relay endpoints
+   */
+  public Map<String, Integer> getEndpointsPerPipeline() {
+    final Map<String, Integer> counts = new LinkedHashMap<>();
+    counts.put(pipeline.getId(), 0);
+    if (relay != null) {
+      counts.putAll(relay.getBridgeCounts());
+    }
+    for (final UserSession participant : participants.values()) {
+      if (participant.isPublisher()) {
+        add(counts, pipeline.getId(), 1);
+      }
+      add(counts, participant.getSubscriberPipeline().getId(), participant.getIncomingCount());
+    }
+    return counts;
+  }
+
+  private static void add(Map<String, Integer> counts, String pipelineId, int count) {
+    final Integer current = counts.get(pipelineId);
+    counts.put(pipelineId, (current != null ? current : 0) + count);
+  }
+
+  /**
+   * @return the ids of the media elements this node created in the pipeline of the room
+   */
+  public Set<String> getMediaObjectIds() {
+    final Set<String> ids = new HashSet<>();
+    for (final UserSession participant : participants.values()) {
+      ids.addAll(participant.getMediaObjectIds());
+    }
+    for (final RecorderEndpoint recorder : recorders.values()) {
+      ids.add(recorder.getId());
+    }
+    if (relay != null) {
+      ids.addAll(relay.getOriginObjectIds());
+    }
+    return ids;
+  }
+
+  /**
+   * @return true if every participant of the room, in the whole cluster, is connected to this node
+   */
+  public boolean isServedOnlyByThisNode() {
+    for (final ParticipantInfo participant : store.getParticipants(this.name).values()) {
+      if (!participant.getNodeId().equals(nodeId)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public Collection<UserSession> getParticipants() {
     return participants.values();
   }
@@ -151,9 +631,33 @@ public class Room implements Closeable {
     return participants.get(name);
   }
 
+  /**
+   * Counts the media endpoints that exist because of a participant: its outgoing endpoint, its
+   * incoming endpoints, and the incoming endpoints other participants have for it.
+   *
+   * @param user
+   *          the participant
+   * @return the number of endpoints that leaving the room would release
+   */
+  public int countEndpointsOf(UserSession user) {
+    int count = (user.isPublisher() ? 1 : 0) + user.getIncomingCount();
+    for (final UserSession participant : participants.values()) {
+      if (participant != user && participant.isReceivingFrom(user.getName())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   @Override
   public void close() {
     for (final UserSession user : participants.values()) {
+      if (store.removeParticipant(this.name, user.getName(), nodeId) && user.isPublisher()) {
+        final JsonObject participantLeftJson = new JsonObject();
+        participantLeftJson.addProperty("id", "participantLeft");
+        participantLeftJson.addProperty("name", user.getName());
+        publishToOtherNodes(participantLeftJson);
+      }
       try {
         user.close();
       } catch (IOException e) {
@@ -161,10 +665,24 @@ public class Room implements Closeable {
             e);
       }
     }
+    if (relay != null) {
+      relay.close();
+    }
 
+    for (final String recorded : recorders.keySet()) {
+      stopRecorder(recorded);
+    }
     participants.clear();
+    remoteEndpoints.clear();
+
+    if (!store.removeRoomIfEmpty(this.name)) {
+      // Other nodes still serve the room: one of them will take the lease and the pipeline over
+      store.releaseLease(this.name, nodeId);
+      log.debug("Room {} closed on node {}, still open on other nodes", this.name, nodeId);
+      return;
+    }
 
-    pipeline.release(new Continuation<Void>() {
+    kmsBreaker.release(pipeline, new Continuation<Void>() {
 
       @Override
       public void onSuccess(Void result) throws Exception {
@@ -17,15 +17,36 @@
 
 package org.kurento.tutorial.groupcall;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
 /**
+ * Keeps the rooms served by this signaling node. Room state is shared with the other nodes through
+ * the {@link RoomStateStore}: a room that already exists in the cluster is attached to its existing
+ * pipeline instead of creating a new one.
+ *
  * @author Ivan Gracia (izanmail@gmail.com)
  * @since 4.3.1
  */
@@ -36,29 +57,219 @@ public class RoomManager {
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Autowired
+  private RoomStateStore store;
+
+  @Autowired
+  private SdpMunger sdpMunger;
+
+  @Autowired
+  private RecordingManager recordingManager;
+
+  @Autowired
+  private RelayManager relayManager;
+
+  @Value("${groupcall.node-id:}")
+  private String nodeId;
+
+  @Value("${groupcall.lease-ttl-ms:15000}")
+  private long leaseTtlMs;
+
   private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
 
+  // Rooms being created, so that concurrent first joins wait for the same creation
+  private final ConcurrentMap<String, FutureTask<Room>> pendingRooms = new ConcurrentHashMap<>();
+
+  // Pipelines created by this node, by id
+  private final ConcurrentMap<String, CreatedPipeline> createdPipelines =
+      new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService leaseScheduler =
+      Executors.newSingleThreadScheduledExecutor();
+
+  @PostConstruct
+  private void init() {
+    if (nodeId == null || nodeId.isEmpty()) {
+      nodeId = UUID.randomUUID().toString();
+    }
+    log.info("Signaling node {} starting", nodeId);
+
+    store.heartbeat(nodeId, leaseTtlMs);
+    store.subscribe(nodeId, new RoomStateStore.MessageListener() {
+      @Override
+      public void onMessage(String roomName, String payload) {
+        final Room room = rooms.get(roomName);
+        if (room != null) {
+          room.onRemoteMessage(payload);
+        }
+      }
+    });
+
+    leaseScheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          maintainLeases();
+        } catch (Exception e) {
+          log.warn("Node {}: error maintaining room leases", nodeId, e);
+        }
+      }
+    }, leaseTtlMs / 3, leaseTtlMs / 3, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    leaseScheduler.shutdownNow();
+    store.unsubscribe(nodeId);
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public Collection<Room> getRooms() {
+    return rooms.values();
+  }
+
+  /**
+   * @return true if this node already serves the room
+   */
+  public boolean hasRoom(String roomName) {
+    return rooms.containsKey(roomName);
+  }
+
+  /**
+   * @param pipelineId
+   *          the id of a pipeline
+   * @return the name of the room the pipeline was created for, or null if this node did not create
+   *         it
+   */
+  public String getCreatedPipelineRoom(String pipelineId) {
+    final CreatedPipeline created = createdPipelines.get(pipelineId);
+    return created != null ? created.roomName : null;
+  }
+
+  /**
+   * Forgets the pipelines created by this node that KMS no longer has. Only those created before
+   * the list of KMS was taken are forgotten: the others may just be missing from it.
+   *
+   * @param existing
+   *          the ids of the pipelines KMS has
+   * @param listedAtNanos
+   *          when the list was requested, as given by {@link System#nanoTime()}
+   */
+  public void forgetGonePipelines(Set<String> existing, long listedAtNanos) {
+    final Iterator<Map.Entry<String, CreatedPipeline>> created =
+        createdPipelines.entrySet().iterator();
+    while (created.hasNext()) {
+      final Map.Entry<String, CreatedPipeline> entry = created.next();
+      if (!existing.contains(entry.getKey())
+          && entry.getValue().createdAtNanos - listedAtNanos < 0) {
+        created.remove();
+      }
+    }
+  }
+
   /**
-   * Looks for a room in the active room list.
+   * Tells whether a pipeline still belongs to a room, here or on another node.
+   *
+   * @param pipelineId
+   *          the id of a pipeline created by this node
+   * @return false if the room the pipeline was created for is gone
+   */
+  public boolean isPipelineInUse(String pipelineId) {
+    final String roomName = getCreatedPipelineRoom(pipelineId);
+    if (roomName == null) {
+      return false;
+    }
+    final Room room = rooms.get(roomName);
+    if (room != null && room.getPipeline().getId().equals(pipelineId)) {
+      return true;
+    }
+    return pipelineId.equals(store.getPipelineId(roomName));
+  }
+
+  /**
+   * Looks for a room in the active room list. A room is created by the first join that needs it,
+   * without holding up the creation of other rooms: the joins that arrive meanwhile wait for that
+   * creation.
    *
    * @param roomName
    *          the name of the room
    * @return the room if it was already created, or a new one if it is the first time this room is
    *         accessed
+   * @throws KmsUnavailableException
+   *           if the room has to be created but the media server is not available
    */
-  public Room getRoom(String roomName) {
+  public Room getRoom(final String roomName) {
     log.debug("Searching for room {}", roomName);
     Room room = rooms.get(roomName);
+    if (room != null) {
+      log.debug("Room {} found!", roomName);
+      return room;
+    }
 
-    if (room == null) {
-      log.debug("Room {} not existent. Will create now!", roomName);
-      room = new Room(roomName, kurento.createMediaPipeline());
-      rooms.put(roomName, room);
+    final FutureTask<Room> creation = new FutureTask<>(new Callable<Room>() {
+      @Override
+      public Room call() {
+        return createRoom(roomName);
+      }
+    });
+    final FutureTask<Room> pending = pendingRooms.putIfAbsent(roomName, creation);
+    if (pending != null) {
+      return awaitRoom(roomName, pending);
+    }
+    try {
+      // Created meanwhile by a creation that completed before ours was published
+      room = rooms.get(roomName);
+      if (room != null) {
+        return room;
+      }
+      creation.run();
+    } finally {
+      pendingRooms.remove(roomName, creation);
     }
-    log.debug("Room {} found!", roomName);
+    return awaitRoom(roomName, creation);
+  }
+
+  private Room createRoom(String roomName) {
+    final MediaPipeline pipeline = obtainPipeline(roomName);
+    final Room room = new Room(roomName, pipeline, kmsBreaker, store, nodeId, kurento, sdpMunger,
+        recordingManager, relayManager.create(roomName, pipeline));
+    store.acquireLease(roomName, nodeId, leaseTtlMs);
+    rooms.put(roomName, room);
+    log.debug("Room {} created", roomName);
     return room;
   }
 
+  private Room awaitRoom(String roomName, FutureTask<Room> creation) {
+    try {
+      return creation.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KmsUnavailableException("Interrupted while waiting for room " + roomName, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new KmsUnavailableException("Could not create room " + roomName, e.getCause());
+    }
+  }
+
+  /**
+   * Looks for a room without creating it, for those leaving it.
+   *
+   * @param roomName
+   *          the name of the room
+   * @return the room, or null if this node does not serve it (any more)
+   */
+  public Room findRoom(String roomName) {
+    return rooms.get(roomName);
+  }
+
   /**
    * Removes a room from the list of available rooms.
    *
@@ -71,4 +282,86 @@ public class RoomManager {
     log.info("Room {} removed and closed", room.getName());
   }
 
+  /**
+   * Attaches to the pipeline another node created for the room, or creates it if this is the first
+   * node to serve the room.
+   */
+  private MediaPipeline obtainPipeline(String roomName) {
+    final String existingId = store.getPipelineId(roomName);
+    if (existingId != null) {
+      log.debug("Room {} already exists in the cluster, attaching to pipeline {}", roomName,
+          existingId);
+      return attachPipeline(existingId);
+    }
+
+    log.debug("Room {} not existent. Will create now!", roomName);
+    final long createdAtNanos = System.nanoTime();
+    final MediaPipeline pipeline = kmsBreaker.call("createMediaPipeline",
+        new Callable<MediaPipeline>() {
+          @Override
+          public MediaPipeline call() throws Exception {
+            return kurento.createMediaPipeline();
+          }
+        });
+
+    createdPipelines.put(pipeline.getId(), new CreatedPipeline(roomName, createdAtNanos));
+    final String winnerId = store.putPipelineIdIfAbsent(roomName, pipeline.getId());
+    if (winnerId == null) {
+      return pipeline;
+    }
+
+    // Another node created the room at the same time: use its pipeline
+    kmsBreaker.release(pipeline, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Could not release duplicate pipeline: {}", cause.getMessage());
+      }
+    });
+    return attachPipeline(winnerId);
+  }
+
+  private MediaPipeline attachPipeline(final String pipelineId) {
+    return kmsBreaker.call("getById", new Callable<MediaPipeline>() {
+      @Override
+      public MediaPipeline call() throws Exception {
+        return kurento.getById(pipelineId, MediaPipeline.class);
+      }
+    });
+  }
+
+  /**
+   * Keeps this node and its room leases alive, and takes over the rooms whose lease holder died:
+   * the holder of a room purges the participants of dead nodes from it.
+   */
+  private void maintainLeases() {
+    store.heartbeat(nodeId, leaseTtlMs);
+
+    for (final Room room : rooms.values()) {
+      if (!store.acquireLease(room.getName(), nodeId, leaseTtlMs)) {
+        continue;
+      }
+      for (final Map.Entry<String, ParticipantInfo> entry : store.getParticipants(room.getName())
+          .entrySet()) {
+        final ParticipantInfo participant = entry.getValue();
+        if (!participant.getNodeId().equals(nodeId) && !store.isAlive(participant.getNodeId())) {
+          log.info("Room {}: purging participant {} of dead node", room.getName(), participant);
+          room.purgeRemoteParticipant(participant);
+        }
+      }
+    }
+  }
+
+  private static class CreatedPipeline {
+    final String roomName;
+    final long createdAtNanos;
+
+    CreatedPipeline(String roomName, long createdAtNanos) {
+      this.roomName = roomName;
+      this.createdAtNanos = createdAtNanos;
+    }
+  }
 }
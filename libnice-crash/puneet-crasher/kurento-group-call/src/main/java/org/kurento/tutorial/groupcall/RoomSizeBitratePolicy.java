@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Splits a per-participant download budget among the other participants of the room, so the rate
+ * of each subscription goes down as the room grows. Within that limit, subscriptions reporting
+ * high loss are cut down multiplicatively, and grow back additively once loss is low again.
+ *
+ * @since 6.8.0
+ */
+public class RoomSizeBitratePolicy implements BitratePolicy {
+
+  private static final double HIGH_LOSS = 0.1;
+  private static final double LOW_LOSS = 0.02;
+  private static final double DECREASE = 0.7;
+  private static final double INCREASE = 0.1;
+
+  @Value("${groupcall.bitrate.participant-budget-kbps:6000}")
+  private int budgetKbps;
+
+  @Value("${groupcall.bitrate.min-kbps:100}")
+  private int minKbps;
+
+  @Value("${groupcall.bitrate.max-kbps:500}")
+  private int maxKbps;
+
+  @Override
+  public int subscriberMaxKbps(int roomSize, double loss, int currentKbps) {
+    final int target = clamp(budgetKbps / Math.max(1, roomSize - 1));
+    if (currentKbps <= 0) {
+      return target;
+    }
+    if (loss > HIGH_LOSS) {
+      return clamp((int) (currentKbps * DECREASE));
+    }
+    if (loss >= 0 && loss < LOW_LOSS && currentKbps < target) {
+      return Math.min(target, currentKbps + Math.max(1, (int) (target * INCREASE)));
+    }
+    return Math.min(target, currentKbps);
+  }
+
+  @Override
+  public int publisherMinKbps(int roomSize) {
+    return minKbps;
+  }
+
+  private int clamp(int kbps) {
+    return Math.max(minKbps, Math.min(maxKbps, kbps));
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Map;
+
+/**
+ * Room state shared by all the signaling nodes that serve the same rooms. All nodes must use the
+ * same media server, so that the pipeline and endpoint ids kept here can be resolved by any of
+ * them.
+ *
+ * <p>
+ * A room is served by every node that has participants in it. One of them holds the room lease:
+ * it renews it periodically, purges participants of nodes that stopped sending heartbeats, and is
+ * the one that takes over if the previous holder dies. Messages addressed to the participants of a
+ * node are routed to it through {@link #publish(String, String, String)}.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public interface RoomStateStore {
+
+  interface MessageListener {
+    void onMessage(String roomName, String payload);
+  }
+
+  /**
+   * Marks a node as alive for the given time.
+   */
+  void heartbeat(String nodeId, long ttlMs);
+
+  boolean isAlive(String nodeId);
+
+  /**
+   * Acquires the lease of a room, or renews it if the node already holds it.
+   *
+   * @return true if the node holds the lease after the call
+   */
+  boolean acquireLease(String roomName, String nodeId, long ttlMs);
+
+  void releaseLease(String roomName, String nodeId);
+
+  String getLeaseOwner(String roomName);
+
+  String getPipelineId(String roomName);
+
+  /**
+   * Sets the pipeline of a room, unless another node already did.
+   *
+   * @return the pipeline id that was already set, or null if the given one was stored
+   */
+  String putPipelineIdIfAbsent(String roomName, String pipelineId);
+
+  void addParticipant(String roomName, ParticipantInfo participant);
+
+  /**
+   * Removes a participant, if it is still the one registered by the given node.
+   *
+   * @return true if the participant was removed
+   */
+  boolean removeParticipant(String roomName, String name, String nodeId);
+
+  /**
+   * @return a snapshot of the participants of a room, by name
+   */
+  Map<String, ParticipantInfo> getParticipants(String roomName);
+
+  /**
+   * Deletes the state of a room if it has no participants left.
+   *
+   * @return true if the room was empty and has been deleted; the caller must then release the
+   *         room pipeline
+   */
+  boolean removeRoomIfEmpty(String roomName);
+
+  void subscribe(String nodeId, MessageListener listener);
+
+  void unsubscribe(String nodeId);
+
+  /**
+   * Sends a message to a node, to be delivered to its participants of a room.
+   */
+  void publish(String nodeId, String roomName, String payload);
+}
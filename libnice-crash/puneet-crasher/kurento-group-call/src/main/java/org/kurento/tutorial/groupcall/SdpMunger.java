@@ -0,0 +1,361 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Rewrites the SDPs exchanged between the browsers and KMS, to restrict the codecs that can be
+ * negotiated and to cap the video bitrate.
+ *
+ * <p>
+ * An SDP is split into its media sections, and the lines of each section into those describing
+ * codecs and header extensions ({@code a=rtpmap}, {@code a=fmtp}, {@code a=rtcp-fb},
+ * {@code a=extmap}, {@code b=}) and the rest (ICE credentials, DTLS fingerprint, SSRCs,
+ * candidates...). The first ones are the same for every offer made by the same browser build, so
+ * the result of filtering them is cached, keyed by their text; the offers of a room then only pay
+ * for splitting the SDP and splicing the per-connection lines back in.
+ * </p>
+ *
+ * <p>
+ * With no codec lists and no bitrate cap configured, SDPs are passed through untouched.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class SdpMunger {
+
+  private static final Logger log = LoggerFactory.getLogger(SdpMunger.class);
+
+  private static final String CRLF = "\r\n";
+
+  /** Codecs that only make sense next to a primary one, and are never filtered by name. */
+  private static final Set<String> AUXILIARY_CODECS = new HashSet<>(
+      Arrays.asList("RTX", "RED", "ULPFEC", "FLEXFEC-03", "TELEPHONE-EVENT", "CN"));
+
+  @Value("${sdp.audio.codecs:}")
+  private String audioCodecsList;
+
+  @Value("${sdp.video.codecs:}")
+  private String videoCodecsList;
+
+  @Value("${sdp.video.max-bitrate-kbps:0}")
+  private int videoMaxBitrateKbps;
+
+  @Value("${sdp.template-cache.size:256}")
+  private int templateCacheSize;
+
+  private Set<String> audioCodecs;
+  private Set<String> videoCodecs;
+  private Map<String, MediaTemplate> templates;
+
+  private final AtomicLong munged = new AtomicLong();
+  private final AtomicLong bypassed = new AtomicLong();
+  private final AtomicLong sections = new AtomicLong();
+  private final AtomicLong templateHits = new AtomicLong();
+  private final AtomicLong templateMisses = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong mungeNanos = new AtomicLong();
+
+  @PostConstruct
+  private void init() {
+    audioCodecs = parseCodecList(audioCodecsList);
+    videoCodecs = parseCodecList(videoCodecsList);
+
+    final int maxEntries = templateCacheSize;
+    templates = Collections.synchronizedMap(new LinkedHashMap<String, MediaTemplate>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MediaTemplate> eldest) {
+        return size() > maxEntries;
+      }
+    });
+
+    if (isEnabled()) {
+      log.info("SDP munging enabled: audio codecs {}, video codecs {}, video bitrate cap {} kbps",
+          audioCodecs.isEmpty() ? "any" : audioCodecs,
+          videoCodecs.isEmpty() ? "any" : videoCodecs, videoMaxBitrateKbps);
+    }
+  }
+
+  public boolean isEnabled() {
+    return !audioCodecs.isEmpty() || !videoCodecs.isEmpty() || videoMaxBitrateKbps > 0;
+  }
+
+  /**
+   * Applies the configured codec filter and bitrate cap to an SDP offer or answer.
+   *
+   * @param sdp
+   *          the SDP, as produced by a browser or by KMS
+   * @return the rewritten SDP, or the same one if munging is disabled
+   */
+  public String munge(String sdp) {
+    if (!isEnabled()) {
+      bypassed.incrementAndGet();
+      return sdp;
+    }
+
+    final long start = System.nanoTime();
+    final ParsedSdp parsed = parse(sdp);
+
+    final StringBuilder out = new StringBuilder(sdp.length());
+    for (final String line : parsed.sessionLines) {
+      out.append(line).append(CRLF);
+    }
+    for (final MediaSection section : parsed.sections) {
+      final String key = section.templateKey();
+      MediaTemplate template = templates.get(key);
+      if (template != null) {
+        templateHits.incrementAndGet();
+      } else {
+        templateMisses.incrementAndGet();
+        template = buildTemplate(section);
+        templates.put(key, template);
+      }
+      section.render(template, out);
+    }
+
+    final String result = out.toString();
+    mungeNanos.addAndGet(System.nanoTime() - start);
+    munged.incrementAndGet();
+    sections.addAndGet(parsed.sections.size());
+    bytesIn.addAndGet(sdp.length());
+    bytesOut.addAndGet(result.length());
+    return result;
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", isEnabled());
+    stats.put("munged", munged.get());
+    stats.put("bypassed", bypassed.get());
+    stats.put("sections", sections.get());
+    stats.put("templates", templates.size());
+    stats.put("templateHits", templateHits.get());
+    stats.put("templateMisses", templateMisses.get());
+    stats.put("bytesIn", bytesIn.get());
+    stats.put("bytesOut", bytesOut.get());
+    final long count = munged.get();
+    stats.put("avgMungeMicros", count > 0 ? mungeNanos.get() / 1000 / count : 0);
+    return stats;
+  }
+
+  private static Set<String> parseCodecList(String list) {
+    final Set<String> codecs = new HashSet<>();
+    for (final String codec : list.split(",")) {
+      if (!codec.trim().isEmpty()) {
+        codecs.add(codec.trim().toUpperCase(Locale.ROOT));
+      }
+    }
+    return codecs;
+  }
+
+  private static ParsedSdp parse(String sdp) {
+    final ParsedSdp parsed = new ParsedSdp();
+    MediaSection current = null;
+    for (final String line : sdp.split("\r?\n")) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.startsWith("m=")) {
+        current = new MediaSection(line);
+        parsed.sections.add(current);
+      } else if (current == null) {
+        parsed.sessionLines.add(line);
+      } else if (isTemplateLine(line)) {
+        current.templateLines.add(line);
+      } else {
+        current.transportLines.add(line);
+      }
+    }
+    return parsed;
+  }
+
+  private static boolean isTemplateLine(String line) {
+    return line.startsWith("a=rtpmap:") || line.startsWith("a=fmtp:")
+        || line.startsWith("a=rtcp-fb:") || line.startsWith("a=extmap:") || line.startsWith("b=");
+  }
+
+  /** Payload type of an {@code a=rtpmap}, {@code a=fmtp} or {@code a=rtcp-fb} line. */
+  private static String payloadTypeOf(String line) {
+    final int colon = line.indexOf(':');
+    final int space = line.indexOf(' ', colon);
+    return space < 0 ? line.substring(colon + 1) : line.substring(colon + 1, space);
+  }
+
+  private MediaTemplate buildTemplate(MediaSection section) {
+    final Set<String> allowed;
+    if ("audio".equals(section.kind)) {
+      allowed = audioCodecs;
+    } else if ("video".equals(section.kind)) {
+      allowed = videoCodecs;
+    } else {
+      allowed = Collections.emptySet();
+    }
+    final boolean capBitrate = "video".equals(section.kind) && videoMaxBitrateKbps > 0;
+
+    final Set<String> removed = new HashSet<>();
+    if (!allowed.isEmpty()) {
+      final Map<String, String> encodings = new HashMap<>();
+      final Map<String, String> associated = new HashMap<>();
+      for (final String line : section.templateLines) {
+        if (line.startsWith("a=rtpmap:")) {
+          final String encoding = line.substring(line.indexOf(' ') + 1).split("/")[0];
+          encodings.put(payloadTypeOf(line), encoding.toUpperCase(Locale.ROOT));
+        } else if (line.startsWith("a=fmtp:") && line.contains("apt=")) {
+          final String apt = line.substring(line.indexOf("apt=") + 4).split(";")[0].trim();
+          associated.put(payloadTypeOf(line), apt);
+        }
+      }
+
+      boolean primaryKept = false;
+      for (final Map.Entry<String, String> codec : encodings.entrySet()) {
+        if (AUXILIARY_CODECS.contains(codec.getValue())) {
+          continue;
+        }
+        if (allowed.contains(codec.getValue())) {
+          primaryKept = true;
+        } else {
+          removed.add(codec.getKey());
+        }
+      }
+      for (final Map.Entry<String, String> retransmission : associated.entrySet()) {
+        if (removed.contains(retransmission.getValue())) {
+          removed.add(retransmission.getKey());
+        }
+      }
+
+      if (!primaryKept && !removed.isEmpty()) {
+        log.warn("None of the {} codecs offered is allowed ({}), leaving them untouched",
+            section.kind, encodings.values());
+        removed.clear();
+      }
+    }
+
+    final StringBuilder formats = new StringBuilder();
+    for (final String format : section.formats) {
+      if (!removed.contains(format)) {
+        formats.append(' ').append(format);
+      }
+    }
+
+    final MediaTemplate template = new MediaTemplate(formats.toString());
+    if (capBitrate) {
+      template.bandwidthLines.add("b=AS:" + videoMaxBitrateKbps);
+      template.bandwidthLines.add("b=TIAS:" + videoMaxBitrateKbps * 1000L);
+    }
+    for (final String line : section.templateLines) {
+      if (line.startsWith("b=")) {
+        if (!capBitrate) {
+          template.bandwidthLines.add(line);
+        }
+      } else if (line.startsWith("a=extmap:") || !removed.contains(payloadTypeOf(line))) {
+        template.attributeLines.add(line);
+      }
+    }
+    return template;
+  }
+
+  private static class ParsedSdp {
+    final List<String> sessionLines = new ArrayList<>();
+    final List<MediaSection> sections = new ArrayList<>();
+  }
+
+  private static class MediaSection {
+    final String kind;
+    final String port;
+    final String proto;
+    final List<String> formats;
+    final List<String> templateLines = new ArrayList<>();
+    final List<String> transportLines = new ArrayList<>();
+
+    MediaSection(String mediaLine) {
+      final String[] fields = mediaLine.substring(2).split(" ");
+      this.kind = fields[0];
+      this.port = fields.length > 1 ? fields[1] : "0";
+      this.proto = fields.length > 2 ? fields[2] : "";
+      this.formats = fields.length > 3 ? Arrays.asList(fields).subList(3, fields.length)
+          : Collections.<String> emptyList();
+    }
+
+    String templateKey() {
+      final StringBuilder key = new StringBuilder(kind).append(' ').append(proto);
+      for (final String format : formats) {
+        key.append(' ').append(format);
+      }
+      for (final String line : templateLines) {
+        key.append('\n').append(line);
+      }
+      return key.toString();
+    }
+
+    /**
+     * Writes the section back, in the order required by RFC 4566: media line, then connection and
+     * bandwidth lines, then attributes.
+     */
+    void render(MediaTemplate template, StringBuilder out) {
+      out.append("m=").append(kind).append(' ').append(port).append(' ').append(proto)
+          .append(template.formats).append(CRLF);
+      for (final String line : transportLines) {
+        if (!line.startsWith("a=")) {
+          out.append(line).append(CRLF);
+        }
+      }
+      for (final String line : template.bandwidthLines) {
+        out.append(line).append(CRLF);
+      }
+      for (final String line : transportLines) {
+        if (line.startsWith("a=")) {
+          out.append(line).append(CRLF);
+        }
+      }
+      for (final String line : template.attributeLines) {
+        out.append(line).append(CRLF);
+      }
+    }
+  }
+
+  private static class MediaTemplate {
+    final String formats;
+    final List<String> bandwidthLines = new ArrayList<>();
+    final List<String> attributeLines = new ArrayList<>();
+
+    MediaTemplate(String formats) {
+      this.formats = formats;
+    }
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Encodes signaling messages for the wire. By default messages are JSON text frames. A client can
+ * negotiate the compact encoding by sending {@code {"id": "setEncoding", "encoding": "compact"}};
+ * from then on it is sent binary frames made of one format byte followed by the message, which is
+ * raw DEFLATE compressed JSON if it is at least {@link #COMPRESS_THRESHOLD} bytes long (SDP offers
+ * and answers), or plain UTF-8 JSON otherwise (ICE candidates, roster updates). Incoming binary
+ * frames use the same format, whatever the negotiated encoding.
+ *
+ * <p>
+ * Bytes on the wire and the CPU time spent encoding and decoding are accounted per encoding, to
+ * compare both. Note that browsers and Tomcat also negotiate permessage-deflate on top of either
+ * encoding; these counters measure application payloads before that.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public final class SignalingCodec {
+
+  public enum Encoding {
+    TEXT, COMPACT
+  }
+
+  public static final int COMPRESS_THRESHOLD = 512;
+
+  /**
+   * Largest message a compressed frame may inflate to. It is well above any SDP offer, and stops a
+   * small frame from expanding into an unbounded buffer.
+   */
+  public static final int MAX_INFLATED_SIZE = 64 * 1024;
+
+  private static final byte FORMAT_JSON = 0;
+  private static final byte FORMAT_DEFLATE = 1;
+
+  private static final String ENCODING_ATTRIBUTE = SignalingCodec.class.getName() + ".encoding";
+
+  private static final Counters textCounters = new Counters();
+  private static final Counters compactCounters = new Counters();
+  private static final AtomicLong joins = new AtomicLong();
+
+  private SignalingCodec() {
+  }
+
+  public static void setEncoding(WebSocketSession session, Encoding encoding) {
+    session.getAttributes().put(ENCODING_ATTRIBUTE, encoding);
+  }
+
+  public static Encoding getEncoding(WebSocketSession session) {
+    final Object encoding = session.getAttributes().get(ENCODING_ATTRIBUTE);
+    return encoding != null ? (Encoding) encoding : Encoding.TEXT;
+  }
+
+  /**
+   * Builds the frame for a message, in the encoding negotiated by the session.
+   */
+  public static WebSocketMessage<?> encode(WebSocketSession session, JsonObject message) {
+    final long start = System.nanoTime();
+    final String json = message.toString();
+    FlightRecorder.recordOutbound(session, json);
+
+    if (getEncoding(session) == Encoding.TEXT) {
+      final TextMessage frame = new TextMessage(json);
+      textCounters.sent(frame.getPayloadLength(), frame.getPayloadLength(), start);
+      return frame;
+    }
+
+    final byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+    final byte[] frame;
+    if (utf8.length >= COMPRESS_THRESHOLD) {
+      frame = deflate(utf8);
+    } else {
+      frame = new byte[utf8.length + 1];
+      frame[0] = FORMAT_JSON;
+      System.arraycopy(utf8, 0, frame, 1, utf8.length);
+    }
+    compactCounters.sent(frame.length, utf8.length, start);
+    return new BinaryMessage(frame);
+  }
+
+  /**
+   * Parses an incoming text or binary frame.
+   *
+   * @throws IllegalArgumentException
+   *           if the frame is not a valid signaling message
+   */
+  public static JsonObject decode(WebSocketMessage<?> frame) {
+    final long start = System.nanoTime();
+
+    if (frame instanceof TextMessage) {
+      final String json = ((TextMessage) frame).getPayload();
+      final JsonObject message = new JsonParser().parse(json).getAsJsonObject();
+      textCounters.received(frame.getPayloadLength(), start);
+      return message;
+    }
+
+    final ByteBuffer buffer = ((BinaryMessage) frame).getPayload();
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    if (bytes.length == 0) {
+      throw new IllegalArgumentException("Empty signaling frame");
+    }
+
+    final byte[] utf8;
+    switch (bytes[0]) {
+      case FORMAT_JSON:
+        utf8 = Arrays.copyOfRange(bytes, 1, bytes.length);
+        break;
+      case FORMAT_DEFLATE:
+        utf8 = inflate(bytes);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown signaling frame format " + bytes[0]);
+    }
+
+    final String json = new String(utf8, StandardCharsets.UTF_8);
+    final JsonObject message = new JsonParser().parse(json).getAsJsonObject();
+    compactCounters.received(bytes.length, start);
+    return message;
+  }
+
+  /**
+   * Runs a sample message through the parser and both frame formats without counting it, so that
+   * the first users do not pay for loading and compiling the signaling path.
+   */
+  public static void warmUp() {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "warmUp");
+    final StringBuilder padding = new StringBuilder(COMPRESS_THRESHOLD);
+    while (padding.length() < COMPRESS_THRESHOLD) {
+      padding.append("a=candidate:1 1 UDP 2122260223 192.0.2.1 50000 typ host\r\n");
+    }
+    message.addProperty("sdpOffer", padding.toString());
+
+    final byte[] utf8 = message.toString().getBytes(StandardCharsets.UTF_8);
+    final String json = new String(inflate(deflate(utf8)), StandardCharsets.UTF_8);
+    new JsonParser().parse(json).getAsJsonObject();
+  }
+
+  public static void countJoin() {
+    joins.incrementAndGet();
+  }
+
+  public static Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final long joinCount = joins.get();
+    stats.put("joins", joinCount);
+    stats.put("text", textCounters.toMap(joinCount));
+    stats.put("compact", compactCounters.toMap(joinCount));
+    return stats;
+  }
+
+  private static byte[] deflate(byte[] input) {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+      out.write(FORMAT_DEFLATE);
+      final byte[] chunk = new byte[4096];
+      while (!deflater.finished()) {
+        final int n = deflater.deflate(chunk);
+        out.write(chunk, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] frame) {
+    final Inflater inflater = new Inflater(true);
+    try {
+      // "nowrap" inflaters need an extra dummy byte after the compressed data
+      final byte[] input = Arrays.copyOfRange(frame, 1, frame.length + 1);
+      inflater.setInput(input);
+      final ByteArrayOutputStream out =
+          new ByteArrayOutputStream(Math.min(frame.length * 4, MAX_INFLATED_SIZE));
+      final byte[] chunk = new byte[4096];
+      while (!inflater.finished()) {
+        final int n = inflater.inflate(chunk);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Truncated compressed signaling frame");
+        }
+        if (out.size() + n > MAX_INFLATED_SIZE) {
+          throw new IllegalArgumentException(
+              "Compressed signaling frame inflates past " + MAX_INFLATED_SIZE + " bytes");
+        }
+        out.write(chunk, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Invalid compressed signaling frame", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static class Counters {
+    final AtomicLong messagesOut = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong jsonBytesOut = new AtomicLong();
+    final AtomicLong encodeNanos = new AtomicLong();
+    final AtomicLong messagesIn = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong decodeNanos = new AtomicLong();
+
+    void sent(int wireBytes, int jsonBytes, long startNanos) {
+      encodeNanos.addAndGet(System.nanoTime() - startNanos);
+      messagesOut.incrementAndGet();
+      bytesOut.addAndGet(wireBytes);
+      jsonBytesOut.addAndGet(jsonBytes);
+    }
+
+    void received(int wireBytes, long startNanos) {
+      decodeNanos.addAndGet(System.nanoTime() - startNanos);
+      messagesIn.incrementAndGet();
+      bytesIn.addAndGet(wireBytes);
+    }
+
+    Map<String, Object> toMap(long joinCount) {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      map.put("messagesOut", messagesOut.get());
+      map.put("bytesOut", bytesOut.get());
+      map.put("jsonBytesOut", jsonBytesOut.get());
+      map.put("encodeMicros", encodeNanos.get() / 1000);
+      map.put("messagesIn", messagesIn.get());
+      map.put("bytesIn", bytesIn.get());
+      map.put("decodeMicros", decodeNanos.get() / 1000);
+      if (joinCount > 0) {
+        map.put("bytesPerJoin", (bytesOut.get() + bytesIn.get()) / joinCount);
+        map.put("cpuMicrosPerJoin", (encodeNanos.get() + decodeNanos.get()) / 1000 / joinCount);
+      }
+      return map;
+    }
+  }
+}
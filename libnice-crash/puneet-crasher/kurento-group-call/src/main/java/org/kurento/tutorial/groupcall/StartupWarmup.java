@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+
+/**
+ * Measures how long the application takes to become ready and to serve its first join, and warms
+ * up what the first join would otherwise find cold once the application is ready: the JSON-RPC
+ * connection to KMS, the client proxies of pipelines and endpoints (by building and releasing a
+ * throwaway pipeline), and the signaling parser and codec.
+ *
+ * <p>
+ * The warm-up runs after the web server has started, so early joins are served concurrently
+ * rather than refused. It is enabled with {@code groupcall.warmup.enabled}; the throwaway pipeline
+ * can be skipped with {@code groupcall.warmup.pipeline=false}.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class StartupWarmup implements ApplicationListener<ApplicationReadyEvent> {
+
+  private static final Logger log = LoggerFactory.getLogger(StartupWarmup.class);
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${groupcall.warmup.enabled:true}")
+  private boolean enabled;
+
+  @Value("${groupcall.warmup.pipeline:true}")
+  private boolean warmPipeline;
+
+  private volatile long readyMs = -1;
+  private volatile long warmupMs = -1;
+  private volatile boolean warmupOk;
+  private volatile long firstJoinMs = -1;
+
+  private final AtomicLong joins = new AtomicLong();
+  private final AtomicLong joinNanos = new AtomicLong();
+
+  @Override
+  public void onApplicationEvent(ApplicationReadyEvent event) {
+    final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    readyMs = System.currentTimeMillis() - runtime.getStartTime();
+    log.info("Ready {} ms after JVM start (class data sharing: {})", readyMs,
+        getSharedArchive() != null ? getSharedArchive() : "off");
+
+    if (!enabled) {
+      return;
+    }
+
+    final long start = System.nanoTime();
+    try {
+      warmUp();
+      warmupOk = true;
+    } catch (RuntimeException e) {
+      log.warn("Warm-up failed, the first users will find the server cold: {}", e.getMessage());
+    }
+    warmupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    log.info("Warm-up took {} ms", warmupMs);
+  }
+
+  /**
+   * Accounts for a join, from the arrival of its message to the creation of its endpoints.
+   */
+  public void recordJoin(long nanos) {
+    if (joins.getAndIncrement() == 0) {
+      firstJoinMs = TimeUnit.NANOSECONDS.toMillis(nanos);
+      log.info("First join took {} ms", firstJoinMs);
+    }
+    joinNanos.addAndGet(nanos);
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final long joinCount = joins.get();
+    stats.put("readyMs", readyMs);
+    stats.put("warmupEnabled", enabled);
+    stats.put("warmupOk", warmupOk);
+    stats.put("warmupMs", warmupMs);
+    stats.put("classDataSharing", getSharedArchive());
+    stats.put("firstJoinMs", firstJoinMs);
+    stats.put("joins", joinCount);
+    stats.put("avgJoinMs",
+        joinCount > 0 ? TimeUnit.NANOSECONDS.toMillis(joinNanos.get() / joinCount) : 0);
+    return stats;
+  }
+
+  private void warmUp() {
+    SignalingCodec.warmUp();
+
+    final String version = kmsBreaker.call("getServerInfo", new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return kurento.getServerManager().getInfo().getVersion();
+      }
+    });
+    log.info("Connected to KMS {}", version);
+
+    if (!warmPipeline) {
+      return;
+    }
+    final MediaPipeline pipeline = kmsBreaker.call("createMediaPipeline",
+        new Callable<MediaPipeline>() {
+      @Override
+      public MediaPipeline call() throws Exception {
+        return kurento.createMediaPipeline();
+      }
+    });
+    try {
+      kmsBreaker.run("createWebRtcEndpoint", new Runnable() {
+        @Override
+        public void run() {
+          final WebRtcEndpoint sender = new WebRtcEndpoint.Builder(pipeline).build();
+          final WebRtcEndpoint receiver = new WebRtcEndpoint.Builder(pipeline).build();
+          sender.connect(receiver);
+        }
+      });
+    } finally {
+      kmsBreaker.release(pipeline, new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+          log.trace("Released warm-up pipeline");
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.warn("Could not release warm-up pipeline: {}", cause.getMessage());
+        }
+      });
+    }
+  }
+
+  /**
+   * @return The class data sharing archive the JVM was started with, or null
+   */
+  private static String getSharedArchive() {
+    for (final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.startsWith("-XX:SharedArchiveFile=")) {
+        return arg.substring(arg.indexOf('=') + 1);
+      }
+    }
+    return null;
+  }
+}
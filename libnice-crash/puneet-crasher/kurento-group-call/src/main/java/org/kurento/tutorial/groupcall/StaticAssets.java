@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.ResourceProperties;
+import org.springframework.core.io.Resource;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.resource.GzipResourceResolver;
+import org.springframework.web.servlet.resource.ResourceTransformerChain;
+import org.springframework.web.servlet.resource.ResourceTransformerSupport;
+import org.springframework.web.servlet.resource.TransformedResource;
+import org.springframework.web.servlet.resource.VersionResourceResolver;
+
+/**
+ * Serves the page of the application and its assets so that a mass join costs as little asset
+ * traffic as possible, leaving the node to signaling:
+ * <ul>
+ * <li>the local links of HTML pages are rewritten to content-hashed file names, e.g.
+ * {@code js/conferenceroom-<md5>.js}, and webjars to their versioned paths;</li>
+ * <li>hashed files are cached by browsers for {@code groupcall.assets.cache-days} without ever
+ * being revalidated, and everything else, the page included, is revalidated on every load, so a
+ * new version is picked up at once;</li>
+ * <li>the {@code .gz} files written by {@link AssetPrecompressor} at build time are sent to
+ * clients that accept gzip, instead of compressing on every request.</li>
+ * </ul>
+ *
+ * <p>
+ * Resolved and transformed resources are cached in memory by the resource chain. Requests,
+ * revalidations, bytes and CPU time spent per page load are reported under "assets" in
+ * {@code /stats}.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class StaticAssets extends WebMvcConfigurerAdapter implements Filter {
+
+  // The file names given by the content version strategy
+  private static final Pattern HASHED = Pattern.compile("-[0-9a-f]{32}\\.[^/.]+$");
+  private static final Pattern ASSET = Pattern.compile("(/|\\.[A-Za-z0-9]+)$");
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  @Autowired
+  private ResourceProperties resourceProperties;
+
+  @Value("${groupcall.assets.cache-days:365}")
+  private int cacheDays;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong pageLoads = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong gzipped = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong cpuNanos = new AtomicLong();
+
+  @Override
+  public void addResourceHandlers(ResourceHandlerRegistry registry) {
+    // Replace the handlers of Spring Boot, which has no link rewriting nor cache policy per file
+    registry.addResourceHandler("/webjars/**")
+        .addResourceLocations("classpath:/META-INF/resources/webjars/")
+        .resourceChain(true)
+        .addResolver(new GzipResourceResolver())
+        .addResolver(new VersionResourceResolver().addContentVersionStrategy("/**"));
+    registry.addResourceHandler("/**")
+        .addResourceLocations(resourceProperties.getStaticLocations())
+        .resourceChain(true)
+        .addResolver(new GzipResourceResolver())
+        .addResolver(new VersionResourceResolver().addContentVersionStrategy("/**"))
+        .addTransformer(new HtmlLinkTransformer());
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  /**
+   * Applies the cache policy, and accounts for what serving assets costs.
+   */
+  @Override
+  public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+      throws IOException, ServletException {
+    final HttpServletRequest request = (HttpServletRequest) req;
+    final String path = request.getRequestURI();
+    if (!"GET".equals(request.getMethod()) || !ASSET.matcher(path).find()) {
+      chain.doFilter(req, res);
+      return;
+    }
+
+    final HttpServletResponse response = (HttpServletResponse) res;
+    if (HASHED.matcher(path).find()) {
+      response.setHeader("Cache-Control", "public, max-age="
+          + TimeUnit.DAYS.toSeconds(cacheDays) + ", immutable");
+    } else {
+      response.setHeader("Cache-Control", "no-cache");
+    }
+
+    final CountingResponse counting = new CountingResponse(response);
+    final long cpuStart = threads.getCurrentThreadCpuTime();
+    try {
+      chain.doFilter(req, counting);
+    } finally {
+      cpuNanos.addAndGet(threads.getCurrentThreadCpuTime() - cpuStart);
+      requests.incrementAndGet();
+      if (path.endsWith("/") || path.endsWith(".html")) {
+        pageLoads.incrementAndGet();
+      }
+      if (response.getStatus() == HttpServletResponse.SC_NOT_MODIFIED) {
+        notModified.incrementAndGet();
+      }
+      if ("gzip".equals(response.getHeader("Content-Encoding"))) {
+        gzipped.incrementAndGet();
+      }
+      bytes.addAndGet(counting.contentLength);
+    }
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    final long loads = pageLoads.get();
+    stats.put("requests", requests.get());
+    stats.put("pageLoads", loads);
+    stats.put("notModified", notModified.get());
+    stats.put("gzipped", gzipped.get());
+    stats.put("bytes", bytes.get());
+    stats.put("cpuMillis", TimeUnit.NANOSECONDS.toMillis(cpuNanos.get()));
+    stats.put("bytesPerPageLoad", loads > 0 ? bytes.get() / loads : 0);
+    stats.put("cpuMicrosPerPageLoad",
+        loads > 0 ? TimeUnit.NANOSECONDS.toMicros(cpuNanos.get()) / loads : 0);
+    return stats;
+  }
+
+  /**
+   * Rewrites the {@code src} and {@code href} attributes of HTML pages that point to local files,
+   * the way Spring's {@code CssLinkResourceTransformer} does for stylesheets.
+   */
+  private static class HtmlLinkTransformer extends ResourceTransformerSupport {
+
+    private static final Pattern LINK =
+        Pattern.compile("\\b(?:src|href)=\"([^\"#?:]+\\.[A-Za-z0-9]+)\"");
+
+    @Override
+    public Resource transform(HttpServletRequest request, Resource resource,
+        ResourceTransformerChain chain) throws IOException {
+      resource = chain.transform(request, resource);
+      if (!"html".equals(StringUtils.getFilenameExtension(resource.getFilename()))) {
+        return resource;
+      }
+
+      final String html = new String(FileCopyUtils.copyToByteArray(resource.getInputStream()),
+          StandardCharsets.UTF_8);
+      final Matcher matcher = LINK.matcher(html);
+      final StringBuffer rewritten = new StringBuffer(html.length());
+      while (matcher.find()) {
+        final String link = matcher.group(1);
+        final String versioned = resolveUrlPath(link, request, resource, chain);
+        final String attribute = versioned != null
+            ? matcher.group().replace(link, versioned) : matcher.group();
+        matcher.appendReplacement(rewritten, Matcher.quoteReplacement(attribute));
+      }
+      matcher.appendTail(rewritten);
+      return new TransformedResource(resource,
+          rewritten.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Keeps the length of the body sent, which the resource handler always sets. */
+  private static class CountingResponse extends HttpServletResponseWrapper {
+    long contentLength;
+
+    CountingResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      contentLength = len;
+      super.setContentLength(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+      contentLength = len;
+      super.setContentLengthLong(len);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Exposes the runtime counters of the application as JSON, under {@code /stats}, and the media
+ * quality of the rooms under {@code /stats/media}.
+ *
+ * @since 6.8.0
+ */
+@RequestMapping("/stats")
+public class StatsController {
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Autowired
+  private UserRegistry registry;
+
+  @Autowired
+  private SdpMunger sdpMunger;
+
+  @Autowired
+  private RecordingManager recordingManager;
+
+  @Autowired
+  private ZombieReaper zombieReaper;
+
+  @Autowired
+  private MediaStatsCollector mediaStats;
+
+  @Autowired
+  private BitrateController bitrateController;
+
+  @Autowired
+  private StartupWarmup startupWarmup;
+
+  @Autowired
+  private DrainController drainController;
+
+  @Autowired
+  private FlightRecorder flightRecorder;
+
+  @Autowired
+  private RelayManager relayManager;
+
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private TraceExporter traceExporter;
+
+  @Autowired
+  private StaticAssets staticAssets;
+
+  @RequestMapping(method = RequestMethod.GET)
+  @ResponseBody
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("kms", kmsBreaker.getStats());
+    stats.put("sessions", registry.getStats());
+    stats.put("signaling", SignalingCodec.getStats());
+    stats.put("lanes", OutboundLanes.getStats());
+    stats.put("sdp", sdpMunger.getStats());
+    stats.put("recording", recordingManager.getStats());
+    stats.put("reaper", zombieReaper.getStats());
+    stats.put("mediaStats", mediaStats.getStats());
+    stats.put("bitrate", bitrateController.getStats());
+    stats.put("startup", startupWarmup.getStats());
+    stats.put("drain", drainController.getStats());
+    stats.put("relay", relayManager.getStats());
+    final Map<String, Object> pipelines = new LinkedHashMap<>();
+    for (final Room room : roomManager.getRooms()) {
+      pipelines.put(room.getName(), room.getEndpointsPerPipeline());
+    }
+    stats.put("endpointsPerPipeline", pipelines);
+    stats.put("flightRecorder", flightRecorder.getStats());
+    stats.put("tracing", traceExporter.getStats());
+    stats.put("assets", staticAssets.getStats());
+    return stats;
+  }
+
+  /**
+   * @return the latest media quality point of every room
+   */
+  @RequestMapping(value = "/media", method = RequestMethod.GET)
+  @ResponseBody
+  public Map<String, Object> getMediaStats() {
+    return mediaStats.getRoomsSummary();
+  }
+
+  /**
+   * @param roomName
+   *          the name of the room
+   * @param since
+   *          only return points after this time, in milliseconds since the epoch
+   * @return the media quality time series of a room, and the latest sample of each endpoint
+   */
+  @RequestMapping(value = "/media/{room:.+}", method = RequestMethod.GET)
+  @ResponseBody
+  public ResponseEntity<Map<String, Object>> getRoomMediaStats(
+      @PathVariable("room") String roomName,
+      @RequestParam(value = "since", defaultValue = "0") long since) {
+    final List<Map<String, Object>> series = mediaStats.getRoomSeries(roomName, since);
+    if (series == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    final Map<String, Object> room = new LinkedHashMap<>();
+    room.put("series", series);
+    room.put("endpoints", mediaStats.getRoomEndpoints(roomName));
+    return new ResponseEntity<>(room, HttpStatus.OK);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal span tracing for the signaling paths, to tell where the time of a slow join goes. The
+ * handling of a client message is a trace; {@link #startTrace} opens its root span on the
+ * WebSocket thread, and {@link #start} opens a child of the span open on the current thread. KMS
+ * calls made by {@link KmsCircuitBreaker} are child spans named {@code kms.<operation>}, timed
+ * from the calling thread, so they include the wait for a free call slot.
+ *
+ * <p>
+ * Spans nest per thread and must be ended in the reverse order they were started, on the thread
+ * that started them; use try/finally. Outside of a trace, {@link #start} does nothing, so the code
+ * it instruments can also run from timers. Finished traces go to the {@link TraceExporter}, which
+ * keeps only those of the messages it is configured for.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public final class Tracing {
+
+  private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+  private static volatile TraceExporter exporter;
+
+  /**
+   * A timed stage of a trace. Its stage path is the names of its ancestors and its own, joined by
+   * "/", e.g. {@code joinRoom/Room.join/kms.createWebRtcEndpoint}.
+   */
+  public static final class Span {
+
+    static final Span NOOP = new Span(null, null);
+
+    private final Span parent;
+    private final Span root;
+    private String name;
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private boolean failed;
+    // Finished spans of the trace, only kept by the root
+    private final List<Span> finished;
+
+    private Span(String name, Span parent) {
+      this.name = name;
+      this.parent = parent;
+      this.root = parent != null ? parent.root : this;
+      this.finished = parent == null ? new ArrayList<Span>() : Collections.<Span>emptyList();
+    }
+
+    /** Names the root span, once the message it traces is decoded. */
+    public void rename(String name) {
+      if (this != NOOP) {
+        this.name = name;
+      }
+    }
+
+    public void fail() {
+      failed = true;
+    }
+
+    public void end() {
+      if (this == NOOP || endNanos != 0) {
+        return;
+      }
+      endNanos = System.nanoTime();
+      if (current.get() == this) {
+        current.set(parent);
+      }
+      root.finished.add(this);
+      final TraceExporter target = exporter;
+      if (parent == null && target != null) {
+        target.export(this);
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getStage() {
+      return parent == null ? name : parent.getStage() + "/" + name;
+    }
+
+    public boolean isFailed() {
+      return failed;
+    }
+
+    public long getStartNanos() {
+      return startNanos;
+    }
+
+    public long getDurationNanos() {
+      return endNanos - startNanos;
+    }
+
+    /**
+     * @return the spans of the trace of this root, the root itself last, in the order they ended
+     */
+    public List<Span> getFinished() {
+      return finished;
+    }
+  }
+
+  private Tracing() {
+  }
+
+  static void setExporter(TraceExporter target) {
+    exporter = target;
+  }
+
+  /**
+   * Opens the root span of a trace on this thread, abandoning any trace left open on it.
+   */
+  public static Span startTrace(String name) {
+    if (exporter == null) {
+      return Span.NOOP;
+    }
+    final Span span = new Span(name, null);
+    current.set(span);
+    return span;
+  }
+
+  /**
+   * Opens a child of the span open on this thread, if there is one.
+   */
+  public static Span start(String name) {
+    final Span parent = current.get();
+    if (parent == null) {
+      return Span.NOOP;
+    }
+    final Span span = new Span(name, parent);
+    current.set(span);
+    return span;
+  }
+}
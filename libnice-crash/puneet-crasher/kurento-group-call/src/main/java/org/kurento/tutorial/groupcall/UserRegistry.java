@@ -17,13 +17,32 @@
 
 package org.kurento.tutorial.groupcall;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Map of users registered in the system. This class has a concurrent hash map to store users, using
- * its name as key in the map.
+ * Map of users registered in the system. Users are stored per room, keyed by their name, so the
+ * same name can be used in different rooms and a lookup never resolves a user from another room.
+ * A secondary index by WebSocket session id is kept in step with the main one: both are only
+ * modified together, under the registry lock, while lookups never lock.
+ *
+ * Users whose signaling connection dropped can be parked here for a grace period, keeping their
+ * media endpoints alive, so that a reconnecting client can resume them with its resume token
+ * instead of leaving and re-joining the room.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -32,31 +51,202 @@ import org.springframework.web.socket.WebSocketSession;
  */
 public class UserRegistry {
 
-  private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
+  private static final Logger log = LoggerFactory.getLogger(UserRegistry.class);
+
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, UserSession>> usersByRoom =
+      new ConcurrentHashMap<>();
   private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ParkedUser> parkedByToken = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService expiryScheduler =
+      Executors.newSingleThreadScheduledExecutor();
 
-  public void register(UserSession user) {
-    usersByName.put(user.getName(), user);
+  private final AtomicLong parkedCount = new AtomicLong();
+  private final AtomicLong resumedCount = new AtomicLong();
+  private final AtomicLong expiredCount = new AtomicLong();
+  private final AtomicLong teardownsAvoided = new AtomicLong();
+
+  /**
+   * Registers a user in its room. A previous user with the same name in the same room is replaced,
+   * and dropped from the session index; a parked one can no longer be resumed. Their media is
+   * released by {@link Room#join}, which replaced them in the room first.
+   *
+   * @param user
+   *          the user to register
+   */
+  public synchronized void register(UserSession user) {
+    ConcurrentHashMap<String, UserSession> roomUsers = usersByRoom.get(user.getRoomName());
+    if (roomUsers == null) {
+      roomUsers = new ConcurrentHashMap<>();
+      usersByRoom.put(user.getRoomName(), roomUsers);
+    }
+
+    final UserSession previous = roomUsers.put(user.getName(), user);
+    if (previous != null && previous != user) {
+      usersBySessionId.remove(previous.getSession().getId(), previous);
+    }
     usersBySessionId.put(user.getSession().getId(), user);
+    unparkReplaced(user);
   }
 
-  public UserSession getByName(String name) {
-    return usersByName.get(name);
+  /** Forgets the parked sessions a user replaced, so that they are neither resumed nor expired. */
+  private void unparkReplaced(UserSession user) {
+    for (final Map.Entry<String, ParkedUser> entry : parkedByToken.entrySet()) {
+      final UserSession parkedUser = entry.getValue().user;
+      if (parkedUser != user && parkedUser.equals(user)
+          && parkedByToken.remove(entry.getKey(), entry.getValue())) {
+        log.info("PARTICIPANT {}: joined again, its parked session can no longer be resumed",
+            user.getName());
+        final ScheduledFuture<?> expiry = entry.getValue().expiry;
+        if (expiry != null) {
+          expiry.cancel(false);
+        }
+      }
+    }
+  }
+
+  public UserSession getByName(String roomName, String name) {
+    final Map<String, UserSession> roomUsers = usersByRoom.get(roomName);
+    return roomUsers != null ? roomUsers.get(name) : null;
   }
 
   public UserSession getBySession(WebSocketSession session) {
     return usersBySessionId.get(session.getId());
   }
 
-  public boolean exists(String name) {
-    return usersByName.keySet().contains(name);
+  public boolean exists(String roomName, String name) {
+    return getByName(roomName, name) != null;
+  }
+
+  /**
+   * @param roomName
+   *          the name of the room
+   * @return a live view of the users registered in the room, empty if there are none
+   */
+  public Collection<UserSession> getRoomUsers(String roomName) {
+    final Map<String, UserSession> roomUsers = usersByRoom.get(roomName);
+    return roomUsers != null ? roomUsers.values() : Collections.<UserSession> emptyList();
   }
 
-  public UserSession removeBySession(WebSocketSession session) {
-    final UserSession user = getBySession(session);
-    usersByName.remove(user.getName());
-    usersBySessionId.remove(session.getId());
+  /**
+   * Unregisters the user of a session.
+   *
+   * @param session
+   *          the WebSocket session of the user
+   * @return the removed user, or null if no user was registered for this session
+   */
+  public synchronized UserSession removeBySession(WebSocketSession session) {
+    final UserSession user = usersBySessionId.remove(session.getId());
+    if (user == null) {
+      return null;
+    }
+
+    final Map<String, UserSession> roomUsers = usersByRoom.get(user.getRoomName());
+    if (roomUsers != null) {
+      roomUsers.remove(user.getName(), user);
+      if (roomUsers.isEmpty()) {
+        usersByRoom.remove(user.getRoomName());
+      }
+    }
     return user;
   }
 
+  /**
+   * Keeps a disconnected user resumable for a while.
+   *
+   * @param user
+   *          the user whose signaling connection was lost, already removed from the registry
+   * @param graceMs
+   *          how long the user can be resumed
+   * @param endpointsKept
+   *          number of media endpoints that will not be torn down if the user resumes
+   * @param onExpiry
+   *          invoked, if the user did not resume in time, to make it leave its room
+   */
+  public void park(final UserSession user, long graceMs, final int endpointsKept,
+      final Runnable onExpiry) {
+    final String token = user.getResumeToken();
+    final ParkedUser parked = new ParkedUser(user, endpointsKept);
+    parkedByToken.put(token, parked);
+    parkedCount.incrementAndGet();
+    log.info("PARTICIPANT {}: parked for {} ms, waiting for it to resume", user.getName(),
+        graceMs);
+
+    parked.expiry = expiryScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (parkedByToken.remove(token, parked)) {
+          expiredCount.incrementAndGet();
+          log.info("PARTICIPANT {}: did not resume in time", user.getName());
+          try {
+            onExpiry.run();
+          } catch (Exception e) {
+            log.warn("PARTICIPANT {}: could not leave after resume expiry", user.getName(), e);
+          }
+        }
+      }
+    }, graceMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reattaches a parked user to a new WebSocket session.
+   *
+   * @param token
+   *          the resume token given to the client when it joined
+   * @param session
+   *          the new signaling session of the client
+   * @return the resumed user, or null if there is no parked user for that token
+   */
+  public UserSession resume(String token, WebSocketSession session) {
+    final ParkedUser parked = parkedByToken.remove(token);
+    if (parked == null) {
+      return null;
+    }
+    if (parked.expiry != null) {
+      parked.expiry.cancel(false);
+    }
+
+    parked.user.rebind(session);
+    register(parked.user);
+    resumedCount.incrementAndGet();
+    teardownsAvoided.addAndGet(parked.endpointsKept);
+    return parked.user;
+  }
+
+  public boolean isParked(UserSession user) {
+    final ParkedUser parked = parkedByToken.get(user.getResumeToken());
+    return parked != null && parked.user == user;
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("registered", usersBySessionId.size());
+    stats.put("rooms", usersByRoom.size());
+    stats.put("parkedNow", parkedByToken.size());
+    stats.put("parked", parkedCount.get());
+    stats.put("resumed", resumedCount.get());
+    stats.put("expired", expiredCount.get());
+    // Every kept endpoint is one release avoided now, and one create + SDP negotiation avoided on
+    // the re-join that would have followed
+    stats.put("endpointTeardownsAvoided", teardownsAvoided.get());
+    stats.put("endpointRebuildsAvoided", teardownsAvoided.get());
+    return stats;
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    expiryScheduler.shutdownNow();
+  }
+
+  private static class ParkedUser {
+    final UserSession user;
+    final int endpointsKept;
+    volatile ScheduledFuture<?> expiry;
+
+    ParkedUser(UserSession user, int endpointsKept) {
+      this.user = user;
+      this.endpointsKept = endpointsKept;
+    }
+  }
+
 }
@@ -19,19 +19,24 @@ package org.kurento.tutorial.groupcall;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.kurento.client.Continuation;
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonObject;
@@ -45,55 +50,196 @@ public class UserSession implements Closeable {
 
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
+  /**
+   * What a participant does in its room: publishers send media and receive that of the other
+   * publishers; viewers only receive, and are not announced to anybody.
+   */
+  public enum Role {
+    PUBLISHER, VIEWER
+  }
+
+  /**
+   * Which media of a sender a participant receives. Participants on constrained links subscribe to
+   * audio only, so that neither KMS nor their link carry video they cannot use.
+   */
+  public enum MediaMask {
+    BOTH(true, true), AUDIO_ONLY(true, false), VIDEO_ONLY(false, true);
+
+    private final boolean audio;
+    private final boolean video;
+
+    MediaMask(boolean audio, boolean video) {
+      this.audio = audio;
+      this.video = video;
+    }
+
+    /**
+     * @param media
+     *          the media requested by a client: "audio", "video", or null for both
+     * @return the mask for that media
+     */
+    public static MediaMask fromSignaling(String media) {
+      if ("audio".equals(media)) {
+        return AUDIO_ONLY;
+      } else if ("video".equals(media)) {
+        return VIDEO_ONLY;
+      }
+      return BOTH;
+    }
+  }
+
   private final String name;
-  private final WebSocketSession session;
+  private final Role role;
+  private final String resumeToken = UUID.randomUUID().toString();
+  private volatile WebSocketSession session;
 
   private final MediaPipeline pipeline;
+  // Where the incoming endpoints go: the room pipeline, unless the room is relayed or sharded
+  private final MediaPipeline subscriberPipeline;
+  private final KmsCircuitBreaker kmsBreaker;
+  private final SdpMunger sdpMunger;
 
   private final String roomName;
+  // Null for viewers
   private final WebRtcEndpoint outgoingMedia;
-  private final ConcurrentMap<String, WebRtcEndpoint> incomingMedia = new ConcurrentHashMap<>();
+  private final ListenerSubscription outgoingCandidates;
+  // Shared with the other participants of the room, where this user has the given id
+  private final EndpointTable incomingMedia;
+  private final int id;
+
+  public UserSession(final String name, String roomName, WebSocketSession session,
+      MediaPipeline pipeline, MediaPipeline subscriberPipeline, KmsCircuitBreaker kmsBreaker,
+      SdpMunger sdpMunger, Role role) {
+    this(name, roomName, session, pipeline, subscriberPipeline, kmsBreaker, sdpMunger, role,
+        new EndpointTable());
+  }
 
-  public UserSession(final String name, String roomName, final WebSocketSession session,
-      MediaPipeline pipeline) {
+  /**
+   * @param incomingMedia
+   *          the table of the incoming endpoints of the room, and of its candidate listener
+   */
+  UserSession(final String name, String roomName, WebSocketSession session,
+      MediaPipeline pipeline, MediaPipeline subscriberPipeline, KmsCircuitBreaker kmsBreaker,
+      SdpMunger sdpMunger, Role role, EndpointTable incomingMedia) {
 
+    this.incomingMedia = incomingMedia;
     this.pipeline = pipeline;
-    this.name = name;
+    this.subscriberPipeline = subscriberPipeline;
+    this.kmsBreaker = kmsBreaker;
+    this.sdpMunger = sdpMunger;
+    // Every user holding the name of another one then shares the same instance
+    this.name = name.intern();
     this.session = session;
     this.roomName = roomName;
-    this.outgoingMedia = new WebRtcEndpoint.Builder(pipeline).build();
-
-    this.outgoingMedia.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
-
-      @Override
-      public void onEvent(IceCandidateFoundEvent event) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "iceCandidate");
-        response.addProperty("name", name);
-        response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-        try {
-          synchronized (session) {
-            session.sendMessage(new TextMessage(response.toString()));
-          }
-        } catch (IOException e) {
-          log.debug(e.getMessage());
-        }
-      }
-    });
+    this.role = role;
+    if (role == Role.PUBLISHER) {
+      this.outgoingMedia = buildEndpoint(pipeline);
+      this.id = incomingMedia.add(this);
+      this.outgoingCandidates = subscribeCandidates(outgoingMedia);
+    } else {
+      this.outgoingMedia = null;
+      this.id = incomingMedia.add(this);
+      this.outgoingCandidates = null;
+    }
   }
 
+  /**
+   * @return the endpoint receiving the media of this user, or null if it is a viewer
+   */
   public WebRtcEndpoint getOutgoingWebRtcPeer() {
     return outgoingMedia;
   }
 
+  /**
+   * @return the pipeline of the incoming endpoints of this user: that of the room, a relay edge
+   *         for viewers of a relayed room, or a shard of a sharded room
+   */
+  public MediaPipeline getSubscriberPipeline() {
+    return subscriberPipeline;
+  }
+
+  public Role getRole() {
+    return role;
+  }
+
+  public boolean isPublisher() {
+    return role == Role.PUBLISHER;
+  }
+
   public String getName() {
     return name;
   }
 
+  /**
+   * @return the id of this user among the participants of its room, reused once it leaves
+   */
+  int getId() {
+    return id;
+  }
+
   public WebSocketSession getSession() {
     return session;
   }
 
+  /**
+   * Secret handed to the client on join, which lets it reattach to this session (and all of its
+   * media endpoints) after its signaling connection drops.
+   *
+   * @return The resume token
+   */
+  public String getResumeToken() {
+    return resumeToken;
+  }
+
+  /**
+   * Moves the signaling of this user to a new WebSocket session, keeping its endpoints.
+   *
+   * @param newSession
+   *          The session from which the user reconnected
+   */
+  public void rebind(WebSocketSession newSession) {
+    log.info("PARTICIPANT {}: signaling moved from session {} to {}", this.name, session.getId(),
+        newSession.getId());
+    this.session = newSession;
+  }
+
+  public boolean isReceivingFrom(String senderName) {
+    return incomingMedia.get(this, senderName) != null;
+  }
+
+  public int getIncomingCount() {
+    return incomingMedia.count(this);
+  }
+
+  /**
+   * @return a copy of the names of the participants this user receives media from
+   */
+  public List<String> getIncomingSenders() {
+    return Arrays.asList(incomingMedia.senders(this));
+  }
+
+  /**
+   * @return a copy of the incoming endpoints of this user, by sender name
+   */
+  public Map<String, WebRtcEndpoint> getIncomingMedia() {
+    return incomingMedia.toMap(this);
+  }
+
+  /**
+   * @return the ids of the media elements owned by this user: its outgoing endpoint, if any, and
+   *         its incoming endpoints
+   */
+  public Set<String> getMediaObjectIds() {
+    final Set<String> ids = new HashSet<>();
+    if (outgoingMedia != null) {
+      ids.add(outgoingMedia.getId());
+    }
+    for (final WebRtcEndpoint incoming : incomingMedia.toMap(this).values()) {
+      ids.add(incoming.getId());
+    }
+    return ids;
+  }
+
   /**
    * The room to which the user is currently attending.
    *
@@ -103,61 +249,173 @@ public class UserSession implements Closeable {
     return this.roomName;
   }
 
-  public void receiveVideoFrom(UserSession sender, String sdpOffer) throws IOException {
-    log.info("USER {}: connecting with {} in room {}", this.name, sender.getName(), this.roomName);
+  public void receiveVideoFrom(UserSession sender, final String sdpOffer) throws IOException {
+    receiveVideoFrom(sender.getName(), sender.getOutgoingWebRtcPeer(), sdpOffer, MediaMask.BOTH);
+  }
+
+  /**
+   * Connects this user to the outgoing endpoint of a sender, which may be a participant of this
+   * room connected to another signaling node.
+   *
+   * @param senderName
+   *          the name of the sender
+   * @param senderEndpoint
+   *          the outgoing endpoint of the sender, or what relays it to the pipeline of this user
+   * @param sdpOffer
+   *          the offer of the client for the sender's media
+   * @param mask
+   *          the media of the sender to receive; ignored for loopback
+   */
+  public void receiveVideoFrom(String senderName, MediaElement senderEndpoint,
+      final String sdpOffer, MediaMask mask) throws IOException {
+    final Tracing.Span span = Tracing.start("UserSession.receiveVideoFrom");
+    try {
+      connectWith(senderName, senderEndpoint, sdpOffer, mask);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void connectWith(String senderName, MediaElement senderEndpoint, final String sdpOffer,
+      MediaMask mask) throws IOException {
+    log.info("USER {}: connecting with {} in room {}", this.name, senderName, this.roomName);
 
-    log.trace("USER {}: SdpOffer for {} is {}", this.name, sender.getName(), sdpOffer);
+    log.trace("USER {}: SdpOffer for {} is {}", this.name, senderName, sdpOffer);
 
-    final String ipSdpAnswer = this.getEndpointForUser(sender).processOffer(sdpOffer);
+    final WebRtcEndpoint endpoint = this.getEndpointForUser(senderName, senderEndpoint, mask);
+    final String mungedOffer = sdpMunger.munge(sdpOffer);
+    final String ipSdpAnswer = sdpMunger.munge(kmsBreaker.call("processOffer",
+        new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            return endpoint.processOffer(mungedOffer);
+          }
+        }));
     final JsonObject scParams = new JsonObject();
     scParams.addProperty("id", "receiveVideoAnswer");
-    scParams.addProperty("name", sender.getName());
+    scParams.addProperty("name", senderName);
     scParams.addProperty("sdpAnswer", ipSdpAnswer);
 
-    log.trace("USER {}: SdpAnswer for {} is {}", this.name, sender.getName(), ipSdpAnswer);
+    log.trace("USER {}: SdpAnswer for {} is {}", this.name, senderName, ipSdpAnswer);
     this.sendMessage(scParams);
     log.debug("gather candidates");
-    this.getEndpointForUser(sender).gatherCandidates();
+    kmsBreaker.run("gatherCandidates", new Runnable() {
+      @Override
+      public void run() {
+        endpoint.gatherCandidates();
+      }
+    });
+  }
+
+  private WebRtcEndpoint buildEndpoint(final MediaPipeline target) {
+    return kmsBreaker.call("createWebRtcEndpoint", new Callable<WebRtcEndpoint>() {
+      @Override
+      public WebRtcEndpoint call() throws Exception {
+        return new WebRtcEndpoint.Builder(target).build();
+      }
+    });
   }
 
-  private WebRtcEndpoint getEndpointForUser(final UserSession sender) {
-    if (sender.getName().equals(name)) {
+  private WebRtcEndpoint getEndpointForUser(final String senderName,
+      final MediaElement senderEndpoint, final MediaMask mask) throws IOException {
+    if (senderName.equals(name) && outgoingMedia != null) {
       log.debug("PARTICIPANT {}: configuring loopback", this.name);
       return outgoingMedia;
     }
 
-    log.debug("PARTICIPANT {}: receiving video from {}", this.name, sender.getName());
+    log.debug("PARTICIPANT {}: receiving video from {}", this.name, senderName);
 
-    WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
-    if (incoming == null) {
-      log.debug("PARTICIPANT {}: creating new endpoint for {}", this.name, sender.getName());
-      incoming = new WebRtcEndpoint.Builder(pipeline).build();
+    final WebRtcEndpoint existing = incomingMedia.reserve(this, senderName.intern(), mask);
+    if (existing != null) {
+      // Already connected: only the media types that change get connected or disconnected
+      setMediaMask(senderName, senderEndpoint, mask);
+      return existing;
+    }
 
-      incoming.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+    log.debug("PARTICIPANT {}: creating new endpoint for {}", this.name, senderName);
+    WebRtcEndpoint incoming = null;
+    ListenerSubscription candidates = null;
+    boolean stored = false;
+    try {
+      incoming = buildEndpoint(subscriberPipeline);
+      candidates = subscribeCandidates(incoming);
+      stored = incomingMedia.put(this, senderName, incoming, candidates);
+    } finally {
+      if (candidates == null) {
+        // Failed: whoever waits for the entry tries on its own
+        incomingMedia.remove(this, senderName);
+      }
+      if (!stored && incoming != null) {
+        releaseIncoming(senderName, incoming, candidates);
+      }
+    }
+    if (!stored) {
+      throw new IOException("PARTICIPANT " + name + ": stopped receiving from " + senderName
+          + " while connecting");
+    }
 
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.addProperty("name", sender.getName());
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
+    log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name, senderName);
+    final WebRtcEndpoint sink = incoming;
+    kmsBreaker.run("connect", new Runnable() {
+      @Override
+      public void run() {
+        if (mask == MediaMask.BOTH) {
+          senderEndpoint.connect(sink);
+        } else {
+          senderEndpoint.connect(sink, mask.audio ? MediaType.AUDIO : MediaType.VIDEO);
         }
-      });
+      }
+    });
 
-      incomingMedia.put(sender.getName(), incoming);
-    }
+    return incoming;
+  }
 
-    log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name, sender.getName());
-    sender.getOutgoingWebRtcPeer().connect(incoming);
+  /**
+   * Changes the media this user receives from a sender, connecting or disconnecting only the media
+   * types that change. The client keeps its peer connection, so nothing is renegotiated.
+   *
+   * @param senderName
+   *          the name of the sender
+   * @param senderEndpoint
+   *          the outgoing endpoint of the sender, or what relays it to the pipeline of this user
+   * @param mask
+   *          the media of the sender to receive from now on
+   * @return false if this user does not receive from the sender
+   */
+  public boolean setMediaMask(String senderName, final MediaElement senderEndpoint,
+      final MediaMask mask) {
+    final WebRtcEndpoint incoming;
+    final MediaMask previous;
+    synchronized (incomingMedia) {
+      incoming = incomingMedia.get(this, senderName);
+      if (incoming == null) {
+        return false;
+      }
+      previous = incomingMedia.getMask(this, senderName);
+      if (previous == mask) {
+        return true;
+      }
+      incomingMedia.setMask(this, senderName, mask);
+    }
 
-    return incoming;
+    log.debug("PARTICIPANT {}: receiving {} from {}, was {}", this.name, mask, senderName,
+        previous);
+    kmsBreaker.run("connect", new Runnable() {
+      @Override
+      public void run() {
+        if (mask.audio && !previous.audio) {
+          senderEndpoint.connect(incoming, MediaType.AUDIO);
+        } else if (!mask.audio && previous.audio) {
+          senderEndpoint.disconnect(incoming, MediaType.AUDIO);
+        }
+        if (mask.video && !previous.video) {
+          senderEndpoint.connect(incoming, MediaType.VIDEO);
+        } else if (!mask.video && previous.video) {
+          senderEndpoint.disconnect(incoming, MediaType.VIDEO);
+        }
+      }
+    });
+    return true;
   }
 
   public void cancelVideoFrom(final UserSession sender) {
@@ -166,10 +424,24 @@ public class UserSession implements Closeable {
 
   public void cancelVideoFrom(final String senderName) {
     log.debug("PARTICIPANT {}: canceling video reception from {}", this.name, senderName);
-    final WebRtcEndpoint incoming = incomingMedia.remove(senderName);
+    final WebRtcEndpoint incoming;
+    final ListenerSubscription candidates;
+    synchronized (incomingMedia) {
+      incoming = incomingMedia.get(this, senderName);
+      candidates = incomingMedia.getSubscription(this, senderName);
+      // An endpoint still being built is released by whoever builds it, finding the entry gone
+      incomingMedia.remove(this, senderName);
+    }
+    if (incoming != null) {
+      log.debug("PARTICIPANT {}: removing endpoint for {}", this.name, senderName);
+      releaseIncoming(senderName, incoming, candidates);
+    }
+  }
 
-    log.debug("PARTICIPANT {}: removing endpoint for {}", this.name, senderName);
-    incoming.release(new Continuation<Void>() {
+  private void releaseIncoming(final String senderName, WebRtcEndpoint incoming,
+      ListenerSubscription candidates) {
+    unsubscribeCandidates(incoming, candidates);
+    kmsBreaker.release(incoming, new Continuation<Void>() {
       @Override
       public void onSuccess(Void result) throws Exception {
         log.trace("PARTICIPANT {}: Released successfully incoming EP for {}",
@@ -187,29 +459,16 @@ public class UserSession implements Closeable {
   @Override
   public void close() throws IOException {
     log.debug("PARTICIPANT {}: Releasing resources", this.name);
-    for (final String remoteParticipantName : incomingMedia.keySet()) {
-
-      log.trace("PARTICIPANT {}: Released incoming EP for {}", this.name, remoteParticipantName);
-
-      final WebRtcEndpoint ep = this.incomingMedia.get(remoteParticipantName);
-
-      ep.release(new Continuation<Void>() {
-
-        @Override
-        public void onSuccess(Void result) throws Exception {
-          log.trace("PARTICIPANT {}: Released successfully incoming EP for {}",
-              UserSession.this.name, remoteParticipantName);
-        }
-
-        @Override
-        public void onError(Throwable cause) throws Exception {
-          log.warn("PARTICIPANT {}: Could not release incoming EP for {}", UserSession.this.name,
-              remoteParticipantName);
-        }
-      });
+    for (final String remoteParticipantName : incomingMedia.senders(this)) {
+      cancelVideoFrom(remoteParticipantName);
     }
+    incomingMedia.remove(this);
 
-    outgoingMedia.release(new Continuation<Void>() {
+    if (outgoingMedia == null) {
+      return;
+    }
+    unsubscribeCandidates(outgoingMedia, outgoingCandidates);
+    kmsBreaker.release(outgoingMedia, new Continuation<Void>() {
 
       @Override
       public void onSuccess(Void result) throws Exception {
@@ -225,19 +484,24 @@ public class UserSession implements Closeable {
 
   public void sendMessage(JsonObject message) throws IOException {
     log.debug("USER {}: Sending message {}", name, message);
-    synchronized (session) {
-      session.sendMessage(new TextMessage(message.toString()));
-    }
+    OutboundLanes.send(this.session, message);
   }
 
-  public void addCandidate(IceCandidate candidate, String name) {
+  public void addCandidate(final IceCandidate candidate, String name) {
+    final WebRtcEndpoint webRtc;
     if (this.name.compareTo(name) == 0) {
-      outgoingMedia.addIceCandidate(candidate);
+      // Null for viewers, which have nothing to send
+      webRtc = outgoingMedia;
     } else {
-      WebRtcEndpoint webRtc = incomingMedia.get(name);
-      if (webRtc != null) {
-        webRtc.addIceCandidate(candidate);
-      }
+      webRtc = incomingMedia.get(this, name);
+    }
+    if (webRtc != null) {
+      kmsBreaker.run("addIceCandidate", new Runnable() {
+        @Override
+        public void run() {
+          webRtc.addIceCandidate(candidate);
+        }
+      });
     }
   }
 
@@ -273,4 +537,46 @@ public class UserSession implements Closeable {
     result = 31 * result + roomName.hashCode();
     return result;
   }
+
+  private ListenerSubscription subscribeCandidates(WebRtcEndpoint endpoint) {
+    return endpoint.addIceCandidateFoundListener(incomingMedia);
+  }
+
+  /** Stops relaying the candidates of an endpoint, before it gets released. */
+  private void unsubscribeCandidates(WebRtcEndpoint endpoint, ListenerSubscription subscription) {
+    if (subscription == null) {
+      return;
+    }
+    endpoint.removeIceCandidateFoundListener(subscription, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("PARTICIPANT {}: Unsubscribed from candidates", UserSession.this.name);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.trace("PARTICIPANT {}: Could not unsubscribe from candidates: {}",
+            UserSession.this.name, cause.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Tells the client a candidate of one of the endpoints of this user, and which of its peer
+   * connections it belongs to.
+   *
+   * @param senderName
+   *          the sender the endpoint receives from, or the name of this user for its outgoing one
+   */
+  void relayCandidate(String senderName, IceCandidate candidate) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "iceCandidate");
+    response.addProperty("name", senderName);
+    response.add("candidate", JsonUtils.toJsonObject(candidate));
+    try {
+      sendMessage(response);
+    } catch (IOException e) {
+      log.debug(e.getMessage());
+    }
+  }
 }
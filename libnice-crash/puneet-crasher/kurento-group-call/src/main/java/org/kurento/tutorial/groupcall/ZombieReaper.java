@@ -0,0 +1,312 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Periodically reconciles the rooms of this node with the live signaling sessions and with the
+ * object tree of KMS, releasing what was leaked by clients that vanished without closing their
+ * WebSocket, or by leaves that failed half way:
+ * <ul>
+ * <li>participants whose WebSocket is closed, and that are neither registered nor parked waiting
+ * to resume;</li>
+ * <li>incoming endpoints for senders that are no longer in the room;</li>
+ * <li>rooms left without local participants;</li>
+ * <li>media elements in the pipeline of a room that no participant owns, for rooms served only by
+ * this node (other nodes create elements in shared pipelines that this node does not know);</li>
+ * <li>pipelines this node created for rooms that no longer exist.</li>
+ * </ul>
+ *
+ * <p>
+ * Participants, incoming endpoints and rooms are only reaped when found in that state by two
+ * consecutive passes, to leave joins and leaves in progress alone. KMS objects are only
+ * considered leaked once older than {@code groupcall.reaper.min-age-ms}, so
+ * that elements being built for a join in progress are not taken for orphans, and at most
+ * {@code groupcall.reaper.batch-size} objects are released per pass; the rest wait for the next.
+ * </p>
+ *
+ * @since 6.8.0
+ */
+public class ZombieReaper {
+
+  private static final Logger log = LoggerFactory.getLogger(ZombieReaper.class);
+
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private UserRegistry registry;
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private KmsCircuitBreaker kmsBreaker;
+
+  @Value("${groupcall.reaper.interval-ms:30000}")
+  private long intervalMs;
+
+  @Value("${groupcall.reaper.batch-size:20}")
+  private int batchSize;
+
+  @Value("${groupcall.reaper.min-age-ms:60000}")
+  private long minAgeMs;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  // Found leaked by the last pass: reaped if found again by the next one
+  private Set<Object> suspects = new HashSet<>();
+
+  private final AtomicLong passes = new AtomicLong();
+  private final AtomicLong lastPassMillis = new AtomicLong();
+  private final AtomicLong zombieParticipants = new AtomicLong();
+  private final AtomicLong staleIncoming = new AtomicLong();
+  private final AtomicLong emptyRoomsRemoved = new AtomicLong();
+  private final AtomicLong orphanElements = new AtomicLong();
+  private final AtomicLong orphanPipelines = new AtomicLong();
+  private volatile int lastPending;
+
+  @PostConstruct
+  private void init() {
+    if (intervalMs <= 0) {
+      return;
+    }
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reap();
+        } catch (Exception e) {
+          log.warn("Reaper pass failed", e);
+        }
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("passes", passes.get());
+    stats.put("lastPassMillis", lastPassMillis.get());
+    stats.put("zombieParticipants", zombieParticipants.get());
+    stats.put("staleIncomingEndpoints", staleIncoming.get());
+    stats.put("emptyRooms", emptyRoomsRemoved.get());
+    stats.put("orphanElements", orphanElements.get());
+    stats.put("orphanPipelines", orphanPipelines.get());
+    stats.put("pendingReleases", lastPending);
+    return stats;
+  }
+
+  void reap() {
+    final long start = System.currentTimeMillis();
+    final Budget budget = new Budget(batchSize);
+
+    final Set<Object> newSuspects = new HashSet<>();
+    for (final Room room : new ArrayList<>(roomManager.getRooms())) {
+      reapParticipants(room, budget, newSuspects);
+      if (room.getParticipants().isEmpty()) {
+        if (confirmed(room, newSuspects)) {
+          log.info("Reaper: removing empty room {}", room.getName());
+          roomManager.removeRoom(room);
+          newSuspects.remove(room);
+          emptyRoomsRemoved.incrementAndGet();
+        }
+      } else if (room.isServedOnlyByThisNode()) {
+        reapElements(room, budget);
+      }
+    }
+    suspects = newSuspects;
+
+    if (kmsBreaker.getState() == KmsCircuitBreaker.State.CLOSED) {
+      reapPipelines(budget);
+    }
+
+    lastPending = budget.pending;
+    passes.incrementAndGet();
+    lastPassMillis.set(System.currentTimeMillis() - start);
+    if (budget.used > 0 || budget.pending > 0) {
+      log.info("Reaper: released {} leaked objects, {} left for the next pass", budget.used,
+          budget.pending);
+    }
+  }
+
+  /**
+   * Records a suspect for the next pass, and tells whether the last pass already found it. Callers
+   * forget the suspects they reap.
+   */
+  private boolean confirmed(Object suspect, Set<Object> newSuspects) {
+    newSuspects.add(suspect);
+    return suspects.contains(suspect);
+  }
+
+  private void reapParticipants(Room room, Budget budget, Set<Object> newSuspects) {
+    final Collection<String> names = room.getParticipantNames();
+    for (final UserSession user : new ArrayList<>(room.getParticipants())) {
+      final boolean registered = registry.getBySession(user.getSession()) == user;
+      final boolean connected = registered && user.getSession().isOpen();
+      if (!connected && !registry.isParked(user)) {
+        if (!confirmed(user, newSuspects) || !budget.take()) {
+          continue;
+        }
+        log.info("Reaper: participant {} of room {} has no live session", user.getName(),
+            room.getName());
+        if (registered) {
+          registry.removeBySession(user.getSession());
+        }
+        try {
+          room.leave(user);
+        } catch (IOException e) {
+          log.debug("Reaper: error removing participant {}", user.getName(), e);
+        }
+        newSuspects.remove(user);
+        zombieParticipants.incrementAndGet();
+        continue;
+      }
+
+      for (final String sender : user.getIncomingSenders()) {
+        final String incoming = user.getName() + "/" + sender;
+        if (!names.contains(sender) && confirmed(incoming, newSuspects) && budget.take()) {
+          log.info("Reaper: participant {} still receives from {}, who left room {}",
+              user.getName(), sender, room.getName());
+          user.cancelVideoFrom(sender);
+          newSuspects.remove(incoming);
+          staleIncoming.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void reapElements(Room room, Budget budget) {
+    final MediaPipeline pipeline = room.getPipeline();
+    final List<MediaObject> children = kmsBreaker.call("getChildren",
+        new Callable<List<MediaObject>>() {
+          @Override
+          public List<MediaObject> call() throws Exception {
+            return pipeline.getChildren();
+          }
+        });
+
+    final Set<String> owned = room.getMediaObjectIds();
+    for (final MediaObject child : children) {
+      if (!owned.contains(child.getId()) && isOldEnough(child) && budget.take()) {
+        log.info("Reaper: releasing orphan element {} of room {}", child.getId(), room.getName());
+        release(child);
+        orphanElements.incrementAndGet();
+      }
+    }
+  }
+
+  private void reapPipelines(Budget budget) {
+    final long listedAtNanos = System.nanoTime();
+    final List<MediaPipeline> pipelines = kmsBreaker.call("getPipelines",
+        new Callable<List<MediaPipeline>>() {
+          @Override
+          public List<MediaPipeline> call() throws Exception {
+            return kurento.getServerManager().getPipelines();
+          }
+        });
+
+    final Set<String> existing = new HashSet<>();
+    for (final MediaPipeline pipeline : pipelines) {
+      existing.add(pipeline.getId());
+      final String roomName = roomManager.getCreatedPipelineRoom(pipeline.getId());
+      if (roomName != null && !roomManager.isPipelineInUse(pipeline.getId())
+          && isOldEnough(pipeline) && budget.take()) {
+        log.info("Reaper: releasing pipeline {} of closed room {}", pipeline.getId(), roomName);
+        release(pipeline);
+        orphanPipelines.incrementAndGet();
+      }
+    }
+
+    // Forget the pipelines that KMS no longer has
+    roomManager.forgetGonePipelines(existing, listedAtNanos);
+  }
+
+  private boolean isOldEnough(final MediaObject object) {
+    final int creationTime = kmsBreaker.call("getCreationTime", new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        return object.getCreationTime();
+      }
+    });
+    return System.currentTimeMillis() - creationTime * 1000L >= minAgeMs;
+  }
+
+  private void release(final MediaObject object) {
+    kmsBreaker.release(object, new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        log.trace("Reaper: released {}", object.getId());
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("Reaper: could not release {}: {}", object.getId(), cause.getMessage());
+      }
+    });
+  }
+
+  /** Number of releases left for the current pass. */
+  private static class Budget {
+    private final int size;
+    int used;
+    int pending;
+
+    Budget(int size) {
+      this.size = size;
+    }
+
+    boolean take() {
+      if (used < size) {
+        used++;
+        return true;
+      }
+      pending++;
+      return false;
+    }
+  }
+}
@@ -15,17 +15,69 @@
  *
  */
 
-var ws = new WebSocket('wss://' + location.host + '/groupcall');
+const RECONNECT_DELAY_MS = 1000;
+
+var ws;
 var participants = {};
 var name;
+var room;
+var role = 'publisher';
+// Media received from the other participants: 'both', or 'audio' on weak links
+var media = 'both';
+var resumeToken = null;
+var leaving = false;
+var recording = false;
+var pendingMessages = [];
+var rejoining = false;
+
+connect();
 
 window.onbeforeunload = function() {
+	leaving = true;
 	ws.close();
 };
 
-ws.onmessage = function(message) {
-	var parsedMessage = JSON.parse(message.data);
-	console.info('Received message: ' + message.data);
+function connect() {
+	ws = new WebSocket('wss://' + location.host + '/groupcall');
+	ws.onopen = onOpen;
+	ws.onclose = onClose;
+	ws.onmessage = onMessage;
+}
+
+function onOpen() {
+	SignalingCodec.negotiate(ws);
+	if (rejoining) {
+		console.info('Signaling reconnected, joining room ' + room + ' again');
+		rejoining = false;
+		sendMessage({
+			id : 'joinRoom',
+			name : name,
+			room : room,
+			role : role
+		});
+	} else if (resumeToken) {
+		console.info('Signaling reconnected, resuming session');
+		SignalingCodec.send(ws, {
+			id : 'resumeSession',
+			resumeToken : resumeToken
+		});
+	}
+}
+
+function onClose(event) {
+	if (leaving || !resumeToken) {
+		return;
+	}
+	console.warn('Signaling connection lost (code ' + event.code + '), reconnecting...');
+	setTimeout(connect, RECONNECT_DELAY_MS);
+}
+
+function onMessage(message) {
+	SignalingCodec.receive(message.data, handleMessage);
+}
+
+function handleMessage(parsedMessage) {
+	console.info('Received message: ' + JSON.stringify(parsedMessage));
 
 	switch (parsedMessage.id) {
 	case 'existingParticipants':
@@ -48,6 +100,28 @@ ws.onmessage = function(message) {
 	        }
 	    });
 	    break;
+	case 'serverBusy':
+		onServerBusy(parsedMessage);
+		break;
+	case 'nodeDraining':
+		onNodeDraining(parsedMessage);
+		break;
+	case 'sessionResumed':
+		onSessionResumed(parsedMessage);
+		break;
+	case 'resumeFailed':
+		onResumeFailed();
+		break;
+	case 'recordingStarted':
+		setRecording(true);
+		break;
+	case 'recordingStopped':
+		setRecording(false);
+		break;
+	case 'recordingFailed':
+		console.warn('Recording failed: ' + parsedMessage.message);
+		alert(parsedMessage.message);
+		break;
 	default:
 		console.error('Unrecognized message', parsedMessage);
 	}
@@ -55,7 +129,9 @@ ws.onmessage = function(message) {
 
 function register() {
 	name = document.getElementById('name').value;
-	var room = document.getElementById('roomName').value;
+	room = document.getElementById('roomName').value;
+	role = document.getElementById('viewer').checked ? 'viewer' : 'publisher';
+	leaving = false;
 
 	document.getElementById('room-header').innerText = 'ROOM ' + room;
 	document.getElementById('join').style.display = 'none';
@@ -65,10 +141,47 @@ function register() {
 		id : 'joinRoom',
 		name : name,
 		room : room,
+		role : role
 	}
 	sendMessage(message);
 }
 
+function onSessionResumed(msg) {
+	console.info('Session resumed, media was kept');
+	var present = {};
+	msg.data.forEach(function(sender) {
+		present[sender] = true;
+		if (!participants[sender]) {
+			receiveVideo(sender);
+		}
+	});
+	for (var key in participants) {
+		if (key !== name && !present[key]) {
+			onParticipantLeft({ name : key });
+		}
+	}
+
+	var queued = pendingMessages;
+	pendingMessages = [];
+	queued.forEach(sendMessage);
+}
+
+function onResumeFailed() {
+	console.warn('Session could not be resumed, joining again');
+	for (var key in participants) {
+		participants[key].dispose();
+	}
+	participants = {};
+	pendingMessages = [];
+	resumeToken = null;
+	sendMessage({
+		id : 'joinRoom',
+		name : name,
+		room : room,
+		role : role
+	});
+}
+
 function onNewParticipant(request) {
 	receiveVideo(request.name);
 }
@@ -91,6 +204,15 @@ function callResponse(message) {
 }
 
 function onExistingParticipants(msg) {
+	resumeToken = msg.resumeToken;
+	setRecording(msg.recording);
+	if (msg.role === 'viewer') {
+		// Viewers only receive; the server may also have made us one because the
+		// room had enough publishers already
+		console.log(name + " registered in room " + room + " as viewer");
+		msg.data.forEach(receiveVideo);
+		return;
+	}
     var constraints = {
         audio : false,
         video : {
@@ -127,6 +249,8 @@ function onExistingParticipants(msg) {
 }
 
 function leaveRoom() {
+	leaving = true;
+	resumeToken = null;
 	sendMessage({
 		id : 'leaveRoom'
 	});
@@ -160,6 +284,61 @@ function receiveVideo(sender) {
 	});;
 }
 
+function toggleAudioOnly() {
+	media = document.getElementById('audio-only').checked ? 'audio' : 'both';
+	for ( var key in participants) {
+		if (key !== name) {
+			sendMessage({
+				id : 'setMediaMask',
+				sender : key,
+				media : media
+			});
+		}
+	}
+}
+
+function toggleRecording() {
+	sendMessage({
+		id : recording ? 'stopRecording' : 'startRecording'
+	});
+}
+
+function setRecording(isRecording) {
+	recording = isRecording;
+	document.getElementById('button-record').value =
+		recording ? 'Stop recording' : 'Start recording';
+}
+
+function onServerBusy(request) {
+	console.warn('Server busy: ' + request.message);
+	alert('The media server is not available right now, please try again later');
+}
+
+// The server is going out of service: leave, and join the same room again
+// through another server after the given delay
+function onNodeDraining(request) {
+	console.warn('Server draining, joining again in ' + request.retryAfterMs + ' ms');
+	if (resumeToken) {
+		sendMessage({
+			id : 'leaveRoom'
+		});
+	}
+	for (var key in participants) {
+		participants[key].dispose();
+	}
+	participants = {};
+	pendingMessages = [];
+	resumeToken = null;
+	leaving = true;
+	ws.close();
+
+	setTimeout(function() {
+		leaving = false;
+		rejoining = true;
+		connect();
+	}, request.retryAfterMs);
+}
+
 function onParticipantLeft(request) {
 	console.log('Participant ' + request.name + ' left');
 	var participant = participants[request.name];
@@ -168,7 +347,15 @@ function onParticipantLeft(request) {
 }
 
 function sendMessage(message) {
-	var jsonMessage = JSON.stringify(message);
-	console.log('Senging message: ' + jsonMessage);
-	ws.send(jsonMessage);
+	if (ws.readyState !== WebSocket.OPEN) {
+		if (resumeToken) {
+			// Delivered once the session is resumed
+			pendingMessages.push(message);
+		} else {
+			console.warn('Signaling not connected, dropping message ' + message.id);
+		}
+		return;
+	}
+	console.log('Senging message: ' + JSON.stringify(message));
+	SignalingCodec.send(ws, message);
 }
@@ -77,7 +77,8 @@ function Participant(name) {
 		console.log('Invoking SDP offer callback function');
 		var msg =  { id : "receiveVideoFrom",
 				sender : name,
-				sdpOffer : offerSdp
+				sdpOffer : offerSdp,
+				media : media
 			};
 		sendMessage(msg);
 	}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/*
+ * Wire encoding of the signaling messages. Messages are JSON text frames unless
+ * the page is opened with "?encoding=compact" and the browser supports raw
+ * DEFLATE streams; in that case the server is asked to switch to binary frames:
+ * one format byte (0 = UTF-8 JSON, 1 = raw DEFLATE compressed JSON) followed by
+ * the message. Only messages carrying SDPs are big enough to be compressed.
+ */
+var SignalingCodec = (function() {
+	const FORMAT_JSON = 0;
+	const FORMAT_DEFLATE = 1;
+	const COMPRESS_THRESHOLD = 512;
+
+	var compact = /[?&]encoding=compact(&|$)/.test(location.search)
+		&& typeof CompressionStream !== 'undefined'
+		&& typeof DecompressionStream !== 'undefined';
+
+	// Compression is asynchronous: chain every frame to keep messages in order
+	var sending = Promise.resolve();
+	var receiving = Promise.resolve();
+
+	function transform(bytes, stream) {
+		var blob = new Blob([bytes]);
+		return new Response(blob.stream().pipeThrough(stream)).arrayBuffer();
+	}
+
+	function frame(format, payload) {
+		var bytes = new Uint8Array(payload.byteLength + 1);
+		bytes[0] = format;
+		bytes.set(new Uint8Array(payload), 1);
+		return bytes.buffer;
+	}
+
+	function encode(message) {
+		var json = JSON.stringify(message);
+		if (!compact) {
+			return Promise.resolve(json);
+		}
+		var utf8 = new TextEncoder().encode(json);
+		if (utf8.byteLength < COMPRESS_THRESHOLD) {
+			return Promise.resolve(frame(FORMAT_JSON, utf8.buffer));
+		}
+		return transform(utf8, new CompressionStream('deflate-raw')).then(function(deflated) {
+			return frame(FORMAT_DEFLATE, deflated);
+		});
+	}
+
+	function decode(data) {
+		if (typeof data === 'string') {
+			return Promise.resolve(JSON.parse(data));
+		}
+		var bytes = new Uint8Array(data);
+		var payload = bytes.subarray(1);
+		var utf8;
+		switch (bytes[0]) {
+		case FORMAT_JSON:
+			utf8 = Promise.resolve(payload);
+			break;
+		case FORMAT_DEFLATE:
+			utf8 = transform(payload, new DecompressionStream('deflate-raw'));
+			break;
+		default:
+			return Promise.reject(new Error('Unknown signaling frame format ' + bytes[0]));
+		}
+		return utf8.then(function(json) {
+			return JSON.parse(new TextDecoder().decode(json));
+		});
+	}
+
+	return {
+		isCompact : function() {
+			return compact;
+		},
+
+		/*
+		 * To be called from the "open" handler of the socket, before any other
+		 * message is sent.
+		 */
+		negotiate : function(ws) {
+			ws.binaryType = 'arraybuffer';
+			if (compact) {
+				ws.send(JSON.stringify({
+					id : 'setEncoding',
+					encoding : 'compact'
+				}));
+			}
+		},
+
+		send : function(ws, message) {
+			sending = sending.then(function() {
+				return encode(message);
+			}).then(function(data) {
+				ws.send(data);
+			}).catch(function(error) {
+				console.error('Could not send message ' + message.id, error);
+			});
+		},
+
+		receive : function(data, callback) {
+			receiving = receiving.then(function() {
+				return decode(data);
+			}).then(callback).catch(function(error) {
+				console.error('Could not handle incoming message', error);
+			});
+		}
+	};
+})();
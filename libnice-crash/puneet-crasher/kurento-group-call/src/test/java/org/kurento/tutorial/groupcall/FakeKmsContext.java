@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * The media-facing beans of the application, wired by Spring as in {@link GroupCallApp}, against a
+ * {@link FakeKms} running in the test process. The flight recorder is off, so that tests do not
+ * leave files behind.
+ */
+final class FakeKmsContext implements Closeable {
+
+  // Null when the fake media server is called in-process
+  private final Tomcat kms;
+  private final KurentoClient kurento;
+  private final AnnotationConfigApplicationContext context;
+
+  /**
+   * Talks to the fake media server through a WebSocket, as to a real one.
+   *
+   * @param latencyMs
+   *          the delay of every answer of the fake media server
+   * @param properties
+   *          application properties, over the defaults
+   */
+  FakeKmsContext(long latencyMs, Map<String, Object> properties) throws Exception {
+    this(FakeKms.start(0, latencyMs), properties);
+  }
+
+  /**
+   * Calls the fake media server in-process, with no latency.
+   *
+   * @param properties
+   *          application properties, over the defaults
+   */
+  FakeKmsContext(Map<String, Object> properties) {
+    this(null, properties);
+  }
+
+  private FakeKmsContext(Tomcat kms, Map<String, Object> properties) {
+    this.kms = kms;
+    if (kms != null) {
+      kurento = KurentoClient.create("ws://localhost:" + kms.getConnector().getLocalPort()
+          + "/kurento");
+    } else {
+      kurento = KurentoClient.createFromJsonRpcClient(
+          new JsonRpcClientLocal(new FakeKms(0).localHandler()));
+    }
+    final Map<String, Object> all = new HashMap<>();
+    all.put("groupcall.flight-recorder.enabled", "false");
+    all.putAll(properties);
+
+    context = new AnnotationConfigApplicationContext();
+    context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", all));
+    context.getBeanFactory().registerSingleton("kurentoClient", kurento);
+    context.register(Beans.class);
+    context.refresh();
+  }
+
+  <T> T getBean(Class<T> type) {
+    return context.getBean(type);
+  }
+
+  @Override
+  public void close() {
+    context.close();
+    kurento.destroy();
+    if (kms == null) {
+      return;
+    }
+    try {
+      kms.stop();
+      kms.destroy();
+    } catch (LifecycleException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Bean methods in "lite" mode: beans do not call each other, so no proxy is needed. */
+  static class Beans {
+
+    @Bean
+    static PropertySourcesPlaceholderConfigurer placeholders() {
+      return new PropertySourcesPlaceholderConfigurer();
+    }
+
+    @Bean
+    FlightRecorder flightRecorder() {
+      return new FlightRecorder();
+    }
+
+    @Bean
+    KmsCircuitBreaker kmsCircuitBreaker() {
+      return new KmsCircuitBreaker();
+    }
+
+    @Bean
+    SdpMunger sdpMunger() {
+      return new SdpMunger();
+    }
+
+    @Bean
+    RelayManager relayManager() {
+      return new RelayManager();
+    }
+
+    @Bean
+    RoomStateStore roomStateStore() {
+      return new InMemoryRoomStateStore();
+    }
+
+    @Bean
+    RecordingManager recordingManager() {
+      return new RecordingManager();
+    }
+
+    @Bean
+    RoomManager roomManager() {
+      return new RoomManager();
+    }
+
+    @Bean
+    UserRegistry userRegistry() {
+      return new UserRegistry();
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Writes to a small ring until it wraps around many times, from one and from many threads, and
+ * reads it back.
+ */
+public class FlightRecorderTest {
+
+  private File file;
+  private FlightRecorder recorder;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("flight-recorder", ".bin");
+    recorder = new FlightRecorder();
+    set("enabled", true);
+    set("fileName", file.getPath());
+    set("sizeMb", 1);
+    invoke("init");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    invoke("shutdown");
+    file.delete();
+  }
+
+  @Test
+  public void recordsOfMixedSizesWrapAroundWithoutLoss() throws Exception {
+    final Random random = new Random(42);
+    final int total = 20_000;
+    for (int i = 0; i < total; i++) {
+      // Mostly candidates, with SDP-sized and truncated records in between
+      final int size = i % 50 == 0 ? 70_000 : i % 7 == 0 ? 3_000 + random.nextInt(9_000)
+          : random.nextInt(400);
+      recorder.recordKmsCall("op-" + i, true, i);
+      recorder.recordOpen(TestSessions.open("s-" + i));
+      FlightRecorder.recordOutbound(attached("s-" + i), payload(i, size));
+    }
+
+    assertEquals(0L, recorder.getStats().get("failures"));
+    assertEquals(true, recorder.getStats().get("enabled"));
+
+    final List<FlightRecorder.Record> records = FlightRecorder.read(file);
+    assertFalse(records.isEmpty());
+    long previousTime = 0;
+    for (final FlightRecorder.Record record : records) {
+      assertTrue(record.getTimeMicros() >= previousTime);
+      previousTime = record.getTimeMicros();
+      if (record.getType() == FlightRecorder.Type.OUT) {
+        final int i = Integer.parseInt(record.getKey().substring(2));
+        assertEquals(payload(i, record.getValue().length()), record.getValue());
+        assertEquals(i % 50 == 0, record.isTruncated());
+      }
+    }
+    final FlightRecorder.Record last = records.get(records.size() - 1);
+    assertEquals(FlightRecorder.Type.OUT, last.getType());
+    assertEquals("s-" + (total - 1), last.getKey());
+  }
+
+  @Test
+  public void concurrentWritersLeaveEveryRecordIntactAndInOrder() throws Exception {
+    final int threads = 8;
+    final int perThread = 20_000;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final WebSocketSession session = attached("t" + t);
+      final Random random = new Random(t);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int i = 0; i < perThread; i++) {
+            FlightRecorder.recordOutbound(session, i + ":" + payload(i, random.nextInt(2000)));
+          }
+          return null;
+        }
+      }));
+    }
+    for (final Future<Void> future : futures) {
+      future.get(60, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    assertEquals(0L, recorder.getStats().get("failures"));
+    assertEquals((long) threads * perThread, recorder.getStats().get("records"));
+
+    // What is left of each thread is the end of what it wrote, in the order it wrote it
+    final int[] next = new int[threads];
+    Arrays.fill(next, -1);
+    for (final FlightRecorder.Record record : FlightRecorder.read(file)) {
+      final int t = Integer.parseInt(record.getKey().substring(1));
+      final String value = record.getValue();
+      final int i = Integer.parseInt(value.substring(0, value.indexOf(':')));
+      assertTrue(next[t] < 0 || i == next[t]);
+      assertEquals(payload(i, value.length() - value.indexOf(':') - 1),
+          value.substring(value.indexOf(':') + 1));
+      next[t] = i + 1;
+    }
+    int seen = 0;
+    for (int t = 0; t < threads; t++) {
+      // A thread that finished early may have been overwritten entirely
+      if (next[t] >= 0) {
+        assertEquals(perThread, next[t]);
+        seen++;
+      }
+    }
+    assertTrue(seen > 0);
+  }
+
+  @Test
+  public void failedWritesDisableTheRecorderInsteadOfThrowing() throws Exception {
+    // A ring whose buffer is gone, as after a failed mapping
+    set("ring", null);
+
+    recorder.recordKmsCall("createMediaPipeline", true, 3);
+    recorder.recordOpen(TestSessions.open("s"));
+
+    assertEquals(false, recorder.getStats().get("enabled"));
+    assertEquals(1L, recorder.getStats().get("failures"));
+  }
+
+  private WebSocketSession attached(String id) {
+    final WebSocketSession session = TestSessions.open(id);
+    recorder.attach(session);
+    return session;
+  }
+
+  private static String payload(int i, int size) {
+    final StringBuilder sb = new StringBuilder(size);
+    while (sb.length() < size) {
+      sb.append((char) ('a' + (i + sb.length()) % 26));
+    }
+    return sb.toString();
+  }
+
+  private void set(String field, Object value) throws Exception {
+    final Field f = FlightRecorder.class.getDeclaredField(field);
+    f.setAccessible(true);
+    f.set(recorder, value);
+  }
+
+  private void invoke(String method) throws Exception {
+    final Method m = FlightRecorder.class.getDeclaredMethod(method);
+    m.setAccessible(true);
+    m.invoke(recorder);
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Roster messages queued behind a slow send, and what the client ends up being told.
+ */
+public class OutboundLanesTest {
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final CountDownLatch gate = new CountDownLatch(1);
+  private final List<String> sent = TestSessions.newSentList();
+  private WebSocketSession session;
+  private Future<Void> blocked;
+
+  @Before
+  public void setUp() throws Exception {
+    session = TestSessions.open("lanes", sent, gate);
+    // This send holds the session until the gate opens, so everything else queues behind it
+    blocked = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        OutboundLanes.send(session, message("receiveVideoAnswer", "A"));
+        return null;
+      }
+    });
+    while (!session.getAttributes().containsKey(OutboundLanes.class.getName())) {
+      Thread.sleep(1);
+    }
+    // Let the sending thread take the message out of its lane and block in sendMessage
+    Thread.sleep(50);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void leavingAgainAfterARejoinIsNotLost() throws Exception {
+    send(message("participantLeft", "Y"));
+    send(message("newParticipantArrived", "Y"));
+    send(message("participantLeft", "Y"));
+
+    assertEquals(Arrays.asList(message("receiveVideoAnswer", "A"), message("participantLeft", "Y")),
+        release());
+  }
+
+  @Test
+  public void arrivingAndLeavingBeforeBeingToldCancelOut() throws Exception {
+    send(message("newParticipantArrived", "Y"));
+    send(message("newParticipantArrived", "X"));
+    send(message("participantLeft", "Y"));
+
+    assertEquals(Arrays.asList(message("receiveVideoAnswer", "A"),
+        message("newParticipantArrived", "X")), release());
+  }
+
+  @Test
+  public void rejoiningAfterLeavingIsKept() throws Exception {
+    send(message("participantLeft", "Y"));
+    send(message("newParticipantArrived", "Y"));
+    send(message("newParticipantArrived", "Y"));
+
+    assertEquals(Arrays.asList(message("receiveVideoAnswer", "A"), message("participantLeft", "Y"),
+        message("newParticipantArrived", "Y")), release());
+  }
+
+  @Test
+  public void recordingStateKeepsOnlyTheLastChange() throws Exception {
+    send(state("recordingStarted"));
+    send(state("recordingStopped"));
+    send(state("recordingStarted"));
+    send(state("recordingStarted"));
+
+    assertEquals(Arrays.asList(message("receiveVideoAnswer", "A"), state("recordingStarted")),
+        release());
+  }
+
+  @Test
+  public void higherLanesGoFirst() throws Exception {
+    send(message("newParticipantArrived", "Y"));
+    send(message("iceCandidate", "Y"));
+    send(message("receiveVideoAnswer", "Y"));
+
+    assertEquals(Arrays.asList(message("receiveVideoAnswer", "A"),
+        message("receiveVideoAnswer", "Y"), message("iceCandidate", "Y"),
+        message("newParticipantArrived", "Y")), release());
+  }
+
+  private void send(JsonObject message) throws Exception {
+    OutboundLanes.send(session, message);
+  }
+
+  /** Opens the gate and returns what the client received, in order. */
+  private List<JsonObject> release() throws Exception {
+    gate.countDown();
+    blocked.get(10, TimeUnit.SECONDS);
+    final JsonObject[] received = new JsonObject[sent.size()];
+    for (int i = 0; i < received.length; i++) {
+      received[i] = new JsonParser().parse(sent.get(i)).getAsJsonObject();
+    }
+    return Arrays.asList(received);
+  }
+
+  private static JsonObject message(String id, String name) {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", id);
+    message.addProperty("name", name);
+    return message;
+  }
+
+  private static JsonObject state(String id) {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", id);
+    return message;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Joins {@value #DEFAULT_SESSIONS} participants (or {@code -Dgroupcall.heap-test.sessions}) to
+ * rooms of {@value #ROOM_SIZE}, each with {@value #PUBLISHERS} publishers received by everybody
+ * else, against a {@link FakeKms} called in-process, and checks what the heap grew by per
+ * participant.
+ * The WebSocket sessions are created before measuring, as the container owns them; the objects the
+ * fake media server keeps for every endpoint are counted, so the budget is an upper bound of what
+ * the application itself holds.
+ *
+ * <p>
+ * Rooms of {@value #LARGE_ROOM_SIZE} where everybody publishes check that the endpoint tables
+ * still route every candidate to its participant when they hold hundreds of endpoints.
+ * </p>
+ */
+public class ParticipantHeapBudgetTest {
+
+  private static final Logger log = LoggerFactory.getLogger(ParticipantHeapBudgetTest.class);
+
+  private static final int DEFAULT_SESSIONS = 100_000;
+  private static final int ROOM_SIZE = 10;
+  private static final int PUBLISHERS = 2;
+  // Measured at about 3.4 KB; a map of incoming endpoints per participant took about 4.1 KB
+  private static final long BYTES_PER_PARTICIPANT = 4 * 1024;
+  private static final int LARGE_ROOM_SIZE = 30;
+  private static final int LARGE_ROOMS = 10;
+  private static final long CANDIDATES_TIMEOUT_MS = 30_000;
+
+  private static final String OFFER = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n"
+      + "a=group:BUNDLE 0 1\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\nc=IN IP4 0.0.0.0\r\na=mid:0\r\na=sendrecv\r\n"
+      + "a=setup:actpass\r\na=rtpmap:111 opus/48000/2\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 96\r\nc=IN IP4 0.0.0.0\r\na=mid:1\r\na=sendrecv\r\n"
+      + "a=setup:actpass\r\na=rtpmap:96 VP8/90000\r\n";
+
+  private final int sessions = Integer.getInteger("groupcall.heap-test.sessions",
+      DEFAULT_SESSIONS);
+
+  private FakeKmsContext kms;
+
+  @Before
+  public void setUp() {
+    kms = new FakeKmsContext(Collections.<String, Object> emptyMap());
+  }
+
+  @After
+  public void tearDown() {
+    if (kms != null) {
+      kms.close();
+    }
+  }
+
+  @Test
+  public void participantsStayWithinTheirHeapBudget() throws Exception {
+    final RoomManager roomManager = kms.getBean(RoomManager.class);
+    final UserRegistry registry = kms.getBean(UserRegistry.class);
+    final List<WebSocketSession> sockets = new ArrayList<>(sessions);
+    for (int i = 0; i < sessions; i++) {
+      sockets.add(TestSessions.open("session-" + i));
+    }
+
+    final long before = usedHeapAfterGc();
+    final long start = System.nanoTime();
+    int endpoints = 0;
+    for (int first = 0; first < sessions; first += ROOM_SIZE) {
+      final Room room = roomManager.getRoom("room-" + first / ROOM_SIZE);
+      final List<UserSession> users = new ArrayList<>(ROOM_SIZE);
+      for (int i = first; i < Math.min(first + ROOM_SIZE, sessions); i++) {
+        final UserSession.Role role = i - first < PUBLISHERS ? UserSession.Role.PUBLISHER
+            : UserSession.Role.VIEWER;
+        final UserSession user = room.join("user-" + i, sockets.get(i), role);
+        registry.register(user);
+        users.add(user);
+      }
+      for (final UserSession user : users) {
+        for (final String publisher : room.getPublisherNames()) {
+          if (!publisher.equals(user.getName())) {
+            user.receiveVideoFrom(publisher, room.getSenderEndpoint(publisher, user), OFFER,
+                UserSession.MediaMask.BOTH);
+            endpoints++;
+          }
+        }
+      }
+    }
+    final long joinMs = (System.nanoTime() - start) / 1_000_000;
+    final long after = usedHeapAfterGc();
+
+    assertEquals(sessions, registry.getStats().get("registered"));
+    final long perParticipant = (after - before) / sessions;
+    log.info("{} participants in {} rooms, {} incoming endpoints, joined in {} ms: heap grew by"
+        + " {} MB, {} bytes per participant (budget {})", sessions,
+        (sessions + ROOM_SIZE - 1) / ROOM_SIZE, endpoints, joinMs, (after - before) >> 20,
+        perParticipant, BYTES_PER_PARTICIPANT);
+    assertTrue(perParticipant + " bytes per participant",
+        perParticipant <= BYTES_PER_PARTICIPANT);
+  }
+
+  @Test
+  public void candidatesReachTheirParticipantsInLargeRooms() throws Exception {
+    final RoomManager roomManager = kms.getBean(RoomManager.class);
+    final Map<String, List<String>> sent = new LinkedHashMap<>();
+    final Map<String, Set<String>> publishers = new LinkedHashMap<>();
+    for (int r = 0; r < LARGE_ROOMS; r++) {
+      final Room room = roomManager.getRoom("large-room-" + r);
+      final List<UserSession> users = new ArrayList<>(LARGE_ROOM_SIZE);
+      for (int i = 0; i < LARGE_ROOM_SIZE; i++) {
+        final String name = "large-" + r + "-" + i;
+        final List<String> messages = TestSessions.newSentList();
+        sent.put(name, messages);
+        users.add(room.join(name, TestSessions.open(name, messages),
+            UserSession.Role.PUBLISHER));
+      }
+      // Everybody, the sender itself included, gets one candidate from every endpoint
+      for (final UserSession user : users) {
+        publishers.put(user.getName(), new HashSet<>(room.getPublisherNames()));
+        for (final String publisher : room.getPublisherNames()) {
+          user.receiveVideoFrom(publisher, room.getSenderEndpoint(publisher, user), OFFER,
+              UserSession.MediaMask.BOTH);
+        }
+      }
+    }
+
+    final long deadline = System.currentTimeMillis() + CANDIDATES_TIMEOUT_MS;
+    for (final String name : sent.keySet()) {
+      List<String> candidates = candidatesOf(sent.get(name));
+      while (candidates.size() < LARGE_ROOM_SIZE && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+        candidates = candidatesOf(sent.get(name));
+      }
+      assertEquals(name, LARGE_ROOM_SIZE, candidates.size());
+      assertEquals(name, publishers.get(name), new HashSet<>(candidates));
+    }
+  }
+
+  /** @return the senders of the candidates among the messages sent to a participant */
+  private static List<String> candidatesOf(List<String> messages) {
+    final List<String> senders = new ArrayList<>();
+    for (final String text : messages) {
+      final JsonObject message = new JsonParser().parse(text).getAsJsonObject();
+      if ("iceCandidate".equals(message.get("id").getAsString())) {
+        senders.add(message.get("name").getAsString());
+      }
+    }
+    return senders;
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long used = Long.MAX_VALUE;
+    // Several rounds, for the collector to settle
+    for (int i = 0; i < 4; i++) {
+      memory.gc();
+      Thread.sleep(100);
+      used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+    }
+    return used;
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how long a sharded room takes to bridge every publisher to every shard when all the
+ * subscribers ask at once, against a media server answering each call after
+ * {@value #LATENCY_MS} ms. Each bridge costs six calls to the media server (two RTP endpoints,
+ * offer, answer, processing the answer, connecting the publisher), so a room that negotiated one
+ * bridge at a time would take at least {@code bridges * 6 * LATENCY_MS}.
+ *
+ * The test checks that calls of different bridges are pending at the same time, which a relay
+ * negotiating one bridge at a time never allows. The elapsed time depends on the host, and is only
+ * asserted with -Drelay.benchmark.assertTiming=true.
+ */
+public class PipelineRelayBenchmarkTest {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelineRelayBenchmarkTest.class);
+
+  private static final long LATENCY_MS = 20;
+  private static final int SHARDS = 8;
+  private static final int PUBLISHERS = 8;
+  private static final int THREADS = 16;
+  private static final int CALLS_PER_BRIDGE = 6;
+  private static final boolean ASSERT_TIMING = Boolean.getBoolean("relay.benchmark.assertTiming");
+
+  private FakeKmsContext kms;
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @Before
+  public void setUp() throws Exception {
+    final Map<String, Object> properties = new HashMap<>();
+    properties.put("groupcall.shards.count", String.valueOf(SHARDS));
+    kms = new FakeKmsContext(LATENCY_MS, properties);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    if (kms != null) {
+      kms.close();
+    }
+  }
+
+  @Test
+  public void subscribersOfAllShardsAreBridgedConcurrently() throws Exception {
+    final KurentoClient kurento = kms.getBean(KurentoClient.class);
+    final MediaPipeline origin = kurento.createMediaPipeline();
+    final PipelineRelay relay = kms.getBean(RelayManager.class).create("room", origin);
+    final List<WebRtcEndpoint> publishers = new ArrayList<>();
+    for (int i = 0; i < PUBLISHERS; i++) {
+      publishers.add(new WebRtcEndpoint.Builder(origin).build());
+    }
+
+    final long placeStart = System.nanoTime();
+    final List<MediaPipeline> shards = runConcurrently(SHARDS, new Task<MediaPipeline>() {
+      @Override
+      public MediaPipeline run(int i) {
+        return relay.place();
+      }
+    });
+    final long placeMs = (System.nanoTime() - placeStart) / 1_000_000;
+
+    // Every subscriber asks for every publisher, twice, all at once
+    final int requests = 2 * SHARDS * PUBLISHERS;
+    final PendingCallsSampler sampler =
+        new PendingCallsSampler(kms.getBean(KmsCircuitBreaker.class));
+    sampler.start();
+    final long bridgeStart = System.nanoTime();
+    final List<MediaElement> sources = runConcurrently(requests, new Task<MediaElement>() {
+      @Override
+      public MediaElement run(int i) {
+        final int publisher = i / 2 % PUBLISHERS;
+        return relay.getSource(shards.get(i / 2 / PUBLISHERS), "publisher-" + publisher,
+            publishers.get(publisher));
+      }
+    });
+    final long bridgeMs = (System.nanoTime() - bridgeStart) / 1_000_000;
+    final int maxPendingCalls = sampler.finish();
+
+    final int bridges = (SHARDS - 1) * PUBLISHERS;
+    final long serialMs = bridges * CALLS_PER_BRIDGE * LATENCY_MS;
+    log.info("{} shards placed in {} ms; {} bridges for {} requests from {} threads in {} ms"
+        + " (at least {} ms one at a time), up to {} calls pending at once", SHARDS, placeMs,
+        bridges, requests, THREADS, bridgeMs, serialMs, maxPendingCalls);
+
+    // Both requests for the same publisher and shard got the same bridge
+    for (int i = 0; i < requests; i += 2) {
+      assertSame(sources.get(i), sources.get(i + 1));
+    }
+    final Map<String, Integer> counts = relay.getBridgeCounts();
+    for (final MediaPipeline shard : shards) {
+      if (shard != origin) {
+        assertEquals(Integer.valueOf(PUBLISHERS), counts.get(shard.getId()));
+      }
+    }
+    assertTrue("Up to " + maxPendingCalls + " calls were pending at once", maxPendingCalls > 1);
+    if (ASSERT_TIMING) {
+      assertTrue("Bridging took " + bridgeMs + " ms", bridgeMs < serialMs);
+    }
+  }
+
+  /** Polls how many calls to the media server are pending, and keeps the most seen. */
+  private static class PendingCallsSampler extends Thread {
+    private final KmsCircuitBreaker kmsBreaker;
+    private volatile boolean done;
+    private int max;
+
+    PendingCallsSampler(KmsCircuitBreaker kmsBreaker) {
+      super("pending-calls-sampler");
+      this.kmsBreaker = kmsBreaker;
+    }
+
+    @Override
+    public void run() {
+      while (!done) {
+        max = Math.max(max, (Integer) kmsBreaker.getStats().get("pendingCalls"));
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    int finish() throws InterruptedException {
+      done = true;
+      join();
+      return max;
+    }
+  }
+
+  private interface Task<T> {
+    T run(int i);
+  }
+
+  private <T> List<T> runConcurrently(int count, final Task<T> task) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<T>> futures = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      futures.add(executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          start.await();
+          return task.run(index);
+        }
+      }));
+    }
+    start.countDown();
+    final List<T> results = new ArrayList<>();
+    for (final Future<T> future : futures) {
+      results.add(future.get(2, TimeUnit.MINUTES));
+    }
+    return Collections.unmodifiableList(results);
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the cost of munging browser offers once their codec sections are cached, which is the
+ * steady state of a room: every offer from the same browser build shares the same rtpmap, fmtp and
+ * extmap lines, and only ICE credentials, fingerprints and SSRCs change.
+ *
+ * <p>
+ * The number of offers can be raised with {@code -Dsdp.benchmark.offers=N}. The assertion on the
+ * time per offer is loose on purpose, so that a slow CI machine does not fail the build; the figure
+ * to compare between runs is the one logged.
+ * </p>
+ */
+public class SdpMungerBenchmarkTest {
+
+  private static final Logger log = LoggerFactory.getLogger(SdpMungerBenchmarkTest.class);
+
+  private static final int OFFERS = Integer.getInteger("sdp.benchmark.offers", 200_000);
+  private static final int WARMUP_OFFERS = 20_000;
+  private static final long MAX_MICROS_PER_OFFER = 200;
+
+  private SdpMunger munger;
+
+  @Before
+  public void setUp() throws Exception {
+    munger = new SdpMunger();
+    set("audioCodecsList", "opus");
+    set("videoCodecsList", "VP8");
+    set("videoMaxBitrateKbps", 1500);
+    set("templateCacheSize", 256);
+    final Method init = SdpMunger.class.getDeclaredMethod("init");
+    init.setAccessible(true);
+    init.invoke(munger);
+  }
+
+  @Test
+  public void mungedOfferKeepsOnlyTheAllowedCodecs() {
+    final String munged = munger.munge(chromeOffer(0));
+
+    assertTrue(munged.contains("m=audio 9 UDP/TLS/RTP/SAVPF 111 126\r\n"));
+    assertTrue(munged.contains("m=video 9 UDP/TLS/RTP/SAVPF 96 97\r\n"));
+    assertFalse(munged.contains("VP9"));
+    assertFalse(munged.contains("apt=98"));
+    assertTrue(munged.contains("b=AS:1500\r\n"));
+    assertTrue(munged.contains("a=ice-ufrag:u0\r\n"));
+  }
+
+  @Test
+  public void offersFromTheSameBrowserOnlyHitTheTemplateCache() {
+    for (int i = 0; i < WARMUP_OFFERS; i++) {
+      munger.munge(chromeOffer(i));
+    }
+    final long missesBefore = (Long) munger.getStats().get("templateMisses");
+
+    final String[] offers = new String[1024];
+    for (int i = 0; i < offers.length; i++) {
+      offers[i] = chromeOffer(WARMUP_OFFERS + i);
+    }
+    int bytes = 0;
+    final long start = System.nanoTime();
+    for (int i = 0; i < OFFERS; i++) {
+      bytes += munger.munge(offers[i % offers.length]).length();
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    final Map<String, Object> stats = munger.getStats();
+    final double microsPerOffer = elapsed / 1000.0 / OFFERS;
+    log.info("Munged {} offers in {} ms: {} us per offer ({} bytes out)", OFFERS,
+        elapsed / 1_000_000, String.format("%.1f", microsPerOffer), bytes);
+
+    assertEquals(missesBefore, stats.get("templateMisses"));
+    assertEquals(2, stats.get("templates"));
+    assertTrue("Munging took " + microsPerOffer + " us per offer",
+        microsPerOffer < MAX_MICROS_PER_OFFER);
+  }
+
+  private void set(String field, Object value) throws Exception {
+    final Field f = SdpMunger.class.getDeclaredField(field);
+    f.setAccessible(true);
+    f.set(munger, value);
+  }
+
+  /** A two-section offer as sent by Chrome, with per-connection lines that vary with {@code n}. */
+  private static String chromeOffer(int n) {
+    final String transport = "a=ice-ufrag:u" + n + "\r\n"
+        + "a=ice-pwd:p" + Integer.toHexString(n * 31 + 7) + "abcdefghijklmnopqrst\r\n"
+        + "a=ice-options:trickle\r\n"
+        + "a=fingerprint:sha-256 4A:AD:B9:B1:3F:82:18:3B:54:02:12:DF:3E:5D:49:6B:19:E5:7C:AB:"
+        + Integer.toHexString(n & 0xff) + ":1E:0C:C6:4C:2D:3B:1C:47:5E:29:3F\r\n"
+        + "a=setup:actpass\r\n";
+    return "v=0\r\n"
+        + "o=- " + (4611731400430051336L + n) + " 2 IN IP4 127.0.0.1\r\n"
+        + "s=-\r\n"
+        + "t=0 0\r\n"
+        + "a=group:BUNDLE 0 1\r\n"
+        + "a=msid-semantic: WMS stream" + n + "\r\n"
+        + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 9 0 8 126\r\n"
+        + "c=IN IP4 0.0.0.0\r\n"
+        + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+        + transport
+        + "a=mid:0\r\n"
+        + "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+        + "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+        + "a=sendrecv\r\n"
+        + "a=rtcp-mux\r\n"
+        + "a=rtpmap:111 opus/48000/2\r\n"
+        + "a=rtcp-fb:111 transport-cc\r\n"
+        + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+        + "a=rtpmap:103 ISAC/16000\r\n"
+        + "a=rtpmap:9 G722/8000\r\n"
+        + "a=rtpmap:0 PCMU/8000\r\n"
+        + "a=rtpmap:8 PCMA/8000\r\n"
+        + "a=rtpmap:126 telephone-event/8000\r\n"
+        + "a=ssrc:" + (1000000 + n) + " cname:c" + n + "\r\n"
+        + "a=ssrc:" + (1000000 + n) + " msid:stream" + n + " audio" + n + "\r\n"
+        + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99\r\n"
+        + "c=IN IP4 0.0.0.0\r\n"
+        + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+        + transport
+        + "a=mid:1\r\n"
+        + "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+        + "a=extmap:3 urn:3gpp:video-orientation\r\n"
+        + "a=sendrecv\r\n"
+        + "a=rtcp-mux\r\n"
+        + "a=rtcp-rsize\r\n"
+        + "a=rtpmap:96 VP8/90000\r\n"
+        + "a=rtcp-fb:96 goog-remb\r\n"
+        + "a=rtcp-fb:96 transport-cc\r\n"
+        + "a=rtcp-fb:96 ccm fir\r\n"
+        + "a=rtcp-fb:96 nack\r\n"
+        + "a=rtcp-fb:96 nack pli\r\n"
+        + "a=rtpmap:97 rtx/90000\r\n"
+        + "a=fmtp:97 apt=96\r\n"
+        + "a=rtpmap:98 VP9/90000\r\n"
+        + "a=rtcp-fb:98 goog-remb\r\n"
+        + "a=rtcp-fb:98 nack\r\n"
+        + "a=rtpmap:99 rtx/90000\r\n"
+        + "a=fmtp:99 apt=98\r\n"
+        + "a=ssrc-group:FID " + (2000000 + n) + " " + (3000000 + n) + "\r\n"
+        + "a=ssrc:" + (2000000 + n) + " cname:c" + n + "\r\n"
+        + "a=ssrc:" + (3000000 + n) + " cname:c" + n + "\r\n";
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Round trips and limits of the compact signaling frames.
+ */
+public class SignalingCodecTest {
+
+  @Test
+  public void compressedMessagesRoundTrip() {
+    final WebSocketSession session = TestSessions.open("codec");
+    SignalingCodec.setEncoding(session, SignalingCodec.Encoding.COMPACT);
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "receiveVideoFrom");
+    message.addProperty("sdpOffer", repeat('v', 8 * SignalingCodec.COMPRESS_THRESHOLD));
+
+    final WebSocketMessage<?> frame = SignalingCodec.encode(session, message);
+
+    assertEquals(message, SignalingCodec.decode(frame));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void framesInflatingPastTheLimitAreRejected() {
+    final byte[] json = ("{\"id\":\"" + repeat('x', 16 * SignalingCodec.MAX_INFLATED_SIZE) + "\"}")
+        .getBytes(StandardCharsets.UTF_8);
+
+    SignalingCodec.decode(new BinaryMessage(compactFrame(json)));
+  }
+
+  private static byte[] compactFrame(byte[] utf8) {
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(1);
+    deflater.setInput(utf8);
+    deflater.finish();
+    final byte[] chunk = new byte[4096];
+    while (!deflater.finished()) {
+      out.write(chunk, 0, deflater.deflate(chunk));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private static String repeat(char c, int count) {
+    final StringBuilder sb = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * WebSocket sessions for tests, open and keeping the text of the messages sent through them.
+ */
+final class TestSessions {
+
+  private TestSessions() {
+  }
+
+  /**
+   * @param id
+   *          the id of the session
+   * @param sent
+   *          where to add the text of the messages sent, or null to discard them
+   * @param gate
+   *          if not null, sends wait until it is opened, to let messages pile up behind them
+   */
+  static WebSocketSession open(final String id, final List<String> sent,
+      final CountDownLatch gate) {
+    final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    return (WebSocketSession) Proxy.newProxyInstance(TestSessions.class.getClassLoader(),
+        new Class<?>[] { WebSocketSession.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws InterruptedException {
+            switch (method.getName()) {
+              case "getId":
+                return id;
+              case "getAttributes":
+                return attributes;
+              case "isOpen":
+                return true;
+              case "getTextMessageSizeLimit":
+              case "getBinaryMessageSizeLimit":
+                return 8192;
+              case "sendMessage":
+                if (gate != null) {
+                  gate.await();
+                }
+                if (sent != null && args[0] instanceof TextMessage) {
+                  sent.add(((TextMessage) args[0]).getPayload());
+                }
+                return null;
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              case "equals":
+                return proxy == args[0];
+              case "toString":
+                return "TestSession[" + id + "]";
+              default:
+                return null;
+            }
+          }
+        });
+  }
+
+  static WebSocketSession open(String id, List<String> sent) {
+    return open(id, sent, null);
+  }
+
+  static WebSocketSession open(String id) {
+    return open(id, null, null);
+  }
+
+  static List<String> newSentList() {
+    return new CopyOnWriteArrayList<>();
+  }
+}
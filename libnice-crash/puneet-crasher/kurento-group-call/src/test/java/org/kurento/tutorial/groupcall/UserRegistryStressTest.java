@@ -0,0 +1,183 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Hammers the registry from many threads, joining, re-joining under the same name and leaving, and
+ * checks that the room index and the session index always agree.
+ */
+public class UserRegistryStressTest {
+
+  private static final int THREADS = 16;
+  private static final int ROUNDS = 2000;
+  private static final int ROOMS = 4;
+  private static final int NAMES = 8;
+
+  private final UserRegistry registry = new UserRegistry();
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void joinsAndLeavesOfDistinctUsersLeaveNothingBehind() throws Exception {
+    runConcurrently(new Worker() {
+      @Override
+      public void run(int thread, int round) {
+        final String room = "room-" + (round % ROOMS);
+        final String name = "user-" + thread;
+        final WebSocketSession session = TestSessions.open(thread + "/" + round);
+        final UserSession user = viewer(name, room, session);
+
+        registry.register(user);
+        assertSame(user, registry.getBySession(session));
+        assertSame(user, registry.getByName(room, name));
+        assertSame(user, registry.removeBySession(session));
+        assertNull(registry.getBySession(session));
+        assertNull(registry.removeBySession(session));
+      }
+    });
+
+    assertRegistered(0, 0);
+  }
+
+  @Test
+  public void rejoinsUnderTheSameNameKeepBothIndexesInStep() throws Exception {
+    runConcurrently(new Worker() {
+      @Override
+      public void run(int thread, int round) {
+        // Several threads fight over the same names, like a client re-joining from a new tab
+        final String room = "room-" + (thread % ROOMS);
+        final String name = "user-" + (round % NAMES);
+        final WebSocketSession session = TestSessions.open(thread + "/" + round);
+        registry.register(viewer(name, room, session));
+
+        final UserSession found = registry.getBySession(session);
+        if (found != null) {
+          // Replaced already, or still ours; never somebody else's
+          assertSame(session, found.getSession());
+        }
+        if (round % 3 == 0) {
+          registry.removeBySession(session);
+        }
+      }
+    });
+
+    // Every user left in a room is also found by its session, and nothing else is
+    int registered = 0;
+    for (int r = 0; r < ROOMS; r++) {
+      for (final UserSession user : registry.getRoomUsers("room-" + r)) {
+        assertSame(user, registry.getBySession(user.getSession()));
+        registered++;
+      }
+    }
+    final Map<String, Object> stats = registry.getStats();
+    assertEquals(registered, stats.get("registered"));
+
+    for (int r = 0; r < ROOMS; r++) {
+      for (final UserSession user : new ArrayList<>(registry.getRoomUsers("room-" + r))) {
+        assertNotNull(registry.removeBySession(user.getSession()));
+      }
+    }
+    assertRegistered(0, 0);
+  }
+
+  @Test
+  public void rejoinUnderTheSameNameForgetsTheParkedSession() throws Exception {
+    final WebSocketSession lost = TestSessions.open("lost");
+    final UserSession parked = viewer("user", "room", lost);
+    registry.register(parked);
+    registry.removeBySession(lost);
+    registry.park(parked, TimeUnit.MINUTES.toMillis(1), 1, new Runnable() {
+      @Override
+      public void run() {
+        throw new AssertionError("A replaced session must not expire");
+      }
+    });
+
+    // Joined again from a new tab instead of resuming: the room released the parked session
+    final WebSocketSession rejoined = TestSessions.open("rejoined");
+    registry.register(viewer("user", "room", rejoined));
+
+    assertFalse(registry.isParked(parked));
+    assertNull(registry.resume(parked.getResumeToken(), TestSessions.open("resumed")));
+    assertEquals(0, registry.getStats().get("parkedNow"));
+    assertSame(rejoined, registry.getByName("room", "user").getSession());
+  }
+
+  private interface Worker {
+    void run(int thread, int round);
+  }
+
+  private void runConcurrently(final Worker worker) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          start.await();
+          for (int round = 0; round < ROUNDS; round++) {
+            worker.run(thread, round);
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    for (final Future<Void> future : futures) {
+      // Rethrows the assertion errors of the workers
+      future.get(60, TimeUnit.SECONDS);
+    }
+  }
+
+  private void assertRegistered(int users, int rooms) {
+    final Map<String, Object> stats = registry.getStats();
+    assertEquals(users, stats.get("registered"));
+    assertEquals(rooms, stats.get("rooms"));
+  }
+
+  private static UserSession viewer(String name, String room, WebSocketSession session) {
+    return new UserSession(name, room, session, null, null, null, null,
+        UserSession.Role.VIEWER);
+  }
+}
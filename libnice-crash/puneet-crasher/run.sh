@@ -34,6 +34,22 @@ LOOPS=$((PARTICIPANTS * 3))
 CHROME_BIN=chromium-browser
 DRIVER_BIN=chromedriver
 
+# Signaling nodes to spread the participants over, round-robin, e.g. for the
+# multi-node LocalCluster harness:
+#   APP_URLS="https://<RemoteIpAddr>:8443 https://<RemoteIpAddr>:8444" ./run.sh
+# Empty: use the address written in 'test.py'
+APP_URLS="${APP_URLS:-}"
+
+# Record the room while testing (needs groupcall.recording.enabled=true in the
+# app). To measure the cost of recording, run once with RECORD=0 and once with
+# RECORD=1: active recorders and KMS memory are sampled from STATS_URL/stats
+# into STATS_LOG every STATS_INTERVAL seconds; KMS CPU and disk IO have to be
+# read on its host, e.g. with 'pidstat -u -d -C kurento-media 5'
+export RECORD="${RECORD:-0}"
+STATS_URL="${STATS_URL:-}"
+STATS_LOG="${STATS_LOG:-stats-record$RECORD.log}"
+STATS_INTERVAL=5
+
 
 
 # ---- Script start ----
@@ -46,6 +62,15 @@ kill_all() {
     pkill -9 --full "python.*test.py"
     pkill -9 --full "$DRIVER_BIN"
     pkill -9 --full "$CHROME_BIN"
+    [[ -n "${SAMPLER_PID:-}" ]] && kill "$SAMPLER_PID" 2>/dev/null
+}
+
+# Not a job, so it isn't counted as a participant
+sample_stats() {
+    while true; do
+        echo "$(date +%s) $(curl --silent --insecure "$STATS_URL/stats")"
+        sleep "$STATS_INTERVAL"
+    done >>"$STATS_LOG"
 }
 
 # Exit on CTRL+C
@@ -59,6 +84,13 @@ trap on_ctrl_c INT
 
 kill_all
 
+if [[ -n "$STATS_URL" ]]; then
+    sample_stats &
+    SAMPLER_PID=$!
+    disown
+fi
+
+NEXT_URL=0
 for _ in $(seq 1 $LOOPS); do
     NUM_JOBS="$(num_jobs)"
     echo "NUM_JOBS: $NUM_JOBS"
@@ -72,6 +104,10 @@ for _ in $(seq 1 $LOOPS); do
 
     if ((NUM_JOBS < PARTICIPANTS)); then
         echo "New participant"
+        if [[ -n "$APP_URLS" ]]; then
+            read -r -a URLS <<< "$APP_URLS"
+            export APP_URL="${URLS[$((NEXT_URL++ % ${#URLS[@]}))]}"
+        fi
         python ./test.py &  # Background job
         sleep 0.5
     fi
@@ -82,4 +118,5 @@ while (("$(num_jobs)" > 0)); do
     wait -n  # Blocks here
 done
 
+kill_all
 echo "END"
@@ -11,6 +11,7 @@ import time
 import string
 import random
 import sys
+import os
 
 def id_generator(size=6,chars=string.ascii_uppercase+string.digits):
     return ''.join(random.choice(chars) for _ in range (size))
@@ -29,7 +30,8 @@ usernameStr = id_generator()
 roomnameStr = 'a'
 
 #driver.get("https://localhost:8443")
-driver.get("https://18.219.0.186:8443")
+# APP_URL selects the signaling node when running several of them (see run.sh)
+driver.get(os.environ.get("APP_URL", "https://18.219.0.186:8443"))
 
 username = driver.find_element_by_id('name')
 username.send_keys(usernameStr)
@@ -39,7 +41,15 @@ time.sleep(1)  # Account for system slowdown with lots of instances
 
 driver.find_element_by_xpath("//*[@id='join']/form/p[3]/input").submit()
 # print driver.page_source.encode('utf-8')
-time.sleep(30)
+if os.environ.get("RECORD") == "1":
+    # Recording is per room: only ask for it if nobody did yet
+    time.sleep(2)
+    record = driver.find_element_by_id('button-record')
+    if record.get_attribute('value') == 'Start recording':
+        record.click()
+    time.sleep(28)
+else:
+    time.sleep(30)
 button = driver.find_element_by_id('button-leave')
 button.click()
 time.sleep(1)